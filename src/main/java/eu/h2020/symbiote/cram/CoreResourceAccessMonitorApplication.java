@@ -1,24 +1,29 @@
 package eu.h2020.symbiote.cram;
 
+import eu.h2020.symbiote.cram.messaging.BatchingNotificationConsumer;
 import eu.h2020.symbiote.cram.model.NextPopularityUpdate;
 import eu.h2020.symbiote.cram.repository.CramPersistentVariablesRepository;
 import eu.h2020.symbiote.util.IntervalFormatter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.core.AcknowledgeMode;
 import org.springframework.amqp.rabbit.annotation.EnableRabbit;
 import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
 import org.springframework.cloud.sleuth.sampler.AlwaysSampler;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
 
 import java.util.Date;
@@ -54,12 +59,63 @@ public class CoreResourceAccessMonitorApplication {
     @Value("${informSearchInterval}")
     private String informSearchIntervalString;
 
+    @Value("${cram.viewsAccumulator.flushInterval}")
+    private String viewsAccumulatorFlushIntervalString;
+
+    @Value("${cram.authorizationCache.timeToLive}")
+    private String authorizationCacheTimeToLiveString;
+
+    @Value("${cram.popularity.fullResyncInterval}")
+    private String popularityFullResyncIntervalString;
+
+    @Value("${cram.leaderElection.leaseDuration}")
+    private String leaderLeaseDurationString;
+
+    @Value("${cram.popularity.adaptiveInterval.minInterval}")
+    private String informSearchMinIntervalString;
+
+    @Value("${cram.popularity.adaptiveInterval.maxInterval}")
+    private String informSearchMaxIntervalString;
+
+    @Value("${cram.popularity.publisherConfirms.enabled}")
+    private Boolean publisherConfirmsEnabled;
+
+    @Value("${cram.popularity.publisherConfirms.retryBackoff}")
+    private String publisherConfirmsRetryBackoffString;
+
+    @Value("${cram.popularity.publisherConfirms.timeout}")
+    private String publisherConfirmsTimeoutString;
+
+    @Value("${cram.leaderElection.renewInterval}")
+    private String leaderRenewIntervalString;
+
+    @Value("${cram.notifications.batchConsumer.enabled}")
+    private Boolean batchConsumerEnabled;
+
+    @Value("${cram.notifications.batchConsumer.batchTimeout}")
+    private String batchConsumerTimeoutString;
+
+    @Value("${cram.notifications.batchConsumer.prefetch}")
+    private Integer batchConsumerPrefetch;
+
+    @Value("${cram.notifications.batchConsumer.concurrency}")
+    private Integer batchConsumerConcurrency;
+
+    @Value("${rabbit.queueName.cram.accessNotifications}")
+    private String accessNotificationsQueue;
+
+    @Value("${rabbit.queueName.cram.accessNotificationsOneWay}")
+    private String accessNotificationsOneWayQueue;
+
     @Value("${rabbit.exchange.search.name}")
     private String searchExchange;
 
     @Value("${rabbit.routingKey.search.popularityUpdates}")
     private String searchPopularityUpdatesRoutingKey;
 
+    @Value("${rabbit.routingKey.search.topPopularityUpdates}")
+    private String searchTopPopularityUpdatesRoutingKey;
+
 	public static void main(String[] args) {
 
         WaitForPort.waitForServices(WaitForPort.findProperty("SPRING_BOOT_WAIT_FOR_SERVICES"));
@@ -86,6 +142,11 @@ public class CoreResourceAccessMonitorApplication {
         return searchPopularityUpdatesRoutingKey;
     }
 
+    @Bean(name="searchTopPopularityUpdatesRoutingKey")
+    public String searchTopPopularityUpdatesRoutingKey() {
+        return searchTopPopularityUpdatesRoutingKey;
+    }
+
     @Bean(name="subIntervalDuration")
     public Long subIntervalDuration() {
         IntervalFormatter subInterval = new IntervalFormatter(subIntervalDurationString);
@@ -112,6 +173,66 @@ public class CoreResourceAccessMonitorApplication {
         return informSearchInterval.getMillis();
     }
 
+    @Bean(name="informSearchMinInterval")
+    public Long informSearchMinInterval() {
+        IntervalFormatter minInterval = new IntervalFormatter(informSearchMinIntervalString);
+        return minInterval.getMillis();
+    }
+
+    @Bean(name="informSearchMaxInterval")
+    public Long informSearchMaxInterval() {
+        IntervalFormatter maxInterval = new IntervalFormatter(informSearchMaxIntervalString);
+        return maxInterval.getMillis();
+    }
+
+    @Bean(name="viewsAccumulatorFlushInterval")
+    public Long viewsAccumulatorFlushInterval() {
+        IntervalFormatter flushInterval = new IntervalFormatter(viewsAccumulatorFlushIntervalString);
+        return flushInterval.getMillis();
+    }
+
+    @Bean(name="authorizationCacheTimeToLive")
+    public Long authorizationCacheTimeToLive() {
+        IntervalFormatter timeToLive = new IntervalFormatter(authorizationCacheTimeToLiveString);
+        return timeToLive.getMillis();
+    }
+
+    @Bean(name="batchConsumerTimeout")
+    public Long batchConsumerTimeout() {
+        IntervalFormatter batchTimeout = new IntervalFormatter(batchConsumerTimeoutString);
+        return batchTimeout.getMillis();
+    }
+
+    @Bean(name="popularityFullResyncInterval")
+    public Long popularityFullResyncInterval() {
+        IntervalFormatter fullResyncInterval = new IntervalFormatter(popularityFullResyncIntervalString);
+        return fullResyncInterval.getMillis();
+    }
+
+    @Bean(name="leaderLeaseDuration")
+    public Long leaderLeaseDuration() {
+        IntervalFormatter leaseDuration = new IntervalFormatter(leaderLeaseDurationString);
+        return leaseDuration.getMillis();
+    }
+
+    @Bean(name="leaderRenewInterval")
+    public Long leaderRenewInterval() {
+        IntervalFormatter renewInterval = new IntervalFormatter(leaderRenewIntervalString);
+        return renewInterval.getMillis();
+    }
+
+    @Bean(name="publisherConfirmsRetryBackoff")
+    public Long publisherConfirmsRetryBackoff() {
+        IntervalFormatter retryBackoff = new IntervalFormatter(publisherConfirmsRetryBackoffString);
+        return retryBackoff.getMillis();
+    }
+
+    @Bean(name="publisherConfirmsTimeout")
+    public Long publisherConfirmsTimeout() {
+        IntervalFormatter confirmsTimeout = new IntervalFormatter(publisherConfirmsTimeoutString);
+        return confirmsTimeout.getMillis();
+    }
+
     @Bean
     public NextPopularityUpdate nextPopularityUpdate(@Qualifier("subIntervalDuration") Long subIntervalDuration) {
 	    log.info("SubIntervalDuration is :" + subIntervalDuration + " ms");
@@ -123,10 +244,8 @@ public class CoreResourceAccessMonitorApplication {
             return newPopularityUpdate;
         }
         else if (new Date().getTime() > nextPopularityUpdate.getNextUpdate().getTime()){
+            // The ResourceAccessStatsUpdater catches up with the updates which were missed since then
             log.info("NextPopularityUpdate saved in Database has passed: " + nextPopularityUpdate.getNextUpdate().getTime());
-            nextPopularityUpdate.getNextUpdate().setTime(new Date().getTime() + subIntervalDuration);
-            log.info("New NextPopularityUpdate is at: " + nextPopularityUpdate.getNextUpdate().getTime());
-            cramPersistentVariablesRepository.save(nextPopularityUpdate);
             return nextPopularityUpdate;
         }
 	    else {
@@ -146,6 +265,39 @@ public class CoreResourceAccessMonitorApplication {
         return factory;
     }
 
+    /**
+     * Container factory of the AccessNotificationListener. Its containers are not started when the
+     * BatchingNotificationConsumer is enabled, since both of them consume the accessNotifications queue.
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory accessNotificationsListenerContainerFactory(ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setConcurrentConsumers(3);
+        factory.setMaxConcurrentConsumers(10);
+        factory.setMessageConverter(jackson2JsonMessageConverter());
+        factory.setAutoStartup(!batchConsumerEnabled);
+        return factory;
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "cram.notifications.batchConsumer.enabled", havingValue = "true")
+    public SimpleMessageListenerContainer batchNotificationsListenerContainer(ConnectionFactory connectionFactory,
+                                                                             BatchingNotificationConsumer batchingNotificationConsumer,
+                                                                             @Value("${cram.notifications.batchConsumer.batchSize}") Integer batchSize) {
+        if (batchConsumerPrefetch < batchSize)
+            log.warn("The prefetch of the batch consumer (" + batchConsumerPrefetch + ") is smaller than the batchSize (" +
+                    batchSize + "), so the batches are flushed only after the batchTimeout");
+
+        SimpleMessageListenerContainer container = new SimpleMessageListenerContainer(connectionFactory);
+        container.setQueueNames(accessNotificationsQueue, accessNotificationsOneWayQueue);
+        container.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        container.setPrefetchCount(batchConsumerPrefetch);
+        container.setConcurrentConsumers(batchConsumerConcurrency);
+        container.setMessageListener(batchingNotificationConsumer);
+        return container;
+    }
+
     @Bean 
     Jackson2JsonMessageConverter jackson2JsonMessageConverter() {
 
@@ -155,6 +307,7 @@ public class CoreResourceAccessMonitorApplication {
 
 
     @Bean
+    @Primary
     public ConnectionFactory connectionFactory() throws Exception {
         CachingConnectionFactory connectionFactory = new CachingConnectionFactory(rabbitMQHostIP);
         // connectionFactory.setPublisherConfirms(true);
@@ -165,10 +318,36 @@ public class CoreResourceAccessMonitorApplication {
     }
 
     @Bean
+    @Primary
     public RabbitTemplate rabbitTemplate(ConnectionFactory connectionFactory, Jackson2JsonMessageConverter jackson2JsonMessageConverter) {
         RabbitTemplate rabbitTemplate = new RabbitTemplate(connectionFactory);
         rabbitTemplate.setMessageConverter(jackson2JsonMessageConverter);
         return rabbitTemplate;
     }
 
+    /**
+     * The popularity updates are published on a connection of their own, which has the publisher confirms and returns
+     * enabled if cram.popularity.publisherConfirms.enabled is set
+     */
+    @Bean(name="popularityConnectionFactory")
+    public ConnectionFactory popularityConnectionFactory() throws Exception {
+        CachingConnectionFactory connectionFactory = new CachingConnectionFactory(rabbitMQHostIP);
+        connectionFactory.setPublisherConfirms(publisherConfirmsEnabled);
+        connectionFactory.setPublisherReturns(publisherConfirmsEnabled);
+        connectionFactory.setUsername(rabbitMQUsername);
+        connectionFactory.setPassword(rabbitMQPassword);
+        return connectionFactory;
+    }
+
+    @Bean(name="popularityRabbitTemplate")
+    public RabbitTemplate popularityRabbitTemplate(@Qualifier("popularityConnectionFactory") ConnectionFactory connectionFactory,
+                                                   Jackson2JsonMessageConverter jackson2JsonMessageConverter) {
+        RabbitTemplate rabbitTemplate = new RabbitTemplate(connectionFactory);
+        rabbitTemplate.setMessageConverter(jackson2JsonMessageConverter);
+
+        // The unroutable messages are returned, instead of being acked and dropped
+        rabbitTemplate.setMandatory(publisherConfirmsEnabled);
+        return rabbitTemplate;
+    }
+
 }
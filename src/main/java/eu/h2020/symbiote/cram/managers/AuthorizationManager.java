@@ -17,6 +17,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -43,6 +44,7 @@ public class AuthorizationManager {
     private Boolean securityEnabled;
 
     private IComponentSecurityHandler componentSecurityHandler;
+    private AuthorizationVerdictCache verdictCache;
 
     @Autowired
     public AuthorizationManager(@Value("${aam.deployment.owner.username}") String componentOwnerName,
@@ -51,7 +53,8 @@ public class AuthorizationManager {
                                 @Value("${aam.environment.clientId}") String clientId,
                                 @Value("${aam.environment.keystoreName}") String keystoreName,
                                 @Value("${aam.environment.keystorePass}") String keystorePass,
-                                @Value("${cram.security.enabled}") Boolean securityEnabled)
+                                @Value("${cram.security.enabled}") Boolean securityEnabled,
+                                AuthorizationVerdictCache verdictCache)
             throws SecurityHandlerException {
 
         Assert.notNull(componentOwnerName,"componentOwnerName can not be null!");
@@ -75,6 +78,9 @@ public class AuthorizationManager {
         Assert.notNull(securityEnabled,"securityEnabled can not be null!");
         this.securityEnabled = securityEnabled;
 
+        Assert.notNull(verdictCache,"verdictCache can not be null!");
+        this.verdictCache = verdictCache;
+
         if (securityEnabled)
             enableSecurity();
     }
@@ -90,6 +96,14 @@ public class AuthorizationManager {
             if (resource.getPolicySpecifier() == null)
                 return new AuthorizationResult("Filtering policy is null; applying default policy (PUBLIC)", true);
 
+            AuthorizationVerdictCache.CredentialsKey credentialsKey = verdictCache.keyOf(securityRequest);
+            String policyIdentity = credentialsKey == null ? null :
+                    AuthorizationVerdictCache.storedResourcePolicyIdentity(resource.getId(),
+                            resource.getPolicySpecifier());
+            AuthorizationResult cachedResult = verdictCache.get(credentialsKey, policyIdentity);
+            if (cachedResult != null)
+                return cachedResult;
+
             Set<String> checkedPolicies;
             try {
                 checkedPolicies = checkStoredResourcePolicy(resource, securityRequest);
@@ -99,12 +113,16 @@ public class AuthorizationManager {
 
             }
 
+            AuthorizationResult result;
             if (checkedPolicies.size() == 1) {
-                return new AuthorizationResult("ok", true);
+                result = new AuthorizationResult("ok", true);
             } else {
-                return new AuthorizationResult("The stored resource access policy was not satisfied",
+                result = new AuthorizationResult("The stored resource access policy was not satisfied",
                         false);
             }
+
+            verdictCache.put(credentialsKey, policyIdentity, result);
+            return result;
         } else {
             log.debug("checkAccess: Security is disabled");
 
@@ -114,35 +132,99 @@ public class AuthorizationManager {
     }
 
     public AuthorizationResult checkNotificationSecured(CramResource resource, SecurityRequest securityRequest) {
+        if (resource == null) {
+            if (securityEnabled)
+                return new AuthorizationResult("The resource is null", false);
+            else
+                return new AuthorizationResult("security disabled", true);
+        }
+
+        return checkNotificationSecuredPerPlatform(Collections.singleton(resource.getPlatformId()), securityRequest)
+                .get(resource.getPlatformId());
+    }
+
+    /**
+     * Checks a SecurityRequest of a NotificationMessageSecured against the ComponentHomeTokenAccessPolicy of all
+     * the specified platforms. All the policies are evaluated with a single call to the security handler, so the
+     * SecurityRequest is validated only once, regardless of the number of resources in the message. The verdicts
+     * which are found in the AuthorizationVerdictCache are not evaluated again.
+     *
+     * @param platformIds the ids of the platforms that the notified resources belong to
+     * @param securityRequest the SecurityRequest of the notification message
+     * @return the authorization result for every one of the specified platform ids
+     */
+    public Map<String, AuthorizationResult> checkNotificationSecuredPerPlatform(Set<String> platformIds,
+                                                                              SecurityRequest securityRequest) {
+        Map<String, AuthorizationResult> results = new HashMap<>();
+
         if (securityEnabled) {
-            log.debug("Received SecurityRequest of NotificationMessageSecured to be verified: (" + securityRequest + ")");
+            log.debug("Received SecurityRequest of NotificationMessageSecured to be verified: (" + securityRequest +
+                    ") for platforms " + platformIds);
 
             if (securityRequest == null) {
-                return new AuthorizationResult("SecurityRequest is null", false);
+                for (String platformId : platformIds)
+                    results.put(platformId, new AuthorizationResult("SecurityRequest is null", false));
+                return results;
+            }
+
+            AuthorizationVerdictCache.CredentialsKey credentialsKey = verdictCache.keyOf(securityRequest);
+            Map<String, IAccessPolicy> accessPoliciesMap = new HashMap<>();
+            for (String platformId : platformIds) {
+                if (platformId == null) {
+                    results.put(null, new AuthorizationResult("The platformId of the resource is null", false));
+                    continue;
+                }
+
+                AuthorizationResult cachedResult = verdictCache.get(credentialsKey,
+                        AuthorizationVerdictCache.componentHomeTokenPolicyIdentity(platformId));
+                if (cachedResult != null) {
+                    results.put(platformId, cachedResult);
+                    continue;
+                }
+
+                try {
+                    accessPoliciesMap.put(platformId,
+                            new ComponentHomeTokenAccessPolicy(platformId, MONITORING_IDENTIFIER, new HashMap<>()));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    results.put(platformId, new AuthorizationResult(e.getMessage(), false));
+                }
             }
 
+            if (accessPoliciesMap.isEmpty())
+                return results;
 
             Set<String> checkedPolicies;
             try {
-                checkedPolicies = checkComponentHomeTokenAccessPolicy(resource, securityRequest);
+                checkedPolicies = componentSecurityHandler.getSatisfiedPoliciesIdentifiers(accessPoliciesMap,
+                        securityRequest);
             } catch (Exception e) {
                 e.printStackTrace();
-                return new AuthorizationResult(e.getMessage(), false);
-
+                for (String platformId : accessPoliciesMap.keySet())
+                    results.put(platformId, new AuthorizationResult(e.getMessage(), false));
+                return results;
             }
 
-            if (checkedPolicies.size() == 1) {
-                return new AuthorizationResult("ok", true);
-            } else {
-                return new AuthorizationResult("The SingleLocalHomeTokenAccessPolicy was not satisfied",
-                        false);
+            for (String platformId : accessPoliciesMap.keySet()) {
+                AuthorizationResult result;
+                if (checkedPolicies.contains(platformId))
+                    result = new AuthorizationResult("ok", true);
+                else
+                    result = new AuthorizationResult("The SingleLocalHomeTokenAccessPolicy was not satisfied", false);
+
+                results.put(platformId, result);
+                verdictCache.put(credentialsKey, AuthorizationVerdictCache.componentHomeTokenPolicyIdentity(platformId),
+                        result);
             }
         } else {
             log.debug("checkAccess: Security is disabled");
 
             //if security is disabled in properties
-            return new AuthorizationResult("security disabled", true);
+            for (String platformId : platformIds)
+                results.put(platformId, new AuthorizationResult("security disabled", true));
         }
+
+        return results;
     }
 
     public ServiceResponseResult generateServiceResponse() {
@@ -183,15 +265,6 @@ public class AuthorizationManager {
         return componentSecurityHandler.getSatisfiedPoliciesIdentifiers(accessPoliciesMap, securityRequest);
     }
 
-    private Set<String> checkComponentHomeTokenAccessPolicy(CramResource resource, SecurityRequest securityRequest)
-            throws Exception {
-        Map<String, IAccessPolicy> accessPoliciesMap = new HashMap<>();
-
-        accessPoliciesMap.put("ComponentHomeTokenAccessPolicy",
-                new ComponentHomeTokenAccessPolicy(resource.getPlatformId(), MONITORING_IDENTIFIER,  new HashMap<>()));
-        return componentSecurityHandler.getSatisfiedPoliciesIdentifiers(accessPoliciesMap, securityRequest);
-    }
-
     /**
      * Setters and Getters
      */
@@ -0,0 +1,234 @@
+package eu.h2020.symbiote.cram.managers;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import eu.h2020.symbiote.cram.model.authorization.AuthorizationResult;
+import eu.h2020.symbiote.security.communication.payloads.SecurityCredentials;
+import eu.h2020.symbiote.security.communication.payloads.SecurityRequest;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded cache of the verdicts of the AuthorizationManager. The verdicts are keyed by a digest of the tokens and
+ * certificates of the SecurityRequest and the identity of the evaluated policy, so that the SecurityRequests which
+ * present the same credentials repeatedly are not verified again. An entry never outlives the tokens of the
+ * SecurityRequest nor the timeToLive and the least recently used entries are evicted when the cache is full.
+ *
+ * The timestamp of the SecurityRequest and the authentication challenges, which are derived from it, are left out of
+ * the key, since they change with every request and so only literal replays would hit. This is a trade-off: within
+ * the lifetime of an entry, a SecurityRequest which presents the same tokens gets the cached verdict without its
+ * timestamp and challenges being verified, i.e. a replayed or forged challenge is not detected. That is why the cache
+ * is disabled by default.
+ */
+@Component
+public class AuthorizationVerdictCache {
+
+    private static Log log = LogFactory.getLog(AuthorizationVerdictCache.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    static final String HITS_METRIC = "counter.cram.authorizationCache.hits";
+    static final String MISSES_METRIC = "counter.cram.authorizationCache.misses";
+
+    private Boolean enabled;
+    private Integer maxSize;
+    private Long timeToLive;
+    private CounterService counterService;
+    private Map<String, CachedVerdict> verdicts;
+
+    @Autowired
+    public AuthorizationVerdictCache(@Value("${cram.authorizationCache.enabled}") Boolean enabled,
+                                     @Value("${cram.authorizationCache.maxSize}") Integer maxSize,
+                                     @Qualifier("authorizationCacheTimeToLive") Long timeToLive,
+                                     CounterService counterService) {
+        Assert.notNull(enabled,"enabled can not be null!");
+        this.enabled = enabled;
+
+        Assert.notNull(maxSize,"maxSize can not be null!");
+        this.maxSize = maxSize;
+
+        Assert.notNull(timeToLive,"timeToLive can not be null!");
+        this.timeToLive = timeToLive;
+
+        Assert.notNull(counterService,"counterService can not be null!");
+        this.counterService = counterService;
+
+        this.verdicts = Collections.synchronizedMap(new LinkedHashMap<String, CachedVerdict>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedVerdict> eldest) {
+                return size() > AuthorizationVerdictCache.this.maxSize;
+            }
+        });
+    }
+
+    /**
+     * Creates the part of the cache key which depends on the SecurityRequest.
+     *
+     * @param securityRequest the SecurityRequest to be verified
+     * @return the key of the credentials or null if the cache is disabled or the verdicts of this SecurityRequest
+     * can not be cached (e.g. the expiration of its tokens is unknown)
+     */
+    public CredentialsKey keyOf(SecurityRequest securityRequest) {
+        if (!enabled || securityRequest == null || securityRequest.getSecurityCredentials() == null ||
+                securityRequest.getSecurityCredentials().isEmpty())
+            return null;
+
+        long expiresAt = Long.MAX_VALUE;
+        List<String> credentials = new ArrayList<>();
+
+        for (SecurityCredentials securityCredentials : securityRequest.getSecurityCredentials()) {
+            Long tokenExpiration = tokenExpiration(securityCredentials.getToken());
+
+            if (tokenExpiration == null)
+                return null;
+
+            expiresAt = Math.min(expiresAt, tokenExpiration);
+            credentials.add(securityCredentials.getToken() + "\n" +
+                    securityCredentials.getClientCertificate() + "\n" +
+                    securityCredentials.getClientCertificateSigningAAMCertificate() + "\n" +
+                    securityCredentials.getForeignTokenIssuingAAMCertificate());
+        }
+
+        if (expiresAt <= System.currentTimeMillis())
+            return null;
+
+        // The credentials are sorted, since their order in the SecurityRequest is not defined
+        Collections.sort(credentials);
+        return new CredentialsKey(digest(String.join("\n\n", credentials)), expiresAt);
+    }
+
+    /**
+     * @return the cached verdict or null if there is no valid verdict for this pair of credentials and policy
+     */
+    public AuthorizationResult get(CredentialsKey credentialsKey, String policyIdentity) {
+        if (credentialsKey == null || policyIdentity == null)
+            return null;
+
+        String key = credentialsKey.getDigest() + policyIdentity;
+        CachedVerdict cachedVerdict = verdicts.get(key);
+
+        if (cachedVerdict != null && cachedVerdict.getExpiresAt() <= System.currentTimeMillis()) {
+            verdicts.remove(key);
+            cachedVerdict = null;
+        }
+
+        if (cachedVerdict == null) {
+            counterService.increment(MISSES_METRIC);
+            return null;
+        }
+
+        counterService.increment(HITS_METRIC);
+        return cachedVerdict.getAuthorizationResult();
+    }
+
+    public void put(CredentialsKey credentialsKey, String policyIdentity, AuthorizationResult authorizationResult) {
+        if (credentialsKey == null || policyIdentity == null || authorizationResult == null)
+            return;
+
+        long expiresAt = Math.min(credentialsKey.getExpiresAt(), System.currentTimeMillis() + timeToLive);
+        verdicts.put(credentialsKey.getDigest() + policyIdentity,
+                new CachedVerdict(authorizationResult, expiresAt));
+    }
+
+    public void clear() {
+        verdicts.clear();
+    }
+
+    public int size() {
+        return verdicts.size();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the identity of the ComponentHomeTokenAccessPolicy of a platform
+     */
+    public static String componentHomeTokenPolicyIdentity(String platformId) {
+        return platformId == null ? null : "ComponentHomeTokenAccessPolicy:" + platformId;
+    }
+
+    /**
+     * @return the identity of the stored access policy of a resource or null if the policy can not be serialized
+     */
+    public static String storedResourcePolicyIdentity(String resourceId, Object policySpecifier) {
+        try {
+            return "StoredResourcePolicy:" + resourceId + ":" + mapper.writeValueAsString(policySpecifier);
+        } catch (Exception e) {
+            log.debug("The policy of the resource with id = " + resourceId + " can not be serialized", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the expiration of the token in milliseconds or null if it can not be found
+     */
+    static Long tokenExpiration(String token) {
+        if (token == null)
+            return null;
+
+        String[] parts = token.split("\\.");
+        if (parts.length < 2)
+            return null;
+
+        try {
+            JsonNode claims = mapper.readTree(Base64.getUrlDecoder().decode(parts[1]));
+            JsonNode exp = claims.get("exp");
+            return exp != null && exp.canConvertToLong() ? exp.asLong() * 1000 : null;
+        } catch (Exception e) {
+            log.debug("The expiration of the token could not be read", e);
+            return null;
+        }
+    }
+
+    private static String digest(String value) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(messageDigest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    public static class CredentialsKey {
+        private final String digest;
+        private final long expiresAt;
+
+        CredentialsKey(String digest, long expiresAt) {
+            this.digest = digest;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getDigest() { return digest; }
+        public long getExpiresAt() { return expiresAt; }
+    }
+
+    private static class CachedVerdict {
+        private final AuthorizationResult authorizationResult;
+        private final long expiresAt;
+
+        CachedVerdict(AuthorizationResult authorizationResult, long expiresAt) {
+            this.authorizationResult = authorizationResult;
+            this.expiresAt = expiresAt;
+        }
+
+        AuthorizationResult getAuthorizationResult() { return authorizationResult; }
+        long getExpiresAt() { return expiresAt; }
+    }
+}
@@ -9,6 +9,7 @@ import eu.h2020.symbiote.cram.model.SubIntervalViews;
 import eu.h2020.symbiote.cram.repository.PlatformRepository;
 import eu.h2020.symbiote.cram.repository.ResourceRepository;
 import eu.h2020.symbiote.cram.repository.SmartSpaceRepository;
+import eu.h2020.symbiote.cram.util.SubIntervalClock;
 import eu.h2020.symbiote.model.mim.Platform;
 import eu.h2020.symbiote.model.mim.SmartSpace;
 import org.apache.commons.logging.Log;
@@ -50,12 +51,14 @@ public class RepositoryManager {
     private SmartSpaceRepository smartSpaceRepository;
     private ResourceRepository resourceRepository;
     private Long subIntervalDuration;
+    private SubIntervalClock subIntervalClock;
 
     @Autowired
     public RepositoryManager(PlatformRepository platformRepository,
                              SmartSpaceRepository smartSpaceRepository,
                              ResourceRepository resourceRepository,
-                             @Qualifier("subIntervalDuration") Long subIntervalDuration){
+                             @Qualifier("subIntervalDuration") Long subIntervalDuration,
+                             SubIntervalClock subIntervalClock){
 
         Assert.notNull(platformRepository,"Platform repository can not be null!");
         this.platformRepository = platformRepository;
@@ -68,6 +71,9 @@ public class RepositoryManager {
 
         Assert.notNull(subIntervalDuration,"SubIntervalDuration repository can not be null!");
         this.subIntervalDuration = subIntervalDuration;
+
+        Assert.notNull(subIntervalClock,"SubIntervalClock can not be null!");
+        this.subIntervalClock = subIntervalClock;
     }
 
     /**
@@ -313,11 +319,14 @@ public class RepositoryManager {
                 cramResource.setPlatformId(message.getPlatformId());
 
                 ArrayList<SubIntervalViews>  subIntervalList = new ArrayList<>();
-                Date startDate = new Date(new Date().getTime());
+                Date startDate = subIntervalClock.isAligned() ? subIntervalClock.startOfSubInterval(new Date()) :
+                        new Date(new Date().getTime());
                 Date endDate = new Date(startDate.getTime() + subIntervalDuration);
                 // Todo: Change endTimestamp
                 subIntervalList.add(new SubIntervalViews(startDate, endDate, 0));
                 cramResource.setViewsInSubIntervals(subIntervalList);
+                if (subIntervalClock.isAligned())
+                    cramResource.setLastUpdateEpoch(subIntervalClock.getCurrentEpoch());
 
                 resourceRepository.save(cramResource);
                 log.info("CRAM saved resource with id: " + cramResource.getId());
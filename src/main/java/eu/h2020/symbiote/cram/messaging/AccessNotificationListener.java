@@ -9,12 +9,14 @@ import eu.h2020.symbiote.cram.util.ScheduledUpdate;
 import org.apache.commons.lang.builder.ReflectionToStringBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.AmqpException;
 import org.springframework.amqp.rabbit.annotation.*;
+import org.springframework.amqp.support.AmqpHeaders;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.stereotype.Component;
-
-import java.util.ArrayList;
-import java.util.List;
+import org.springframework.util.Assert;
 
 /**
  * Created by vasgl on 7/2/2017.
@@ -24,30 +26,32 @@ public class AccessNotificationListener {
 
     private static Log log = LogFactory.getLog(AccessNotificationListener.class);
 
-    private AuthorizationManager authorizationManager;
+    // The time (in ms) that a notification waits for room in the full queue before it is requeued
+    private static final long QUEUE_MAX_WAIT = 1000;
 
-    private Boolean scheduledUpdateOngoing;
-    private List<NotificationMessageSecured> notificationMessageList;
+    private AuthorizationManager authorizationManager;
+    private NotificationHandoff notificationHandoff;
 
     @Autowired
-    public AccessNotificationListener(AuthorizationManager authorizationManager) {
+    public AccessNotificationListener(AuthorizationManager authorizationManager,
+                                      @Value("${cram.notifications.queueCapacity}") Integer queueCapacity) {
 
         this.authorizationManager = authorizationManager;
 
-        scheduledUpdateOngoing = false;
-        notificationMessageList = new ArrayList<>();
+        Assert.notNull(queueCapacity,"queueCapacity can not be null!");
+        notificationHandoff = new NotificationHandoff(ScheduledUpdate::updateSuccessfulAttemptsMessages, queueCapacity);
     }
 
-    public Boolean getScheduledUpdateOngoing() { return this.scheduledUpdateOngoing; }
-    public void setScheduledUpdateOngoing(Boolean value) { this.scheduledUpdateOngoing = value; }
-
-    public List<NotificationMessageSecured> getNotificationMessageList() { return this.notificationMessageList; }
+    public NotificationHandoff getNotificationHandoff() { return this.notificationHandoff; }
 
     /**
      * Spring AMQP Listener for Access Notification Requests. This component listens to Access Notification Requests
-     * coming from Resource Access Proxy and updates the resource statistics in the local repository.
+     * coming from Resource Access Proxy and updates the resource statistics in the local repository. A response is
+     * generated only if the request has a reply_to address; one-way deliveries are just applied.
      *
      * @param messageSecured Contains resource access updates coming from the Resource Access Proxy along with the Security Request
+     * @param replyTo The reply_to property of the request or null if no response is expected
+     * @return the response or null for one-way deliveries
      */
     @RabbitListener(bindings = @QueueBinding(
             value = @Queue(value = "${rabbit.queueName.cram.accessNotifications}", durable = "${rabbit.exchange.cram.durable}",
@@ -56,38 +60,92 @@ public class AccessNotificationListener {
             exchange = @Exchange(value = "${rabbit.exchange.cram.name}", ignoreDeclarationExceptions = "true",
                     durable = "${rabbit.exchange.cram.durable}", autoDelete  = "${rabbit.exchange.cram.autodelete}",
                     internal = "${rabbit.exchange.cram.internal}", type = "${rabbit.exchange.cram.type}"),
-            key = "${rabbit.routingKey.cram.accessNotifications}")
+            key = "${rabbit.routingKey.cram.accessNotifications}"),
+            containerFactory = "accessNotificationsListenerContainerFactory"
     )
-    public NotificationMessageResponseSecured listenAndUpdateResourceViewStats(NotificationMessageSecured messageSecured) {
+    public NotificationMessageResponseSecured listenAndUpdateResourceViewStats(
+            NotificationMessageSecured messageSecured,
+            @Header(name = AmqpHeaders.REPLY_TO, required = false) String replyTo) {
 
         log.trace("NotificationMessage was received: " + ReflectionToStringBuilder.toString(messageSecured));
-        NotificationMessage message = messageSecured.getBody();
+
+        if (replyTo == null) {
+            updateResourceViewStatsOneWay(messageSecured);
+            return null;
+        }
+
         NotificationMessageResponseSecured responseSecured = new NotificationMessageResponseSecured();
 
         try {
-            if (message != null &&
-                    ((message.getSuccessfulAttempts() != null && message.getSuccessfulAttempts().size() != 0) ||
-                    (message.getSuccessfulPushes() != null && message.getSuccessfulPushes().size() != 0))) {
-
-                if (this.scheduledUpdateOngoing) {
-                    log.debug("Currently, the resource views are under updating, so the SuccessfulAttemptsMessage are queued.");
-                    notificationMessageList.add(messageSecured);
-                } else if (notificationMessageList.size() != 0){
-                    log.debug("Currently, the queued updates are process. The notifications will be queued there.");
-                    notificationMessageList.add(messageSecured);
-                } else {
-                    log.debug("Update will happen immediately");
-                    ScheduledUpdate.updateSuccessfulAttemptsMessage(messageSecured);
-                }
-            }
+            if (hasViews(messageSecured) && !notificationHandoff.submit(messageSecured, QUEUE_MAX_WAIT))
+                throw new AmqpException("The queue of the notifications is still full after " + QUEUE_MAX_WAIT +
+                        " ms, so the notification is requeued");
+
             // Return the service response
             ServiceResponseResult serviceResponseResult = authorizationManager.generateServiceResponse();
             responseSecured.setServiceResponse(serviceResponseResult.getServiceResponse());
 
+        } catch (AmqpException e) {
+            // No response is sent and the message is requeued, until it expires with the reply timeout
+            log.warn("Exception thrown during handling the NotificationMessage", e);
+            throw e;
         } catch (Throwable e) {
             log.info(e.toString());
         }
 
         return responseSecured;
     }
+
+    /**
+     * Spring AMQP Listener for one-way Access Notifications. The Resource Access Proxy can publish here the
+     * notifications for which it does not expect any response, so no service response is generated for them.
+     *
+     * @param messageSecured Contains resource access updates coming from the Resource Access Proxy along with the Security Request
+     */
+    @RabbitListener(bindings = @QueueBinding(
+            value = @Queue(value = "${rabbit.queueName.cram.accessNotificationsOneWay}", durable = "${rabbit.exchange.cram.durable}",
+                    autoDelete = "${rabbit.exchange.cram.autodelete}", exclusive = "false"),
+            exchange = @Exchange(value = "${rabbit.exchange.cram.name}", ignoreDeclarationExceptions = "true",
+                    durable = "${rabbit.exchange.cram.durable}", autoDelete  = "${rabbit.exchange.cram.autodelete}",
+                    internal = "${rabbit.exchange.cram.internal}", type = "${rabbit.exchange.cram.type}"),
+            key = "${rabbit.routingKey.cram.accessNotificationsOneWay}"),
+            containerFactory = "accessNotificationsListenerContainerFactory"
+    )
+    public void listenAndUpdateResourceViewStatsOneWay(NotificationMessageSecured messageSecured) {
+        log.trace("One-way NotificationMessage was received: " + ReflectionToStringBuilder.toString(messageSecured));
+        updateResourceViewStatsOneWay(messageSecured);
+    }
+
+    /**
+     * No one retries a notification which expects no response, so it is never dropped because the queue is full:
+     * the listener waits for room in the queue and, if there is still none, the message is requeued. Any other
+     * failure is logged, so that the message is not redelivered forever.
+     */
+    private void updateResourceViewStatsOneWay(NotificationMessageSecured messageSecured) {
+        boolean submitted;
+
+        try {
+            submitted = !hasViews(messageSecured) || notificationHandoff.submit(messageSecured, QUEUE_MAX_WAIT);
+        } catch (Throwable e) {
+            log.info(e.toString());
+            return;
+        }
+
+        if (!submitted)
+            throw new AmqpException("The queue of the notifications is still full after " + QUEUE_MAX_WAIT +
+                    " ms, so the one-way notification is requeued");
+    }
+
+    private boolean hasViews(NotificationMessageSecured messageSecured) {
+        NotificationMessage message = messageSecured.getBody();
+
+        boolean hasViews = message != null &&
+                ((message.getSuccessfulAttempts() != null && message.getSuccessfulAttempts().size() != 0) ||
+                (message.getSuccessfulPushes() != null && message.getSuccessfulPushes().size() != 0));
+
+        if (hasViews && notificationHandoff.isRolloverOngoing())
+            log.debug("Currently, the resource views are under updating, so the SuccessfulAttemptsMessage are queued.");
+
+        return hasViews;
+    }
 }
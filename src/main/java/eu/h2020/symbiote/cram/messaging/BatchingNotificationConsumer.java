@@ -0,0 +1,326 @@
+package eu.h2020.symbiote.cram.messaging;
+
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.rabbitmq.client.Channel;
+import eu.h2020.symbiote.core.internal.cram.NotificationMessageResponseSecured;
+import eu.h2020.symbiote.core.internal.cram.NotificationMessageSecured;
+import eu.h2020.symbiote.cram.managers.AuthorizationManager;
+import eu.h2020.symbiote.cram.model.authorization.ServiceResponseResult;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.core.Address;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.ChannelAwareMessageListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batched consumer of the accessNotifications queues (both the request/reply and the one-way one), which replaces
+ * the AccessNotificationListener when cram.notifications.batchConsumer.enabled is set.
+ *
+ * The deliveries of every channel are collected until batchSize messages have arrived or the oldest of them has
+ * waited for batchTimeout. The whole batch is then applied with a single bulk write and only afterwards it is
+ * acknowledged with a single multiple-ack, so the at-least-once delivery is preserved. While the resource views
+ * are rolled over, the batch is kept unacknowledged and it is retried later. It can not be combined with the
+ * ViewsAccumulator, which would defer the write past the acknowledgement.
+ *
+ * If the write fails because the database is not reachable, the whole batch is requeued. Any other failure is
+ * attributed to the content of the messages, so the messages are processed one by one and only the ones which fail
+ * again are rejected without requeueing, so that they are dead-lettered (if the queue has a dead letter exchange)
+ * instead of being redelivered forever.
+ *
+ * The batches which expire are flushed by the scheduler thread, so their acknowledgements are sent from it rather
+ * than from the consumer thread of the channel. This is safe: every channel has a single pending batch and all the
+ * acknowledgements of the channel are sent while holding the lock of that batch, the client serializes the frames
+ * which are written to a channel and the listener container does not acknowledge anything itself in the MANUAL
+ * acknowledge mode.
+ */
+@Component
+@ConditionalOnProperty(name = "cram.notifications.batchConsumer.enabled", havingValue = "true")
+public class BatchingNotificationConsumer implements ChannelAwareMessageListener {
+
+    private static Log log = LogFactory.getLog(BatchingNotificationConsumer.class);
+
+    private NotificationHandoff notificationHandoff;
+    private AuthorizationManager authorizationManager;
+    private RabbitTemplate rabbitTemplate;
+    private Jackson2JsonMessageConverter messageConverter;
+    private Integer batchSize;
+    private Long batchTimeout;
+
+    private final ConcurrentHashMap<Channel, PendingBatch> pendingBatches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "batching-notification-consumer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Autowired
+    public BatchingNotificationConsumer(AccessNotificationListener accessNotificationListener,
+                                        AuthorizationManager authorizationManager,
+                                        RabbitTemplate rabbitTemplate,
+                                        Jackson2JsonMessageConverter jackson2JsonMessageConverter,
+                                        @Value("${cram.notifications.batchConsumer.batchSize}") Integer batchSize,
+                                        @Qualifier("batchConsumerTimeout") Long batchTimeout,
+                                        @Value("${cram.viewsAccumulator.enabled}") Boolean viewsAccumulatorEnabled) {
+
+        Assert.notNull(accessNotificationListener,"accessNotificationListener can not be null!");
+        this.notificationHandoff = accessNotificationListener.getNotificationHandoff();
+
+        Assert.notNull(authorizationManager,"authorizationManager can not be null!");
+        this.authorizationManager = authorizationManager;
+
+        Assert.notNull(rabbitTemplate,"rabbitTemplate can not be null!");
+        this.rabbitTemplate = rabbitTemplate;
+
+        Assert.notNull(jackson2JsonMessageConverter,"messageConverter can not be null!");
+        this.messageConverter = jackson2JsonMessageConverter;
+
+        Assert.isTrue(batchSize != null && batchSize > 0,"batchSize should be positive!");
+        this.batchSize = batchSize;
+
+        Assert.isTrue(batchTimeout != null && batchTimeout > 0,"batchTimeout should be positive!");
+        this.batchTimeout = batchTimeout;
+
+        // The accumulated views are written only with the next flush, so the batch would be acknowledged before
+        // its views are committed
+        Assert.isTrue(!Boolean.TRUE.equals(viewsAccumulatorEnabled),
+                "cram.notifications.batchConsumer.enabled can not be combined with cram.viewsAccumulator.enabled!");
+
+        long checkPeriod = Math.max(1, batchTimeout / 2);
+        scheduler.scheduleWithFixedDelay(this::flushExpiredBatches, checkPeriod, checkPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void onMessage(Message message, Channel channel) {
+        PendingBatch pendingBatch = pendingBatches.computeIfAbsent(channel, PendingBatch::new);
+
+        synchronized (pendingBatch) {
+            pendingBatch.add(message, convert(message));
+
+            if (pendingBatch.size() >= batchSize)
+                flush(pendingBatch);
+        }
+    }
+
+    /**
+     * Flushes the batches whose oldest message has waited for more than batchTimeout. The batches of closed
+     * channels are discarded, since the broker redelivers their unacknowledged messages.
+     */
+    void flushExpiredBatches() {
+        long now = System.currentTimeMillis();
+
+        for (PendingBatch pendingBatch : pendingBatches.values()) {
+            synchronized (pendingBatch) {
+                if (!pendingBatch.channel.isOpen()) {
+                    pendingBatches.remove(pendingBatch.channel);
+                    continue;
+                }
+
+                if (pendingBatch.size() > 0 && now - pendingBatch.createdAt >= batchTimeout)
+                    flush(pendingBatch);
+            }
+        }
+    }
+
+    private void flush(PendingBatch pendingBatch) {
+        List<NotificationMessageSecured> notifications = new ArrayList<>();
+        for (NotificationMessageSecured notification : pendingBatch.notifications) {
+            if (notification != null && notification.getBody() != null)
+                notifications.add(notification);
+        }
+
+        try {
+            if (!notifications.isEmpty() && !notificationHandoff.tryProcess(notifications)) {
+                log.debug("Currently, the resource views are under updating, so the batch of " +
+                        pendingBatch.size() + " notifications is kept");
+                return;
+            }
+        } catch (RuntimeException e) {
+            if (isTransient(e)) {
+                log.warn("Exception thrown during processing a batch of " + pendingBatch.size() +
+                        " notifications, so they are requeued", e);
+                acknowledge(pendingBatch, false);
+            } else {
+                log.warn("Exception thrown during processing a batch of " + pendingBatch.size() +
+                        " notifications, so they are processed one by one", e);
+                processOneByOne(pendingBatch);
+            }
+            return;
+        }
+
+        List<Message> messages = new ArrayList<>(pendingBatch.messages);
+        if (acknowledge(pendingBatch, true))
+            sendReplies(messages);
+    }
+
+    private boolean acknowledge(PendingBatch pendingBatch, boolean processed) {
+        long lastDeliveryTag = pendingBatch.messages.get(pendingBatch.size() - 1)
+                .getMessageProperties().getDeliveryTag();
+
+        try {
+            if (processed)
+                pendingBatch.channel.basicAck(lastDeliveryTag, true);
+            else
+                pendingBatch.channel.basicNack(lastDeliveryTag, true, true);
+            return true;
+        } catch (IOException e) {
+            log.warn("Could not acknowledge the batch up to the delivery tag " + lastDeliveryTag, e);
+            return false;
+        } finally {
+            pendingBatch.clear();
+        }
+    }
+
+    /**
+     * Processes the messages of a failed batch one by one and acknowledges each of them separately. The messages which
+     * fail again are rejected without requeueing. If the database becomes unreachable or a rollover starts in the
+     * meantime, the remaining messages are requeued.
+     */
+    private void processOneByOne(PendingBatch pendingBatch) {
+        List<Message> processedMessages = new ArrayList<>();
+        boolean requeueRemaining = false;
+
+        try {
+            for (int i = 0; i < pendingBatch.size(); i++) {
+                Message message = pendingBatch.messages.get(i);
+                NotificationMessageSecured notification = pendingBatch.notifications.get(i);
+                long deliveryTag = message.getMessageProperties().getDeliveryTag();
+
+                if (!requeueRemaining) {
+                    try {
+                        if (notification == null || notification.getBody() == null ||
+                                notificationHandoff.tryProcess(Collections.singletonList(notification))) {
+                            pendingBatch.channel.basicAck(deliveryTag, false);
+                            processedMessages.add(message);
+                            continue;
+                        }
+                        requeueRemaining = true;
+                    } catch (RuntimeException e) {
+                        if (!isTransient(e)) {
+                            log.warn("The notification with the delivery tag " + deliveryTag +
+                                    " could not be processed, so it is rejected", e);
+                            pendingBatch.channel.basicNack(deliveryTag, false, false);
+                            continue;
+                        }
+                        requeueRemaining = true;
+                    }
+                }
+
+                pendingBatch.channel.basicNack(deliveryTag, false, true);
+            }
+        } catch (IOException e) {
+            log.warn("Could not acknowledge the notifications of the failed batch one by one", e);
+        } finally {
+            pendingBatch.clear();
+        }
+
+        sendReplies(processedMessages);
+    }
+
+    /**
+     * @return true if the failure is caused by the database being unreachable, so that a redelivery may succeed
+     */
+    private static boolean isTransient(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof TransientDataAccessException || cause instanceof RecoverableDataAccessException ||
+                    cause instanceof DataAccessResourceFailureException || cause instanceof MongoSocketException ||
+                    cause instanceof MongoTimeoutException)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * The service response is generated once for the whole batch and it is sent to every message which expects
+     * a reply.
+     */
+    private void sendReplies(List<Message> messages) {
+        NotificationMessageResponseSecured responseSecured = null;
+
+        for (Message message : messages) {
+            Address replyTo = message.getMessageProperties().getReplyToAddress();
+            if (replyTo == null)
+                continue;
+
+            if (responseSecured == null) {
+                ServiceResponseResult serviceResponseResult = authorizationManager.generateServiceResponse();
+                responseSecured = new NotificationMessageResponseSecured();
+                responseSecured.setServiceResponse(serviceResponseResult.getServiceResponse());
+            }
+
+            try {
+                MessageProperties replyProperties = new MessageProperties();
+                replyProperties.setCorrelationId(message.getMessageProperties().getCorrelationId());
+                rabbitTemplate.send(replyTo.getExchangeName(), replyTo.getRoutingKey(),
+                        messageConverter.toMessage(responseSecured, replyProperties));
+            } catch (RuntimeException e) {
+                log.warn("Could not send the reply to " + replyTo, e);
+            }
+        }
+    }
+
+    private NotificationMessageSecured convert(Message message) {
+        try {
+            // The same type is inferred as in the @RabbitListener of the AccessNotificationListener
+            message.getMessageProperties().setInferredArgumentType(NotificationMessageSecured.class);
+            return (NotificationMessageSecured) messageConverter.fromMessage(message);
+        } catch (RuntimeException e) {
+            log.info("The message could not be converted to NotificationMessageSecured and it is discarded: " + e);
+            return null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private static class PendingBatch {
+        private final Channel channel;
+        private final List<Message> messages = new ArrayList<>();
+        private final List<NotificationMessageSecured> notifications = new ArrayList<>();
+        private long createdAt;
+
+        PendingBatch(Channel channel) {
+            this.channel = channel;
+        }
+
+        void add(Message message, NotificationMessageSecured notification) {
+            if (messages.isEmpty())
+                createdAt = System.currentTimeMillis();
+            messages.add(message);
+            notifications.add(notification);
+        }
+
+        int size() {
+            return messages.size();
+        }
+
+        void clear() {
+            messages.clear();
+            notifications.clear();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package eu.h2020.symbiote.cram.messaging;
+
+import eu.h2020.symbiote.core.internal.cram.NotificationMessageSecured;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.AmqpException;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Lock-free handoff of the notification messages between the concurrent AMQP listeners and the periodic
+ * rollover of the resource views.
+ *
+ * While no rollover is ongoing, the listeners process the notifications right away. During a rollover, the
+ * notifications are queued in a bounded lock-free queue and they are drained in a single pass as soon as the
+ * rollover ends. The listeners never block: the rollover waits for the listeners which are already processing
+ * a notification before it starts.
+ *
+ * The queued notifications have already been acknowledged to the broker, so a batch which fails to be processed is
+ * queued again and it is retried with the next drain. Hence, the queued notifications are processed at least once:
+ * the views of a batch which failed half way may be added again, unless the deduplication of the views is enabled.
+ */
+public class NotificationHandoff {
+
+    private static Log log = LogFactory.getLog(NotificationHandoff.class);
+    private static final int DRAIN_BATCH_SIZE = 1000;
+
+    private final Consumer<List<NotificationMessageSecured>> processor;
+    private final int capacity;
+
+    private final ConcurrentLinkedQueue<NotificationMessageSecured> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queueSize = new AtomicInteger(0);
+    private final AtomicBoolean rolloverOngoing = new AtomicBoolean(false);
+    private final AtomicInteger activeWriters = new AtomicInteger(0);
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    public NotificationHandoff(Consumer<List<NotificationMessageSecured>> processor, int capacity) {
+        Assert.notNull(processor,"processor can not be null!");
+        this.processor = processor;
+
+        Assert.isTrue(capacity > 0,"capacity should be positive!");
+        this.capacity = capacity;
+    }
+
+    public boolean isRolloverOngoing() { return rolloverOngoing.get(); }
+    public int size() { return queueSize.get(); }
+    public List<NotificationMessageSecured> getQueuedMessages() { return new ArrayList<>(queue); }
+
+    /**
+     * Processes the notification right away or queues it if a rollover is ongoing.
+     *
+     * @param message the notification message
+     * @throws AmqpException if the notification has to be queued, but the queue is full, so that the notification
+     * is requeued by the broker instead of being dropped
+     */
+    public void submit(NotificationMessageSecured message) throws AmqpException {
+        if (!offer(message))
+            throw new AmqpException("The queue of the notifications is full (" + capacity + "), so the notification " +
+                    "is requeued");
+    }
+
+    /**
+     * Like {@link #submit(NotificationMessageSecured)}, but if the queue is full it waits up to maxWait for the
+     * rollover to end or for the queue to be drained, instead of rejecting the notification.
+     *
+     * @param message the notification message
+     * @param maxWait the maximum time (in ms) to wait for room in the queue
+     * @return true if the notification was processed or queued or false if the queue was still full after maxWait
+     */
+    public boolean submit(NotificationMessageSecured message, long maxWait) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWait);
+
+        while (!offer(message)) {
+            if (System.nanoTime() >= deadline)
+                return false;
+            LockSupport.parkNanos(1000000);
+        }
+        return true;
+    }
+
+    private boolean offer(NotificationMessageSecured message) {
+        boolean processed = false;
+
+        // The writer is registered before checking the flag, so a rollover which starts concurrently waits for it
+        activeWriters.incrementAndGet();
+        try {
+            if (!rolloverOngoing.get()) {
+                processor.accept(Collections.singletonList(message));
+                processed = true;
+            }
+        } finally {
+            activeWriters.decrementAndGet();
+        }
+
+        if (processed) {
+            // A batch which failed during the last drain is retried as soon as the notifications are processed again
+            if (!queue.isEmpty())
+                drain();
+            return true;
+        }
+
+        if (queueSize.incrementAndGet() > capacity) {
+            queueSize.decrementAndGet();
+            return false;
+        }
+        queue.offer(message);
+
+        // The rollover may have ended in the meantime, so make sure that the message is not left in the queue
+        drain();
+        return true;
+    }
+
+    /**
+     * Processes a batch of notifications right away, unless a rollover is ongoing. In contrast to submit, the
+     * notifications are never queued, so the caller keeps the ownership of the batch while a rollover is ongoing.
+     *
+     * @param messages the notification messages
+     * @return true if the notifications were processed or false if a rollover is ongoing
+     */
+    public boolean tryProcess(List<NotificationMessageSecured> messages) {
+        activeWriters.incrementAndGet();
+        try {
+            if (rolloverOngoing.get())
+                return false;
+
+            processor.accept(messages);
+            return true;
+        } finally {
+            activeWriters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Marks the start of a rollover and waits for the notifications which are currently processed.
+     */
+    public void beginRollover() {
+        rolloverOngoing.set(true);
+        while (activeWriters.get() > 0)
+            LockSupport.parkNanos(100000);
+    }
+
+    /**
+     * Marks the end of a rollover and processes the notifications which were queued in the meantime.
+     *
+     * @return the number of the processed notifications
+     */
+    public int endRollover() {
+        rolloverOngoing.set(false);
+        return drain();
+    }
+
+    /**
+     * Processes the queued notifications, unless a rollover is ongoing or another thread is already draining.
+     * A batch which fails is queued again and the drain stops, so that it is retried with the next drain.
+     *
+     * @return the number of the processed notifications
+     */
+    public int drain() {
+        int processed = 0;
+
+        while (!queue.isEmpty() && draining.compareAndSet(false, true)) {
+            List<NotificationMessageSecured> batch = new ArrayList<>();
+            boolean failed = false;
+
+            activeWriters.incrementAndGet();
+            try {
+                NotificationMessageSecured message;
+
+                while (!rolloverOngoing.get() && batch.size() < DRAIN_BATCH_SIZE && (message = queue.poll()) != null)
+                    batch.add(message);
+
+                if (!batch.isEmpty()) {
+                    queueSize.addAndGet(-batch.size());
+                    processor.accept(batch);
+                    processed += batch.size();
+                }
+            } catch (RuntimeException e) {
+                log.warn("Exception thrown during processing " + batch.size() + " queued notifications, so they " +
+                        "are queued again", e);
+                queueSize.addAndGet(batch.size());
+                queue.addAll(batch);
+                failed = true;
+            } finally {
+                activeWriters.decrementAndGet();
+                draining.set(false);
+            }
+
+            if (failed || rolloverOngoing.get())
+                break;
+        }
+
+        return processed;
+    }
+
+    /**
+     * Discards all the queued notifications and resets the state of the handoff.
+     */
+    public void clear() {
+        rolloverOngoing.set(false);
+        queue.clear();
+        queueSize.set(0);
+    }
+}
@@ -17,7 +17,9 @@ import org.springframework.util.Assert;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 /**
  * <h1>RPC Server</h1>
@@ -89,8 +91,14 @@ public class RpcServer {
             return new ResourceUrlsResponse(HttpStatus.SC_INTERNAL_SERVER_ERROR, message, ids);
         }
 
+        // All the resources are fetched with a single query, loading only the fields which are needed below
+        Map<String, CramResource> resources = new HashMap<>();
+        for (CramResource resource : resourceRepository.findAllWithFields(new HashSet<>(resourceList),
+                ResourceRepository.URL_FIELDS))
+            resources.put(resource.getId(), resource);
+
         for (String resourceId : resourceList) {
-            CramResource resource = resourceRepository.findOne(resourceId);
+            CramResource resource = resources.get(resourceId);
             if (resource != null) {
 
                 AuthorizationResult authorizationResult = authorizationManager.checkResourceUrlRequest(resource,
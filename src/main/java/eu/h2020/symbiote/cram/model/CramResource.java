@@ -32,6 +32,9 @@ public class CramResource extends Resource {
     private List<SubIntervalViews> viewsInSubIntervals;
     private String platformId;
     private IAccessPolicySpecifier policySpecifier;
+    private Long lastUpdateEpoch;
+    private Long rolloverEpoch;
+    private Integer publishedViews;
 
     public CramResource() {
         // Empty constructor
@@ -57,6 +60,9 @@ public class CramResource extends Resource {
         setPlatformId(cramResource.getPlatformId());
         setViewsInSubIntervals(new ArrayList<>(cramResource.getViewsInSubIntervals()));
         setPolicySpecifier(cramResource.getPolicySpecifier());
+        setLastUpdateEpoch(cramResource.getLastUpdateEpoch());
+        setRolloverEpoch(cramResource.getRolloverEpoch());
+        setPublishedViews(cramResource.getPublishedViews());
     }
 
     public CoreResourceType getType() {
@@ -85,6 +91,15 @@ public class CramResource extends Resource {
     public IAccessPolicySpecifier getPolicySpecifier() { return policySpecifier; }
     public void setPolicySpecifier(IAccessPolicySpecifier policySpecifier) { this.policySpecifier = policySpecifier; }
 
+    public Long getLastUpdateEpoch() { return lastUpdateEpoch; }
+    public void setLastUpdateEpoch(Long lastUpdateEpoch) { this.lastUpdateEpoch = lastUpdateEpoch; }
+
+    public Long getRolloverEpoch() { return rolloverEpoch; }
+    public void setRolloverEpoch(Long rolloverEpoch) { this.rolloverEpoch = rolloverEpoch; }
+
+    public Integer getPublishedViews() { return publishedViews; }
+    public void setPublishedViews(Integer publishedViews) { this.publishedViews = publishedViews; }
+
     public void addViewsInSubIntervals(List<Date> timestamps, Long noSubIntervals, Long subIntervalDuration) {
 
         for (Date timestamp : timestamps) {
@@ -98,20 +113,120 @@ public class CramResource extends Resource {
         }
     }
 
+    /**
+     * @return true if the resource has subIntervals which start before startOfWindow and they have not been removed in
+     * the current epoch
+     */
+    public boolean hasExpiredSubIntervals(Date startOfWindow, long currentEpoch) {
+        if (viewsInSubIntervals == null || (lastUpdateEpoch != null && lastUpdateEpoch == currentEpoch))
+            return false;
+
+        for (SubIntervalViews subIntervalViews : viewsInSubIntervals) {
+            if (subIntervalViews.getStartOfInterval().before(startOfWindow))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the views of the subIntervals which start before startOfWindow
+     */
+    public int getExpiredViews(Date startOfWindow) {
+        int expiredViews = 0;
+
+        if (viewsInSubIntervals == null)
+            return expiredViews;
+
+        for (SubIntervalViews subIntervalViews : viewsInSubIntervals) {
+            if (subIntervalViews.getStartOfInterval().before(startOfWindow))
+                expiredViews += subIntervalViews.getViews();
+        }
+
+        return expiredViews;
+    }
+
+    /**
+     * @return the views of the subIntervals which start in [startOfWindow, endOfWindow). A null endOfWindow means
+     * no upper bound
+     */
+    public int getViewsInWindow(Date startOfWindow, Date endOfWindow) {
+        int views = 0;
+
+        if (viewsInSubIntervals == null)
+            return views;
+
+        for (SubIntervalViews subIntervalViews : viewsInSubIntervals) {
+            Date start = subIntervalViews.getStartOfInterval();
+            if (!start.before(startOfWindow) && (endOfWindow == null || start.before(endOfWindow)))
+                views += subIntervalViews.getViews();
+        }
+
+        return views;
+    }
+
     public boolean addSingleViewInSubIntervals(Date timestamp) {
-        boolean foundSubInterval = false;
+        SubIntervalViews subIntervalViews = getSubIntervalOf(timestamp);
+
+        if (subIntervalViews == null)
+            return false;
+
+        subIntervalViews.increaseViews(1);
+        viewsInDefinedInterval++;
+        return true;
+    }
+
+    public SubIntervalViews getSubIntervalOf(Date timestamp) {
+        if (viewsInSubIntervals == null || viewsInSubIntervals.isEmpty())
+            return null;
+
+        // The subIntervals are normally contiguous and of the same duration, so the subInterval of the timestamp is
+        // found by its offset from the first one. Otherwise, all of them are searched
+        SubIntervalViews first = viewsInSubIntervals.get(0);
+        long duration = first.getEndOfInterval().getTime() - first.getStartOfInterval().getTime();
+        long offset = timestamp.getTime() - first.getStartOfInterval().getTime();
+
+        if (duration > 0 && offset >= 0 && offset / duration < viewsInSubIntervals.size()) {
+            SubIntervalViews subIntervalViews = viewsInSubIntervals.get((int) (offset / duration));
+            if (subIntervalViews.belongsToSubInterval(timestamp))
+                return subIntervalViews;
+        }
 
         for (SubIntervalViews subIntervalViews : viewsInSubIntervals) {
+            if (subIntervalViews.belongsToSubInterval(timestamp))
+                return subIntervalViews;
+        }
 
-            if (subIntervalViews.belongsToSubInterval(timestamp)) {
-                foundSubInterval = true;
-                subIntervalViews.increaseViews(1);
-                viewsInDefinedInterval++;
-                break;
-            }
+        return null;
+    }
+
+    public SubIntervalViews getSubIntervalStartingAt(long startOfInterval) {
+        if (viewsInSubIntervals == null)
+            return null;
+
+        for (SubIntervalViews subIntervalViews : viewsInSubIntervals) {
+            if (subIntervalViews.getStartOfInterval().getTime() == startOfInterval)
+                return subIntervalViews;
         }
 
-        return foundSubInterval;
+        return null;
+    }
+
+    /**
+     * Rolls the subIntervals over and marks the resource with the rolloverEpoch, unless it has already been rolled
+     * over to it (e.g. by a rollover which was interrupted and then resumed). A null rolloverEpoch always rolls the
+     * resource over.
+     *
+     * @return false if the resource had already been rolled over to the rolloverEpoch
+     */
+    public boolean rolloverTo(Long rolloverEpoch, Long noSubIntervals, Long subIntervalDuration) {
+        if (rolloverEpoch != null && rolloverEpoch.equals(this.rolloverEpoch))
+            return false;
+
+        scheduleUpdateInResourceAccessStats(noSubIntervals, subIntervalDuration);
+        if (rolloverEpoch != null)
+            this.rolloverEpoch = rolloverEpoch;
+        return true;
     }
 
     public void scheduleUpdateInResourceAccessStats(Long noSubIntervals, Long subIntervalDuration) {
@@ -132,14 +247,23 @@ public class CramResource extends Resource {
 
     }
 
+    /**
+     * Appends the next subInterval and drops the oldest ones beyond noSubIntervals. The list stays the resident form
+     * of the window, since it is what is persisted and updated in place by the repository, so the oldest ones are
+     * dropped with a single shift of the list rather than one per subInterval.
+     */
     public void addNextSubIntervalView(SubIntervalViews nextSubIntervalViews, Long noSubIntervals) {
         viewsInSubIntervals.add(nextSubIntervalViews);
         viewsInDefinedInterval += nextSubIntervalViews.getViews();
 
-        while (viewsInSubIntervals.size() > noSubIntervals) {
-            viewsInDefinedInterval -= viewsInSubIntervals.get(0).getViews();
-            viewsInSubIntervals.remove(0);
-        }
+        int excess = (int) Math.max(0, viewsInSubIntervals.size() - noSubIntervals);
+        if (excess == 0)
+            return;
+
+        List<SubIntervalViews> expiredSubIntervals = viewsInSubIntervals.subList(0, excess);
+        for (SubIntervalViews subIntervalViews : expiredSubIntervals)
+            viewsInDefinedInterval -= subIntervalViews.getViews();
+        expiredSubIntervals.clear();
     }
 
     private SubIntervalViews createNextSubIntervalView(int sizeOfViewList, Long subIntervalDuration) {
@@ -0,0 +1,30 @@
+package eu.h2020.symbiote.cram.model;
+
+import java.util.Date;
+
+/**
+ * The lease which is held by the CRAM replica that runs the periodic jobs. There is a single lease document, whose
+ * id is LEADER_LEASE. Every time the lease passes to a new holder its fencingToken is incremented, so the work of a
+ * previous holder can be told apart from the work of the current one.
+ */
+public class LeaderLease extends CramPersistentVariables {
+
+    public static final String LEADER_LEASE = "LEADER_LEASE";
+
+    private String holderId;
+    private Date expiresAt;
+    private Long fencingToken;
+
+    public LeaderLease() {
+        // empty constructor
+    }
+
+    public String getHolderId() { return this.holderId; }
+    public void setHolderId(String holderId) { this.holderId = holderId; }
+
+    public Date getExpiresAt() { return this.expiresAt; }
+    public void setExpiresAt(Date expiresAt) { this.expiresAt = expiresAt; }
+
+    public Long getFencingToken() { return this.fencingToken; }
+    public void setFencingToken(Long fencingToken) { this.fencingToken = fencingToken; }
+}
@@ -0,0 +1,31 @@
+package eu.h2020.symbiote.cram.model;
+
+/**
+ * Projection of a {@link CramResource} on the fields which are needed for its popularity update. It is read directly
+ * from the database documents, without the mapping of the whole resource.
+ */
+public class ResourcePopularity {
+
+    private String id;
+    private Integer viewsInDefinedInterval;
+    private Integer publishedViews;
+
+    public ResourcePopularity() {
+        // empty constructor
+    }
+
+    public ResourcePopularity(String id, Integer viewsInDefinedInterval, Integer publishedViews) {
+        this.id = id;
+        this.viewsInDefinedInterval = viewsInDefinedInterval;
+        this.publishedViews = publishedViews;
+    }
+
+    public String getId() { return this.id; }
+    public void setId(String id) { this.id = id; }
+
+    public Integer getViewsInDefinedInterval() { return this.viewsInDefinedInterval; }
+    public void setViewsInDefinedInterval(Integer viewsInDefinedInterval) { this.viewsInDefinedInterval = viewsInDefinedInterval; }
+
+    public Integer getPublishedViews() { return this.publishedViews; }
+    public void setPublishedViews(Integer publishedViews) { this.publishedViews = publishedViews; }
+}
@@ -0,0 +1,55 @@
+package eu.h2020.symbiote.cram.model;
+
+/**
+ * Progress of the rollover of the resources, which is persisted while the rollover runs, so that a rollover which
+ * was interrupted (e.g. by a crash) is resumed instead of being started over. Every rollover moves the resources to
+ * the next rolloverEpoch and marks each of them with it, so a resumed rollover skips the resources it has already
+ * rolled over. The lastProcessedId is the last resource of the last written batch, which (with a partitioned
+ * rollover) is not necessarily the greatest id written so far.
+ */
+public class RolloverCheckpoint extends CramPersistentVariables {
+
+    public static final String ROLLOVER_CHECKPOINT = "ROLLOVER_CHECKPOINT";
+
+    private Long rolloverEpoch;
+    private String lastProcessedId;
+    private Long processedResources;
+    private Boolean completed;
+
+    public RolloverCheckpoint() {
+        this.rolloverEpoch = 0L;
+        this.processedResources = 0L;
+        this.completed = true;
+        this.variableName = ROLLOVER_CHECKPOINT;
+    }
+
+    public Long getRolloverEpoch() { return this.rolloverEpoch; }
+    public void setRolloverEpoch(Long rolloverEpoch) { this.rolloverEpoch = rolloverEpoch; }
+
+    public String getLastProcessedId() { return this.lastProcessedId; }
+    public void setLastProcessedId(String lastProcessedId) { this.lastProcessedId = lastProcessedId; }
+
+    public Long getProcessedResources() { return this.processedResources; }
+    public void setProcessedResources(Long processedResources) { this.processedResources = processedResources; }
+
+    public Boolean isCompleted() { return this.completed; }
+    public void setCompleted(Boolean completed) { this.completed = completed; }
+
+    /**
+     * Starts the rollover to the next rolloverEpoch
+     */
+    public void startNextRollover() {
+        this.rolloverEpoch++;
+        this.lastProcessedId = null;
+        this.processedResources = 0L;
+        this.completed = false;
+    }
+
+    /**
+     * Records a batch of the resources which have been rolled over
+     */
+    public void recordBatch(String lastProcessedId, int noResources) {
+        this.lastProcessedId = lastProcessedId;
+        this.processedResources += noResources;
+    }
+}
@@ -8,6 +8,7 @@ import org.springframework.stereotype.Repository;
  * Created by lebro_000 on 6/30/2017.
  */
 @Repository
-public interface CramPersistentVariablesRepository extends MongoRepository<CramPersistentVariables, String> {
+public interface CramPersistentVariablesRepository extends MongoRepository<CramPersistentVariables, String>,
+        CramPersistentVariablesRepositoryCustom {
     CramPersistentVariables findByVariableName(String variableName);
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+package eu.h2020.symbiote.cram.repository;
+
+import eu.h2020.symbiote.cram.model.LeaderLease;
+
+/**
+ * Atomic operations on the {@link LeaderLease}, which is kept alongside the other CramPersistentVariables.
+ */
+public interface CramPersistentVariablesRepositoryCustom {
+
+    /**
+     * Renews the lease if it is held by holderId or acquires it if it has expired, in a single atomic update. The
+     * fencingToken is incremented only when the lease passes to holderId.
+     *
+     * @return the lease held by holderId or null if it is held by another replica
+     */
+    LeaderLease acquireLease(String holderId, long leaseDuration);
+
+    /**
+     * @return true if the lease is still held by holderId with the given fencingToken
+     */
+    boolean holdsLease(String holderId, long fencingToken);
+
+    /**
+     * Lets the lease expire immediately if it is held by holderId, so that another replica can acquire it
+     */
+    void releaseLease(String holderId);
+}
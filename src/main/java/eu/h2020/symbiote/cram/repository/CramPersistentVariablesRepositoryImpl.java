@@ -0,0 +1,84 @@
+package eu.h2020.symbiote.cram.repository;
+
+import eu.h2020.symbiote.cram.model.CramPersistentVariables;
+import eu.h2020.symbiote.cram.model.LeaderLease;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.util.Assert;
+
+import java.util.Date;
+
+/**
+ * Implementation of the {@link CramPersistentVariablesRepositoryCustom} operations. It is picked up by Spring Data
+ * because of the "Impl" postfix.
+ */
+public class CramPersistentVariablesRepositoryImpl implements CramPersistentVariablesRepositoryCustom {
+
+    private static Log log = LogFactory.getLog(CramPersistentVariablesRepositoryImpl.class);
+
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    public CramPersistentVariablesRepositoryImpl(MongoTemplate mongoTemplate) {
+        Assert.notNull(mongoTemplate,"mongoTemplate can not be null!");
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public LeaderLease acquireLease(String holderId, long leaseDuration) {
+        Date now = new Date();
+        Date expiresAt = new Date(now.getTime() + leaseDuration);
+        FindAndModifyOptions options = FindAndModifyOptions.options().returnNew(true);
+
+        // Renewal by the current holder, which keeps the fencingToken
+        Query renewQuery = new Query(Criteria.where("id").is(LeaderLease.LEADER_LEASE).and("holderId").is(holderId));
+        LeaderLease lease = mongoTemplate.findAndModify(renewQuery, new Update().set("expiresAt", expiresAt),
+                options, LeaderLease.class, getCollectionName());
+        if (lease != null)
+            return lease;
+
+        // Acquisition of an expired or released lease. If the lease does not match because it is held by another
+        // replica, the upsert fails on the duplicate id
+        Query acquireQuery = new Query(Criteria.where("id").is(LeaderLease.LEADER_LEASE)
+                .orOperator(Criteria.where("expiresAt").lt(now), Criteria.where("holderId").is(null)));
+        Update acquireUpdate = new Update()
+                .set("holderId", holderId)
+                .set("expiresAt", expiresAt)
+                .inc("fencingToken", 1)
+                .setOnInsert("variableName", LeaderLease.LEADER_LEASE)
+                .setOnInsert("_class", LeaderLease.class.getName());
+
+        try {
+            return mongoTemplate.findAndModify(acquireQuery, acquireUpdate, options.upsert(true),
+                    LeaderLease.class, getCollectionName());
+        } catch (DuplicateKeyException e) {
+            log.trace("The lease is held by another replica");
+            return null;
+        }
+    }
+
+    @Override
+    public boolean holdsLease(String holderId, long fencingToken) {
+        Query query = new Query(Criteria.where("id").is(LeaderLease.LEADER_LEASE).and("holderId").is(holderId)
+                .and("fencingToken").is(fencingToken));
+        return mongoTemplate.exists(query, LeaderLease.class, getCollectionName());
+    }
+
+    @Override
+    public void releaseLease(String holderId) {
+        Query query = new Query(Criteria.where("id").is(LeaderLease.LEADER_LEASE).and("holderId").is(holderId));
+        mongoTemplate.updateFirst(query, new Update().unset("holderId").set("expiresAt", new Date(0)),
+                LeaderLease.class, getCollectionName());
+    }
+
+    private String getCollectionName() {
+        return mongoTemplate.getCollectionName(CramPersistentVariables.class);
+    }
+}
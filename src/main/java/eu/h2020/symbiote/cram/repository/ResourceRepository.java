@@ -8,5 +8,5 @@ import org.springframework.stereotype.Repository;
  * Created by mateuszl on 22.09.2016.
  */
 @Repository
-public interface ResourceRepository extends MongoRepository<CramResource, String> {
+public interface ResourceRepository extends MongoRepository<CramResource, String>, ResourceRepositoryCustom {
 }
\ No newline at end of file
@@ -0,0 +1,186 @@
+package eu.h2020.symbiote.cram.repository;
+
+import eu.h2020.symbiote.cram.model.CramResource;
+import eu.h2020.symbiote.cram.model.ResourcePopularity;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Custom operations of the {@link ResourceRepository} which are implemented directly on top of the MongoTemplate.
+ */
+public interface ResourceRepositoryCustom {
+
+    /**
+     * The fields which are needed for the views of the resources
+     */
+    String[] VIEWS_FIELDS = {"viewsInDefinedInterval", "viewsInSubIntervals", "lastUpdateEpoch", "rolloverEpoch",
+            "publishedViews"};
+
+    /**
+     * The fields which are needed for providing the urls of the resources
+     */
+    String[] URL_FIELDS = {"resourceUrl", "policySpecifier", "platformId"};
+
+    /**
+     * Increases the views of the specified subIntervals by issuing a single bulk of targeted $inc updates.
+     * Both the views of the matching subInterval and the viewsInDefinedInterval of the resource are increased.
+     * Subintervals which do not exist (anymore) are silently ignored.
+     *
+     * @param viewsPerResource the views to be added per resource id and per start of the subInterval
+     * @return the number of the modified subIntervals
+     */
+    int incrementViewsInSubIntervals(Map<String, Map<Date, Integer>> viewsPerResource);
+
+    /**
+     * Like {@link #incrementViewsInSubIntervals(Map)}, but it also reports the views which were not applied, i.e. the
+     * updates which failed with a write error and the ones which did not match any subInterval. The unmatched updates
+     * are only looked up (with a single read) when the matched count falls short, by checking which of the
+     * subIntervals exist right after the bulk. So an update whose subInterval is created in between is considered
+     * applied.
+     *
+     * @param viewsPerResource the views to be added per resource id and per start of the subInterval
+     * @param notAppliedViews collects the views which were not applied, per resource id and per start of the subInterval
+     * @return the number of the modified subIntervals
+     */
+    int incrementViewsInSubIntervals(Map<String, Map<Date, Integer>> viewsPerResource,
+                                     Map<String, Map<Date, Integer>> notAppliedViews);
+
+    /**
+     * Adds views to the subIntervals of the global grid (see SubIntervalClock), creating the missing ones without
+     * reading the resources. For every subInterval, an ordered bulk first $push-es an empty subInterval, which is
+     * applied only if the resource does not have a subInterval with the same start yet, and then it $inc-s its views
+     * like {@link #incrementViewsInSubIntervals(Map)}. So a subInterval is created only once, even if several
+     * replicas add its first views concurrently, and none of the concurrent $inc updates is overwritten.
+     * The pushed subIntervals are kept sorted by their start and only the last maxSubIntervals of them are kept.
+     *
+     * @param viewsPerResource the views to be added per resource id and per start of the subInterval on the grid
+     * @param subIntervalDuration the duration of the subIntervals
+     * @param maxSubIntervals the maximum number of the subIntervals which are kept, when one is created
+     */
+    void incrementViewsInAlignedSubIntervals(Map<String, Map<Date, Integer>> viewsPerResource,
+                                             long subIntervalDuration, int maxSubIntervals);
+
+    /**
+     * Removes the subIntervals which start before startOfWindow from the stored resources which have not been updated
+     * in the current epoch. Only the resources which actually have such subIntervals are written, with a single bulk
+     * of targeted $pull updates, which are applied only if no one else has already expired the resource in the
+     * current epoch, so they do not interfere with the concurrent $inc updates of the views. The given instances are
+     * left intact, so their views have to be read within the window (see CramResource.getViewsInWindow).
+     *
+     * @param cramResources the loaded resources
+     * @param startOfWindow the start of the oldest subInterval of the current window
+     * @param currentEpoch the current epoch of the subIntervals
+     * @return the number of the expired resources
+     */
+    int expireSubIntervals(Collection<CramResource> cramResources, Date startOfWindow, long currentEpoch);
+
+    /**
+     * Rolls the subIntervals of all the resources over inside the database, without loading them. A single multi
+     * update appends an empty subInterval after the last one of every resource, keeps only the last noSubIntervals
+     * subIntervals and recomputes viewsInDefinedInterval from them. It requires MongoDB 4.2 or later, since the update
+     * is expressed as an aggregation pipeline.
+     *
+     * If rolloverEpoch is set, the resources which have already been rolled over to it are skipped and the rest are
+     * marked with it, so the update can be repeated safely after it was interrupted.
+     *
+     * @param noSubIntervals the number of the subIntervals to be kept
+     * @param subIntervalDuration the duration of the new subIntervals
+     * @param rolloverEpoch the epoch which the resources are rolled over to (may be null)
+     * @return the number of the rolled over resources
+     */
+    int rolloverSubIntervals(long noSubIntervals, long subIntervalDuration, Long rolloverEpoch);
+
+    /**
+     * @return true if the database can apply updates which are expressed as aggregation pipelines (MongoDB 4.2 or
+     * later), which {@link #rolloverSubIntervals(long, long, Long)} requires
+     */
+    boolean supportsPipelineUpdates();
+
+    /**
+     * Streams all the resources through a database cursor, so that only batchSize of them are held in memory at a
+     * time. The stream has to be closed in order to release the cursor.
+     *
+     * @param batchSize the number of the resources which are fetched with every round trip
+     * @param fields the fields to be loaded (besides the id) or none for the whole resources
+     * @return the stream of the resources
+     */
+    Stream<CramResource> streamAll(int batchSize, String... fields);
+
+    /**
+     * Finds the resources with the given ids with a single $in query.
+     *
+     * @param ids the ids of the resources
+     * @param fields the fields to be loaded (besides the id) or none for the whole resources
+     * @return the found resources, in no particular order
+     */
+    List<CramResource> findAllWithFields(Collection<String> ids, String... fields);
+
+    /**
+     * Traverses all the resources in batches of batchSize resources (see {@link #streamAll(int, String...)}).
+     *
+     * @return the number of the traversed resources
+     */
+    int forEachBatch(int batchSize, Consumer<List<CramResource>> consumer, String... fields);
+
+    /**
+     * Traverses the resources which have not been rolled over to rolloverEpoch yet in batches of batchSize resources,
+     * so that an interrupted rollover is resumed with the resources it had not reached.
+     *
+     * @return the number of the traversed resources
+     */
+    int forEachBatchNotRolledOver(long rolloverEpoch, int batchSize, Consumer<List<CramResource>> consumer,
+                                  String... fields);
+
+    /**
+     * Traverses the popularity of all the resources in batches of batchSize. Only the viewsInDefinedInterval and the
+     * publishedViews of the resources are fetched and they are read straight from the documents into
+     * {@link ResourcePopularity} instances, without mapping the resources.
+     *
+     * @return the number of the traversed resources
+     */
+    int forEachPopularityBatch(int batchSize, Consumer<List<ResourcePopularity>> consumer);
+
+    /**
+     * Stores the viewsInSubIntervals and viewsInDefinedInterval of the resources with a single bulk of $set updates,
+     * leaving the rest of their fields intact. The resources may have been loaded with the VIEWS_FIELDS only.
+     * The rolloverEpoch of a resource is stored too, if it is set, and then the resource is not updated if it has
+     * already been rolled over to that epoch.
+     *
+     * @return the number of the matched resources
+     */
+    int saveViews(Collection<CramResource> cramResources);
+
+    /**
+     * Stores the views of the resources like {@link #saveViews(Collection)}, but only if the viewsInDefinedInterval
+     * of a resource is still the one in readViews, so that the views which were added (with $inc) since the
+     * resource was read are not overwritten.
+     *
+     * @param readViews the viewsInDefinedInterval of every resource, as it was read before its views were changed
+     * @return the number of the matched resources
+     */
+    int saveViews(Collection<CramResource> cramResources, Map<String, Integer> readViews);
+
+    /**
+     * Stores the viewsInSubIntervals and viewsInDefinedInterval of a resource with a $set update, but only if its
+     * viewsInDefinedInterval is still readViews and its rolloverEpoch is still the one of the given instance, i.e. if
+     * no views were added (with $inc) and the resource was not rolled over since it was read.
+     *
+     * @param readViews the viewsInDefinedInterval of the resource, as it was read before its views were changed
+     * @return false if the resource changed since it was read (or it does not exist anymore)
+     */
+    boolean saveViewsIfUnchanged(CramResource cramResource, Integer readViews);
+
+    /**
+     * Stores the views which were last published to the Search for every resource with a single bulk of $set
+     * updates, so that only the resources whose views change afterwards are published again.
+     *
+     * @param publishedViews the published views per resource id
+     * @return the number of the matched resources
+     */
+    int savePublishedViews(Map<String, Integer> publishedViews);
+}
@@ -0,0 +1,456 @@
+package eu.h2020.symbiote.cram.repository;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteResult;
+import eu.h2020.symbiote.cram.model.CramResource;
+import eu.h2020.symbiote.cram.model.ResourcePopularity;
+import eu.h2020.symbiote.cram.model.SubIntervalViews;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.InvalidDataAccessApiUsageException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.util.Assert;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Implementation of the {@link ResourceRepositoryCustom} operations. It is picked up by Spring Data
+ * because of the "Impl" postfix.
+ */
+public class ResourceRepositoryImpl implements ResourceRepositoryCustom {
+
+    private static Log log = LogFactory.getLog(ResourceRepositoryImpl.class);
+
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    public ResourceRepositoryImpl(MongoTemplate mongoTemplate) {
+        Assert.notNull(mongoTemplate,"mongoTemplate can not be null!");
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public int incrementViewsInSubIntervals(Map<String, Map<Date, Integer>> viewsPerResource) {
+        return incrementViewsInSubIntervals(viewsPerResource, new HashMap<>());
+    }
+
+    @Override
+    public int incrementViewsInSubIntervals(Map<String, Map<Date, Integer>> viewsPerResource,
+                                            Map<String, Map<Date, Integer>> notAppliedViews) {
+        if (viewsPerResource == null || viewsPerResource.isEmpty())
+            return 0;
+
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, CramResource.class);
+        // The resource id and the start of the subInterval of every update, in the order of the bulk
+        List<Map.Entry<String, Date>> updates = new ArrayList<>();
+
+        for (Map.Entry<String, Map<Date, Integer>> resourceViews : viewsPerResource.entrySet()) {
+            for (Map.Entry<Date, Integer> subIntervalViews : resourceViews.getValue().entrySet()) {
+                if (subIntervalViews.getValue() == null || subIntervalViews.getValue() == 0)
+                    continue;
+
+                Query query = new Query(Criteria.where("id").is(resourceViews.getKey())
+                        .and("viewsInSubIntervals.startOfInterval").is(subIntervalViews.getKey()));
+                Update update = new Update()
+                        .inc("viewsInSubIntervals.$.views", subIntervalViews.getValue())
+                        .inc("viewsInDefinedInterval", subIntervalViews.getValue());
+                bulkOperations.updateOne(query, update);
+                updates.add(new AbstractMap.SimpleImmutableEntry<>(resourceViews.getKey(), subIntervalViews.getKey()));
+            }
+        }
+
+        if (updates.isEmpty())
+            return 0;
+
+        BulkWriteResult result;
+        Set<Integer> failedUpdates = new HashSet<>();
+        try {
+            result = bulkOperations.execute();
+        } catch (BulkOperationException e) {
+            // The bulk is unordered, so the rest of the updates were applied
+            log.warn("Bulk update of views: " + e.getErrors().size() + " of " + updates.size() + " updates failed", e);
+            result = e.getResult();
+            for (BulkWriteError error : e.getErrors())
+                failedUpdates.add(error.getIndex());
+        }
+
+        log.debug("Bulk update of views: requested = " + updates.size() + ", matched = " + result.getMatchedCount());
+
+        Map<String, Set<Date>> existingSubIntervals = result.getMatchedCount() + failedUpdates.size() < updates.size() ?
+                findSubIntervalStarts(viewsPerResource.keySet()) : null;
+
+        for (int i = 0; i < updates.size(); i++) {
+            String resourceId = updates.get(i).getKey();
+            Date startOfInterval = updates.get(i).getValue();
+
+            boolean unmatched = existingSubIntervals != null && !existingSubIntervals
+                    .getOrDefault(resourceId, Collections.emptySet()).contains(startOfInterval);
+            if (failedUpdates.contains(i) || unmatched)
+                notAppliedViews.computeIfAbsent(resourceId, k -> new HashMap<>())
+                        .put(startOfInterval, viewsPerResource.get(resourceId).get(startOfInterval));
+        }
+
+        return result.getMatchedCount();
+    }
+
+    /**
+     * @return the starts of the subIntervals per resource id
+     */
+    private Map<String, Set<Date>> findSubIntervalStarts(Collection<String> resourceIds) {
+        Map<String, Set<Date>> subIntervalStarts = new HashMap<>();
+
+        try (DBCursor cursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(CramResource.class))
+                .find(new BasicDBObject("_id", new BasicDBObject("$in", new ArrayList<>(resourceIds))),
+                        new BasicDBObject("viewsInSubIntervals.startOfInterval", 1))) {
+            while (cursor.hasNext()) {
+                DBObject dbObject = cursor.next();
+                Set<Date> starts = new HashSet<>();
+                Object subIntervals = dbObject.get("viewsInSubIntervals");
+
+                if (subIntervals instanceof List) {
+                    for (Object subInterval : (List<?>) subIntervals) {
+                        if (subInterval instanceof DBObject)
+                            starts.add((Date) ((DBObject) subInterval).get("startOfInterval"));
+                    }
+                }
+                subIntervalStarts.put(dbObject.get("_id").toString(), starts);
+            }
+        }
+
+        return subIntervalStarts;
+    }
+
+    @Override
+    public void incrementViewsInAlignedSubIntervals(Map<String, Map<Date, Integer>> viewsPerResource,
+                                                    long subIntervalDuration, int maxSubIntervals) {
+        if (viewsPerResource == null || viewsPerResource.isEmpty())
+            return;
+
+        // The bulk is ordered, so that the $inc of every subInterval follows its $push
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, CramResource.class);
+        int noUpdates = 0;
+
+        for (Map.Entry<String, Map<Date, Integer>> resourceViews : viewsPerResource.entrySet()) {
+            for (Map.Entry<Date, Integer> subIntervalViews : resourceViews.getValue().entrySet()) {
+                if (subIntervalViews.getValue() == null || subIntervalViews.getValue() == 0)
+                    continue;
+
+                Date startOfInterval = subIntervalViews.getKey();
+                SubIntervalViews emptySubInterval = new SubIntervalViews(startOfInterval,
+                        new Date(startOfInterval.getTime() + subIntervalDuration), 0);
+
+                Query missingSubInterval = new Query(Criteria.where("id").is(resourceViews.getKey())
+                        .and("viewsInSubIntervals.startOfInterval").ne(startOfInterval));
+                Update push = new Update().push("viewsInSubIntervals")
+                        .sort(new Sort(Sort.Direction.ASC, "startOfInterval"))
+                        .slice(-maxSubIntervals)
+                        .each(emptySubInterval);
+                bulkOperations.updateOne(missingSubInterval, push);
+
+                Query subInterval = new Query(Criteria.where("id").is(resourceViews.getKey())
+                        .and("viewsInSubIntervals.startOfInterval").is(startOfInterval));
+                Update increment = new Update()
+                        .inc("viewsInSubIntervals.$.views", subIntervalViews.getValue())
+                        .inc("viewsInDefinedInterval", subIntervalViews.getValue());
+                bulkOperations.updateOne(subInterval, increment);
+                noUpdates++;
+            }
+        }
+
+        if (noUpdates == 0)
+            return;
+
+        BulkWriteResult result = bulkOperations.execute();
+        log.debug("Bulk update of views in new subIntervals: requested = " + noUpdates + ", modified = " +
+                result.getModifiedCount());
+    }
+
+    @Override
+    public int expireSubIntervals(Collection<CramResource> cramResources, Date startOfWindow, long currentEpoch) {
+        if (cramResources == null || cramResources.isEmpty())
+            return 0;
+
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, CramResource.class);
+        int noUpdates = 0;
+
+        for (CramResource cramResource : cramResources) {
+            if (!cramResource.hasExpiredSubIntervals(startOfWindow, currentEpoch))
+                continue;
+
+            int expiredViews = cramResource.getExpiredViews(startOfWindow);
+
+            Query query = new Query(Criteria.where("id").is(cramResource.getId())
+                    .and("lastUpdateEpoch").ne(currentEpoch));
+            Update update = new Update()
+                    .pull("viewsInSubIntervals",
+                            new BasicDBObject("startOfInterval", new BasicDBObject("$lt", startOfWindow)))
+                    .inc("viewsInDefinedInterval", -expiredViews)
+                    .set("lastUpdateEpoch", currentEpoch);
+            bulkOperations.updateOne(query, update);
+            noUpdates++;
+        }
+
+        if (noUpdates == 0)
+            return 0;
+
+        BulkWriteResult result = bulkOperations.execute();
+        log.debug("Bulk expiration of subIntervals: requested = " + noUpdates + ", matched = " + result.getMatchedCount());
+        return result.getMatchedCount();
+    }
+
+    @Override
+    public int rolloverSubIntervals(long noSubIntervals, long subIntervalDuration, Long rolloverEpoch) {
+        // The new subInterval starts at the end of the last one, like in CramResource.scheduleUpdateInResourceAccessStats
+        BasicDBObject lastEnd = new BasicDBObject("$let", new BasicDBObject()
+                .append("vars", new BasicDBObject("last",
+                        new BasicDBObject("$arrayElemAt", list("$viewsInSubIntervals", -1))))
+                .append("in", "$$last.endOfInterval"));
+        BasicDBObject nextSubInterval = new BasicDBObject()
+                .append("startOfInterval", "$$end")
+                .append("endOfInterval", new BasicDBObject("$add", list("$$end", subIntervalDuration)))
+                .append("views", 0);
+        BasicDBObject rolledOverSubIntervals = new BasicDBObject("$let", new BasicDBObject()
+                .append("vars", new BasicDBObject("end", lastEnd))
+                .append("in", new BasicDBObject("$slice", list(
+                        new BasicDBObject("$concatArrays", list("$viewsInSubIntervals", list(nextSubInterval))),
+                        -noSubIntervals))));
+
+        BasicDBList pipeline = list(
+                new BasicDBObject("$addFields", new BasicDBObject("viewsInSubIntervals", rolledOverSubIntervals)),
+                new BasicDBObject("$addFields", new BasicDBObject("viewsInDefinedInterval",
+                        new BasicDBObject("$sum", "$viewsInSubIntervals.views"))));
+        BasicDBObject filter = new BasicDBObject("viewsInSubIntervals.0", new BasicDBObject("$exists", true));
+
+        if (rolloverEpoch != null) {
+            pipeline.add(new BasicDBObject("$addFields", new BasicDBObject("rolloverEpoch",
+                    new BasicDBObject("$literal", rolloverEpoch))));
+            filter.append("rolloverEpoch", new BasicDBObject("$ne", rolloverEpoch));
+        }
+
+        BasicDBObject update = new BasicDBObject()
+                .append("q", filter)
+                .append("u", pipeline)
+                .append("multi", true);
+        BasicDBObject command = new BasicDBObject("update", mongoTemplate.getCollectionName(CramResource.class))
+                .append("updates", list(update));
+
+        CommandResult result = mongoTemplate.executeCommand(command);
+        result.throwOnError();
+        if (result.get("writeErrors") != null)
+            throw new InvalidDataAccessApiUsageException("The server-side rollover of subIntervals failed: " +
+                    result.get("writeErrors"));
+
+        log.debug("Server-side rollover of subIntervals: matched = " + result.getInt("n") +
+                ", modified = " + result.getInt("nModified"));
+        return result.getInt("nModified");
+    }
+
+    @Override
+    public boolean supportsPipelineUpdates() {
+        CommandResult buildInfo = mongoTemplate.executeCommand(new BasicDBObject("buildInfo", 1));
+        buildInfo.throwOnError();
+
+        Object versionArray = buildInfo.get("versionArray");
+        if (!(versionArray instanceof List) || ((List<?>) versionArray).size() < 2)
+            return false;
+
+        int major = ((Number) ((List<?>) versionArray).get(0)).intValue();
+        int minor = ((Number) ((List<?>) versionArray).get(1)).intValue();
+        log.debug("The version of the database is " + buildInfo.get("version"));
+        return major > 4 || (major == 4 && minor >= 2);
+    }
+
+    @Override
+    public Stream<CramResource> streamAll(int batchSize, String... fields) {
+        return stream(new Query(), batchSize, fields);
+    }
+
+    @Override
+    public int forEachBatch(int batchSize, Consumer<List<CramResource>> consumer, String... fields) {
+        try (Stream<CramResource> cramResources = streamAll(batchSize, fields)) {
+            return forEachBatch(cramResources, batchSize, consumer);
+        }
+    }
+
+    @Override
+    public int forEachBatchNotRolledOver(long rolloverEpoch, int batchSize, Consumer<List<CramResource>> consumer,
+                                         String... fields) {
+        Query query = new Query(Criteria.where("rolloverEpoch").ne(rolloverEpoch));
+
+        try (Stream<CramResource> cramResources = stream(query, batchSize, fields)) {
+            return forEachBatch(cramResources, batchSize, consumer);
+        }
+    }
+
+    @Override
+    public List<CramResource> findAllWithFields(Collection<String> ids, String... fields) {
+        Query query = new Query(Criteria.where("_id").in(ids));
+        for (String field : fields)
+            query.fields().include(field);
+
+        return mongoTemplate.find(query, CramResource.class);
+    }
+
+    @Override
+    public int forEachPopularityBatch(int batchSize, Consumer<List<ResourcePopularity>> consumer) {
+        DBObject fields = new BasicDBObject("viewsInDefinedInterval", 1).append("publishedViews", 1);
+        List<ResourcePopularity> batch = new ArrayList<>(batchSize);
+        int noResources = 0;
+
+        try (DBCursor cursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(CramResource.class))
+                .find(new BasicDBObject(), fields)
+                .batchSize(batchSize)) {
+            while (cursor.hasNext()) {
+                DBObject dbObject = cursor.next();
+                batch.add(new ResourcePopularity(dbObject.get("_id").toString(),
+                        toInteger(dbObject.get("viewsInDefinedInterval")), toInteger(dbObject.get("publishedViews"))));
+
+                if (batch.size() == batchSize) {
+                    consumer.accept(batch);
+                    noResources += batch.size();
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            consumer.accept(batch);
+            noResources += batch.size();
+        }
+
+        return noResources;
+    }
+
+    private Stream<CramResource> stream(Query query, int batchSize, String... fields) {
+        for (String field : fields)
+            query.fields().include(field);
+
+        DBCursor cursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(CramResource.class))
+                .find(query.getQueryObject(), query.getFieldsObject())
+                .batchSize(batchSize);
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor.iterator(),
+                Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .map(dbObject -> mongoTemplate.getConverter().read(CramResource.class, dbObject))
+                .onClose(cursor::close);
+    }
+
+    private static int forEachBatch(Stream<CramResource> cramResources, int batchSize,
+                                    Consumer<List<CramResource>> consumer) {
+        List<CramResource> batch = new ArrayList<>(batchSize);
+        int noResources = 0;
+
+        for (Iterator<CramResource> it = cramResources.iterator(); it.hasNext(); ) {
+            batch.add(it.next());
+
+            if (batch.size() == batchSize) {
+                consumer.accept(batch);
+                noResources += batch.size();
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            consumer.accept(batch);
+            noResources += batch.size();
+        }
+
+        return noResources;
+    }
+
+    @Override
+    public int saveViews(Collection<CramResource> cramResources) {
+        return saveViews(cramResources, null);
+    }
+
+    @Override
+    public int saveViews(Collection<CramResource> cramResources, Map<String, Integer> readViews) {
+        if (cramResources == null || cramResources.isEmpty())
+            return 0;
+
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, CramResource.class);
+
+        for (CramResource cramResource : cramResources) {
+            Query query = new Query(Criteria.where("id").is(cramResource.getId()));
+            if (readViews != null)
+                query.addCriteria(Criteria.where("viewsInDefinedInterval").is(readViews.get(cramResource.getId())));
+
+            Update update = new Update()
+                    .set("viewsInSubIntervals", cramResource.getViewsInSubIntervals())
+                    .set("viewsInDefinedInterval", cramResource.getViewsInDefinedInterval());
+
+            if (cramResource.getRolloverEpoch() != null) {
+                query.addCriteria(Criteria.where("rolloverEpoch").ne(cramResource.getRolloverEpoch()));
+                update.set("rolloverEpoch", cramResource.getRolloverEpoch());
+            }
+            bulkOperations.updateOne(query, update);
+        }
+
+        return bulkOperations.execute().getMatchedCount();
+    }
+
+    @Override
+    public boolean saveViewsIfUnchanged(CramResource cramResource, Integer readViews) {
+        Query query = new Query(Criteria.where("id").is(cramResource.getId())
+                .and("viewsInDefinedInterval").is(readViews)
+                .and("rolloverEpoch").is(cramResource.getRolloverEpoch()));
+        Update update = new Update()
+                .set("viewsInSubIntervals", cramResource.getViewsInSubIntervals())
+                .set("viewsInDefinedInterval", cramResource.getViewsInDefinedInterval());
+
+        return mongoTemplate.updateFirst(query, update, CramResource.class).getN() > 0;
+    }
+
+    @Override
+    public int savePublishedViews(Map<String, Integer> publishedViews) {
+        if (publishedViews == null || publishedViews.isEmpty())
+            return 0;
+
+        BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, CramResource.class);
+
+        for (Map.Entry<String, Integer> resourceViews : publishedViews.entrySet()) {
+            Query query = new Query(Criteria.where("id").is(resourceViews.getKey()));
+            bulkOperations.updateOne(query, new Update().set("publishedViews", resourceViews.getValue()));
+        }
+
+        return bulkOperations.execute().getMatchedCount();
+    }
+
+    private static Integer toInteger(Object value) {
+        return value instanceof Number ? ((Number) value).intValue() : null;
+    }
+
+    private static BasicDBList list(Object... elements) {
+        BasicDBList list = new BasicDBList();
+        for (Object element : elements)
+            list.add(element);
+        return list;
+    }
+}
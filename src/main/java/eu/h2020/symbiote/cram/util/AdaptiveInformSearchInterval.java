@@ -0,0 +1,147 @@
+package eu.h2020.symbiote.cram.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Adapts the interval of the popularity updates to the changes of the views, when
+ * cram.popularity.adaptiveInterval.enabled is set. The {@link PopularityUpdater} asks every minInterval whether the
+ * current interval has passed since the last update. Every successful update reports how many resources it published
+ * with changed views and, with cram.popularity.topK.enabled, the top k resources it ranked, both taken from the
+ * stored views of all the resources. If at least changedResourcesThreshold resources changed or the ranking of the
+ * top k resources has changed by at least rankChangeThreshold since the previous update, the interval drops to
+ * minInterval. Otherwise it is doubled, up to maxInterval. The interval starts at informSearchInterval.
+ *
+ * The change of the ranking is the Spearman footrule distance of the top k lists, normalized to [0, 1].
+ */
+@Component
+public class AdaptiveInformSearchInterval {
+
+    private static Log log = LogFactory.getLog(AdaptiveInformSearchInterval.class);
+
+    static final String INTERVAL_METRIC = "gauge.cram.popularity.informSearchInterval";
+
+    private Boolean enabled;
+    private Long minInterval;
+    private Long maxInterval;
+    private Integer changedResourcesThreshold;
+    private Double rankChangeThreshold;
+    private TopKTracker topKTracker;
+    private GaugeService gaugeService;
+
+    private long interval;
+    private long lastUpdate;
+    private List<String> lastTopK = Collections.emptyList();
+
+    @Autowired
+    public AdaptiveInformSearchInterval(@Value("${cram.popularity.adaptiveInterval.enabled}") Boolean enabled,
+                                        @Qualifier("informSearchInterval") Long informSearchInterval,
+                                        @Qualifier("informSearchMinInterval") Long minInterval,
+                                        @Qualifier("informSearchMaxInterval") Long maxInterval,
+                                        @Value("${cram.popularity.adaptiveInterval.changedResourcesThreshold}") Integer changedResourcesThreshold,
+                                        @Value("${cram.popularity.adaptiveInterval.rankChangeThreshold}") Double rankChangeThreshold,
+                                        TopKTracker topKTracker, GaugeService gaugeService) {
+        Assert.notNull(enabled,"enabled can not be null!");
+        this.enabled = enabled;
+
+        Assert.notNull(informSearchInterval,"informSearchInterval can not be null!");
+
+        Assert.isTrue(minInterval != null && minInterval > 0,"minInterval should be positive!");
+        this.minInterval = minInterval;
+
+        Assert.isTrue(maxInterval != null && maxInterval >= minInterval,
+                "maxInterval should not be less than minInterval!");
+        this.maxInterval = maxInterval;
+
+        Assert.isTrue(changedResourcesThreshold != null && changedResourcesThreshold > 0,
+                "changedResourcesThreshold should be positive!");
+        this.changedResourcesThreshold = changedResourcesThreshold;
+
+        Assert.isTrue(rankChangeThreshold != null && rankChangeThreshold > 0 && rankChangeThreshold <= 1,
+                "rankChangeThreshold should be in (0, 1]!");
+        this.rankChangeThreshold = rankChangeThreshold;
+
+        Assert.notNull(topKTracker,"topKTracker can not be null!");
+        this.topKTracker = topKTracker;
+
+        Assert.notNull(gaugeService,"gaugeService can not be null!");
+        this.gaugeService = gaugeService;
+
+        this.interval = Math.min(Math.max(informSearchInterval, minInterval), maxInterval);
+        this.lastUpdate = System.currentTimeMillis();
+    }
+
+    public Boolean isEnabled() { return this.enabled; }
+    public Long getMinInterval() { return this.minInterval; }
+    public synchronized long getInterval() { return this.interval; }
+
+    /**
+     * @param now the current time
+     * @return true if the popularity update should be sent now
+     */
+    public synchronized boolean isUpdateDue(long now) {
+        return now - lastUpdate >= interval;
+    }
+
+    /**
+     * Starts a new interval after a popularity update was sent successfully. An update which was skipped or failed
+     * is not reported, so it is retried after minInterval.
+     *
+     * @param start the time at which the update started
+     * @param noChangedResources the number of the resources which were published with changed views
+     * @param topK the ids of the top k resources which were ranked by the update, in descending order
+     */
+    public synchronized void onPublished(long start, int noChangedResources, List<String> topK) {
+        double rankChange = getRankChange(lastTopK, topK, topKTracker.getK());
+
+        if (noChangedResources >= changedResourcesThreshold || rankChange >= rankChangeThreshold) {
+            log.debug("The next popularity update is due after the minimum interval, since " + noChangedResources +
+                    " resources changed and the ranking changed by " + rankChange);
+            interval = minInterval;
+        } else
+            interval = Math.min(2 * interval, maxInterval);
+
+        lastTopK = topK;
+        lastUpdate = start;
+        gaugeService.submit(INTERVAL_METRIC, interval);
+    }
+
+    /**
+     * @return the Spearman footrule distance of the two rankings of (at most) k ids, normalized to [0, 1]. An id
+     * which is missing from a ranking is considered ranked k-th there.
+     */
+    private static double getRankChange(List<String> previous, List<String> current, int k) {
+        if (previous.isEmpty() && current.isEmpty())
+            return 0;
+
+        Map<String, Integer> previousRanks = new HashMap<>();
+        for (int i = 0; i < previous.size(); i++)
+            previousRanks.put(previous.get(i), i);
+
+        Map<String, Integer> currentRanks = new HashMap<>();
+        for (int i = 0; i < current.size(); i++)
+            currentRanks.put(current.get(i), i);
+
+        Set<String> ids = new HashSet<>(previousRanks.keySet());
+        ids.addAll(currentRanks.keySet());
+
+        long distance = 0;
+        for (String id : ids)
+            distance += Math.abs(previousRanks.getOrDefault(id, k) - currentRanks.getOrDefault(id, k));
+
+        return Math.min(1.0, (double) distance / ((long) k * (k + 1)));
+    }
+}
@@ -0,0 +1,81 @@
+package eu.h2020.symbiote.cram.util;
+
+import org.springframework.util.Assert;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe Bloom filter over 128-bit fingerprints (given as two 64-bit hashes). The bits are set with CAS, so
+ * concurrent writers never block each other. The number of bits is derived from the expected insertions and the
+ * false positive probability, but it never exceeds the specified memory limit.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray words;
+    private final long noBits;
+    private final int noHashFunctions;
+    private final LongAdder bitsSet = new LongAdder();
+
+    public BloomFilter(long expectedInsertions, double falsePositiveProbability, long maxMemoryBytes) {
+        Assert.isTrue(expectedInsertions > 0,"expectedInsertions should be positive!");
+        Assert.isTrue(falsePositiveProbability > 0 && falsePositiveProbability < 1,
+                "falsePositiveProbability should be in (0, 1)!");
+        Assert.isTrue(maxMemoryBytes >= 8,"maxMemoryBytes should be at least 8!");
+
+        long optimalNoBits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveProbability) /
+                (Math.log(2) * Math.log(2)));
+        long noWords = Math.min((optimalNoBits + 63) / 64, Math.min(maxMemoryBytes / 8, Integer.MAX_VALUE));
+
+        this.words = new AtomicLongArray((int) noWords);
+        this.noBits = noWords * 64;
+        this.noHashFunctions = Math.max(1, (int) Math.round((double) noBits / expectedInsertions * Math.log(2)));
+    }
+
+    public boolean mightContain(long hash1, long hash2) {
+        for (int i = 0; i < noHashFunctions; i++) {
+            long bit = bitIndex(hash1, hash2, i);
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if at least one bit changed, i.e. the fingerprint was definitely not contained before
+     */
+    public boolean put(long hash1, long hash2) {
+        boolean changed = false;
+
+        for (int i = 0; i < noHashFunctions; i++) {
+            long bit = bitIndex(hash1, hash2, i);
+            int wordIndex = (int) (bit >>> 6);
+            long mask = 1L << bit;
+
+            long word;
+            while (((word = words.get(wordIndex)) & mask) == 0) {
+                if (words.compareAndSet(wordIndex, word, word | mask)) {
+                    bitsSet.increment();
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return the false positive probability, as estimated from the current fill ratio of the filter
+     */
+    public double expectedFalsePositiveProbability() {
+        return Math.pow((double) bitsSet.sum() / noBits, noHashFunctions);
+    }
+
+    public long getMemoryBytes() { return words.length() * 8L; }
+    public long getNoBits() { return noBits; }
+    public int getNoHashFunctions() { return noHashFunctions; }
+
+    private long bitIndex(long hash1, long hash2, int i) {
+        return ((hash1 + i * hash2) & Long.MAX_VALUE) % noBits;
+    }
+}
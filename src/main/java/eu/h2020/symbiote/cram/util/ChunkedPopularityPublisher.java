@@ -0,0 +1,145 @@
+package eu.h2020.symbiote.cram.util;
+
+import eu.h2020.symbiote.core.internal.popularity.PopularityUpdate;
+import eu.h2020.symbiote.core.internal.popularity.PopularityUpdatesMessage;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.util.Assert;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Publishes a snapshot of popularity updates to the Search as a sequence of PopularityUpdatesMessages, each one
+ * bounded by maxEntries updates and by maxBytes of serialized JSON (estimated from the ids and the views). Every
+ * message carries the id of the snapshot and its sequence number in the snapshot, while the last one is marked as the
+ * end of the snapshot. Only the chunk being filled and the one waiting to be sent are kept in memory, so the Search
+ * starts processing the snapshot before it has been fully read from the database.
+ *
+ * The chunks are sent through the {@link ConfirmingPublisher}. A publisher is used for a single snapshot: the updates
+ * are added and then finish() sends the last chunk and waits until all the chunks are confirmed.
+ */
+public class ChunkedPopularityPublisher {
+
+    private static Log log = LogFactory.getLog(ChunkedPopularityPublisher.class);
+
+    public static final String SNAPSHOT_ID_HEADER = "popularitySnapshotId";
+    public static final String SEQUENCE_HEADER = "popularitySequence";
+    public static final String END_OF_SNAPSHOT_HEADER = "popularityEndOfSnapshot";
+
+    // {"popularityUpdateList":[]} and {"id":"","viewsInDefinedInterval":},
+    static final int MESSAGE_OVERHEAD = 27;
+    static final int ENTRY_OVERHEAD = 36;
+
+    private final ConfirmingPublisher confirmingPublisher;
+    private final String exchange;
+    private final String routingKey;
+    private final int maxEntries;
+    private final int maxBytes;
+    private final Consumer<List<PopularityUpdate>> sentChunkListener;
+    private final String snapshotId;
+
+    private List<PopularityUpdate> chunk = new ArrayList<>();
+    private int chunkBytes = MESSAGE_OVERHEAD;
+    private List<PopularityUpdate> pendingChunk;
+    private int sequence = 0;
+
+    /**
+     * @param sentChunkListener receives the updates of every chunk after it has been confirmed (may be null)
+     */
+    public ChunkedPopularityPublisher(ConfirmingPublisher confirmingPublisher, String exchange, String routingKey,
+                                      int maxEntries, int maxBytes, String snapshotId,
+                                      Consumer<List<PopularityUpdate>> sentChunkListener) {
+        Assert.notNull(confirmingPublisher,"confirmingPublisher can not be null!");
+        this.confirmingPublisher = confirmingPublisher;
+
+        Assert.notNull(exchange,"exchange can not be null!");
+        this.exchange = exchange;
+
+        Assert.notNull(routingKey,"routingKey can not be null!");
+        this.routingKey = routingKey;
+
+        Assert.isTrue(maxEntries > 0,"maxEntries should be positive!");
+        this.maxEntries = maxEntries;
+
+        Assert.isTrue(maxBytes > 0,"maxBytes should be positive!");
+        this.maxBytes = maxBytes;
+
+        Assert.notNull(snapshotId,"snapshotId can not be null!");
+        this.snapshotId = snapshotId;
+
+        this.sentChunkListener = sentChunkListener;
+    }
+
+    /**
+     * Adds an update to the current chunk. When the update does not fit in it, the current chunk is closed and the
+     * previous one is sent. An update larger than maxBytes is sent in a chunk of its own.
+     */
+    public void add(PopularityUpdate popularityUpdate) {
+        int entryBytes = estimateBytes(popularityUpdate);
+
+        if (!chunk.isEmpty() && (chunk.size() >= maxEntries || chunkBytes + entryBytes > maxBytes))
+            closeChunk();
+
+        chunk.add(popularityUpdate);
+        chunkBytes += entryBytes;
+    }
+
+    /**
+     * Sends the remaining chunks, marking the last one as the end of the snapshot, and waits for the confirms of all
+     * the chunks. Nothing is sent for an empty snapshot.
+     *
+     * @return the number of the sent messages
+     * @throws IllegalStateException if any of the chunks was not confirmed
+     */
+    public int finish() {
+        if (!chunk.isEmpty())
+            closeChunk();
+
+        if (pendingChunk != null) {
+            send(pendingChunk, true);
+            pendingChunk = null;
+        }
+
+        confirmingPublisher.awaitConfirms();
+        return sequence;
+    }
+
+    /**
+     * The closed chunk is held back until the next one is closed or the snapshot is finished, so that the last
+     * message of the snapshot is known when it is sent
+     */
+    private void closeChunk() {
+        if (pendingChunk != null)
+            send(pendingChunk, false);
+
+        pendingChunk = chunk;
+        chunk = new ArrayList<>();
+        chunkBytes = MESSAGE_OVERHEAD;
+    }
+
+    private void send(List<PopularityUpdate> updates, boolean endOfSnapshot) {
+        PopularityUpdatesMessage popularityUpdatesMessage = new PopularityUpdatesMessage();
+        popularityUpdatesMessage.setPopularityUpdateList(updates);
+        int messageSequence = sequence;
+
+        confirmingPublisher.send(exchange, routingKey, popularityUpdatesMessage, message -> {
+            message.getMessageProperties().setHeader(SNAPSHOT_ID_HEADER, snapshotId);
+            message.getMessageProperties().setHeader(SEQUENCE_HEADER, messageSequence);
+            message.getMessageProperties().setHeader(END_OF_SNAPSHOT_HEADER, endOfSnapshot);
+            return message;
+        }, sentChunkListener == null ? null : () -> sentChunkListener.accept(updates));
+        sequence++;
+
+        log.trace("Sent chunk " + messageSequence + " of the popularity snapshot " + snapshotId + " with " +
+                updates.size() + " updates" + (endOfSnapshot ? " (end of snapshot)" : ""));
+    }
+
+    static int estimateBytes(PopularityUpdate popularityUpdate) {
+        String id = popularityUpdate.getId() == null ? "" : popularityUpdate.getId();
+        return ENTRY_OVERHEAD + id.getBytes(StandardCharsets.UTF_8).length +
+                String.valueOf(popularityUpdate.getViewsInDefinedInterval()).length();
+    }
+}
@@ -0,0 +1,378 @@
+package eu.h2020.symbiote.cram.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PreDestroy;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the popularity messages to the Search. When cram.popularity.publisherConfirms.enabled is set, the messages
+ * are published on a channel with publisher confirms and the broker acknowledges them asynchronously, so the sender
+ * does not wait for every message. At most maxInFlight messages are left unconfirmed; further sends block until a
+ * confirm arrives. A nacked message is published again after retryBackoff, which is doubled with every attempt, up to
+ * maxRetries times. awaitConfirms() waits for all the messages of a batch and fails if any of them was not confirmed.
+ * The messages are published as mandatory, so the broker returns a message which it could not route to any queue
+ * before acking it. A returned message is treated as nacked, unless it was sent as optional (e.g. the top k, which
+ * the Search may not have bound a queue for), in which case it is only logged and confirmed with its ack.
+ *
+ * The callback of a message runs once the message is confirmed, but always on the sending thread (during a later
+ * send or awaitConfirms()), so it never blocks the thread of the connection. The messages which are not confirmed
+ * within the confirm timeout are abandoned and the in-flight window is reset, but the callback of an abandoned message
+ * still runs if its ack arrives before the next timeout. Otherwise it is dropped, so the callers have to treat the
+ * messages which are reported as failed as delivered at least once (e.g. by publishing them again).
+ *
+ * The latency from the publishing to the confirm of every message and the throughput of every batch are recorded,
+ * together with the retries and the failures.
+ */
+@Component
+public class ConfirmingPublisher implements RabbitTemplate.ConfirmCallback, RabbitTemplate.ReturnCallback {
+
+    private static Log log = LogFactory.getLog(ConfirmingPublisher.class);
+
+    static final String LATENCY_METRIC = "histogram.cram.popularity.publish.latency";
+    static final String THROUGHPUT_METRIC = "gauge.cram.popularity.publish.throughput";
+    static final String RETRIES_METRIC = "counter.cram.popularity.publish.retries";
+    static final String FAILURES_METRIC = "counter.cram.popularity.publish.failures";
+    static final String CORRELATION_HEADER = "cram_popularity_correlation";
+
+    private RabbitTemplate rabbitTemplate;
+    private Boolean enabled;
+    private Integer maxInFlight;
+    private Integer maxRetries;
+    private Long retryBackoff;
+    private Long confirmTimeout;
+    private CounterService counterService;
+    private GaugeService gaugeService;
+
+    private final Semaphore inFlight;
+    private final ConcurrentHashMap<String, PendingMessage> pendingMessages = new ConcurrentHashMap<>();
+    private volatile ConcurrentHashMap<String, PendingMessage> abandonedMessages = new ConcurrentHashMap<>();
+    private final Queue<Runnable> confirmedCallbacks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger failedMessages = new AtomicInteger();
+    private final AtomicLong nextCorrelationId = new AtomicLong();
+    private ScheduledExecutorService retrier;
+
+    // The messages which are abandoned after the confirm timeout belong to an older generation and hold no permits
+    private volatile long generation = 0;
+    private long batchStartNanos;
+    private int batchMessages = 0;
+
+    @Autowired
+    public ConfirmingPublisher(@Qualifier("popularityRabbitTemplate") RabbitTemplate rabbitTemplate,
+                               @Value("${cram.popularity.publisherConfirms.enabled}") Boolean enabled,
+                               @Value("${cram.popularity.publisherConfirms.maxInFlight}") Integer maxInFlight,
+                               @Value("${cram.popularity.publisherConfirms.maxRetries}") Integer maxRetries,
+                               @Qualifier("publisherConfirmsRetryBackoff") Long retryBackoff,
+                               @Qualifier("publisherConfirmsTimeout") Long confirmTimeout,
+                               CounterService counterService, GaugeService gaugeService) {
+        Assert.notNull(rabbitTemplate,"rabbitTemplate can not be null!");
+        this.rabbitTemplate = rabbitTemplate;
+
+        Assert.notNull(enabled,"enabled can not be null!");
+        this.enabled = enabled;
+
+        Assert.isTrue(maxInFlight != null && maxInFlight > 0,"maxInFlight should be positive!");
+        this.maxInFlight = maxInFlight;
+
+        Assert.isTrue(maxRetries != null && maxRetries >= 0,"maxRetries should not be negative!");
+        this.maxRetries = maxRetries;
+
+        Assert.isTrue(retryBackoff != null && retryBackoff > 0,"retryBackoff should be positive!");
+        this.retryBackoff = retryBackoff;
+
+        Assert.isTrue(confirmTimeout != null && confirmTimeout > 0,"confirmTimeout should be positive!");
+        this.confirmTimeout = confirmTimeout;
+
+        Assert.notNull(counterService,"counterService can not be null!");
+        this.counterService = counterService;
+
+        Assert.notNull(gaugeService,"gaugeService can not be null!");
+        this.gaugeService = gaugeService;
+
+        this.inFlight = new Semaphore(maxInFlight);
+
+        if (enabled) {
+            rabbitTemplate.setConfirmCallback(this);
+            rabbitTemplate.setReturnCallback(this);
+            retrier = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "popularity-publisher-retry");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public Boolean isEnabled() { return this.enabled; }
+
+    /**
+     * Publishes a message. With publisher confirms, it blocks only while maxInFlight messages are unconfirmed.
+     *
+     * @param messagePostProcessor the post processor of the message (may be null)
+     * @param onConfirm runs when the message is confirmed (may be null)
+     * @throws IllegalStateException if no message is confirmed within the confirm timeout
+     */
+    public synchronized void send(String exchange, String routingKey, Object message,
+                                  MessagePostProcessor messagePostProcessor, Runnable onConfirm) {
+        send(exchange, routingKey, message, messagePostProcessor, onConfirm, true);
+    }
+
+    /**
+     * Like {@link #send(String, String, Object, MessagePostProcessor, Runnable)}, but a message which is not
+     * routable is returned by the broker without being retried or reported as failed, if routable is false.
+     *
+     * @param routable whether the message has to be routed to a queue
+     */
+    public synchronized void send(String exchange, String routingKey, Object message,
+                                  MessagePostProcessor messagePostProcessor, Runnable onConfirm, boolean routable) {
+        if (batchMessages++ == 0)
+            batchStartNanos = System.nanoTime();
+
+        if (!enabled) {
+            if (messagePostProcessor != null)
+                rabbitTemplate.convertAndSend(exchange, routingKey, message, messagePostProcessor);
+            else
+                rabbitTemplate.convertAndSend(exchange, routingKey, message);
+
+            if (onConfirm != null)
+                onConfirm.run();
+            return;
+        }
+
+        runConfirmedCallbacks();
+        acquire(1);
+
+        PendingMessage pendingMessage = new PendingMessage(exchange, routingKey, message,
+                messagePostProcessor != null ? messagePostProcessor : m -> m, onConfirm, routable, generation);
+        try {
+            publish(pendingMessage);
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+
+        runConfirmedCallbacks();
+    }
+
+    /**
+     * Waits until all the sent messages are confirmed and runs their callbacks.
+     *
+     * @throws IllegalStateException if any of the messages was not confirmed, even after the retries
+     */
+    public synchronized void awaitConfirms() {
+        try {
+            if (!enabled)
+                return;
+
+            try {
+                acquire(maxInFlight);
+                inFlight.release(maxInFlight);
+            } finally {
+                runConfirmedCallbacks();
+            }
+
+            int failures = failedMessages.getAndSet(0);
+            if (failures > 0)
+                throw new IllegalStateException(failures + " popularity messages were not confirmed by the broker");
+        } finally {
+            recordThroughput();
+        }
+    }
+
+    /**
+     * Called by the RabbitTemplate when the broker confirms (acks or nacks) a message
+     */
+    @Override
+    public void confirm(CorrelationData correlationData, boolean ack, String cause) {
+        if (correlationData == null)
+            return;
+
+        PendingMessage pendingMessage = pendingMessages.remove(correlationData.getId());
+        if (pendingMessage == null)
+            pendingMessage = abandonedMessages.remove(correlationData.getId());
+        if (pendingMessage == null)
+            return;
+
+        // A late ack of an abandoned message runs its callback, but it does not release a permit of the new window
+        if (pendingMessage.generation != generation) {
+            if (ack && pendingMessage.returnCause == null && pendingMessage.onConfirm != null)
+                confirmedCallbacks.add(pendingMessage.onConfirm);
+            return;
+        }
+
+        if (ack && pendingMessage.returnCause == null) {
+            gaugeService.submit(LATENCY_METRIC,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pendingMessage.sendNanos));
+            if (pendingMessage.onConfirm != null)
+                confirmedCallbacks.add(pendingMessage.onConfirm);
+            inFlight.release();
+        } else
+            retryOrFail(pendingMessage, ack ? pendingMessage.returnCause : cause);
+    }
+
+    /**
+     * Called by the RabbitTemplate when the broker returns a message which could not be routed. The return arrives
+     * before the ack of the message, which is then handled as a nack
+     */
+    @Override
+    public void returnedMessage(Message message, int replyCode, String replyText, String exchange,
+                                String routingKey) {
+        Object correlationId = message.getMessageProperties().getHeaders().get(CORRELATION_HEADER);
+        if (correlationId == null)
+            return;
+
+        PendingMessage pendingMessage = pendingMessages.get(correlationId.toString());
+        if (pendingMessage == null)
+            pendingMessage = abandonedMessages.get(correlationId.toString());
+        if (pendingMessage == null)
+            return;
+
+        if (!pendingMessage.routable) {
+            log.debug("An optional popularity message was returned by the exchange " + exchange +
+                    " with the routing key " + routingKey + ": " + replyCode + " " + replyText);
+            return;
+        }
+
+        pendingMessage.returnCause = "returned by the exchange " + exchange + " with the routing key " +
+                routingKey + ": " + replyCode + " " + replyText;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (retrier != null)
+            retrier.shutdownNow();
+    }
+
+    private void publish(PendingMessage pendingMessage) {
+        String correlationId = String.valueOf(nextCorrelationId.incrementAndGet());
+        pendingMessage.sendNanos = System.nanoTime();
+        pendingMessage.returnCause = null;
+        pendingMessages.put(correlationId, pendingMessage);
+
+        // The returned messages carry no correlation data, so the id is also sent in a header
+        MessagePostProcessor correlatingPostProcessor = message -> {
+            Message processedMessage = pendingMessage.messagePostProcessor.postProcessMessage(message);
+            processedMessage.getMessageProperties().setHeader(CORRELATION_HEADER, correlationId);
+            return processedMessage;
+        };
+
+        try {
+            rabbitTemplate.convertAndSend(pendingMessage.exchange, pendingMessage.routingKey, pendingMessage.message,
+                    correlatingPostProcessor, new CorrelationData(correlationId));
+        } catch (RuntimeException e) {
+            pendingMessages.remove(correlationId);
+            throw e;
+        }
+    }
+
+    private void retryOrFail(PendingMessage pendingMessage, String cause) {
+        if (pendingMessage.attempt >= maxRetries) {
+            log.warn("A popularity message was not confirmed after " + pendingMessage.attempt + " retries: " + cause);
+            counterService.increment(FAILURES_METRIC);
+            failedMessages.incrementAndGet();
+            inFlight.release();
+            return;
+        }
+
+        long delay = retryBackoff << pendingMessage.attempt++;
+        log.debug("A popularity message was nacked (" + cause + "), so it is retried in " + delay + " ms");
+        counterService.increment(RETRIES_METRIC);
+
+        retrier.schedule(() -> {
+            if (pendingMessage.generation != generation)
+                return;
+
+            try {
+                publish(pendingMessage);
+            } catch (RuntimeException e) {
+                retryOrFail(pendingMessage, e.getMessage());
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Acquires permits of the in-flight window. If they are not released within the confirm timeout, the unconfirmed
+     * messages are abandoned and the window is reset. The abandoned messages are kept until the next timeout, so that
+     * their late acks still run their callbacks.
+     */
+    private void acquire(int permits) {
+        try {
+            if (inFlight.tryAcquire(permits, confirmTimeout, TimeUnit.MILLISECONDS))
+                return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the confirms of the popularity messages");
+        }
+
+        int unconfirmed = maxInFlight - inFlight.availablePermits();
+        generation++;
+        abandonedMessages = new ConcurrentHashMap<>(pendingMessages);
+        pendingMessages.keySet().removeAll(abandonedMessages.keySet());
+        failedMessages.set(0);
+        inFlight.drainPermits();
+        inFlight.release(maxInFlight);
+
+        counterService.increment(FAILURES_METRIC);
+        throw new IllegalStateException(unconfirmed + " popularity messages were not confirmed within " +
+                confirmTimeout + " ms");
+    }
+
+    private void runConfirmedCallbacks() {
+        Runnable callback;
+        while ((callback = confirmedCallbacks.poll()) != null)
+            callback.run();
+    }
+
+    private void recordThroughput() {
+        if (batchMessages == 0)
+            return;
+
+        double seconds = Math.max(System.nanoTime() - batchStartNanos, 1) / 1e9;
+        gaugeService.submit(THROUGHPUT_METRIC, batchMessages / seconds);
+        batchMessages = 0;
+    }
+
+    private static class PendingMessage {
+
+        private final String exchange;
+        private final String routingKey;
+        private final Object message;
+        private final MessagePostProcessor messagePostProcessor;
+        private final Runnable onConfirm;
+        private final boolean routable;
+        private final long generation;
+        private volatile long sendNanos;
+        private volatile int attempt = 0;
+        private volatile String returnCause;
+
+        PendingMessage(String exchange, String routingKey, Object message, MessagePostProcessor messagePostProcessor,
+                       Runnable onConfirm, boolean routable, long generation) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.message = message;
+            this.messagePostProcessor = messagePostProcessor;
+            this.onConfirm = onConfirm;
+            this.routable = routable;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package eu.h2020.symbiote.cram.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.util.Assert;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs a task at a fixed rate on a ScheduledExecutorService, replacing a java.util.Timer.
+ *
+ * The runs are due on a fixed grid (firstRun + k * period), so the duration of the task does not shift the later
+ * runs. When runs have been missed (because the task took longer than the period, the JVM was paused or the service
+ * was down since the persisted firstRun), up to maxCatchUp of them are executed back to back and the rest are skipped.
+ * Every run happens on the single thread of the scheduler and the run of a previous, cancelled start is never
+ * overlapped. An exception of the task is logged and counted, but it does not stop the scheduling.
+ *
+ * After every tick the time of the next due run is reported to the progress listener, so that it can be persisted.
+ * Before every tick the progress source is asked for a persisted due run: if it is earlier than the next due run
+ * (e.g. because another replica has persisted it and this one skipped the runs meanwhile), the runs are resumed from
+ * it and the ones which were missed since then are caught up.
+ * The duration of the runs and their lag behind the due time are submitted as histograms.
+ */
+public class FixedRateScheduler {
+
+    private static Log log = LogFactory.getLog(FixedRateScheduler.class);
+
+    private final String name;
+    private final Runnable task;
+    private final long period;
+    private final int maxCatchUp;
+    private final CounterService counterService;
+    private final GaugeService gaugeService;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private ScheduledExecutorService executor;
+    private Consumer<Date> progressListener;
+    private Supplier<Date> progressSource;
+    private volatile long nextRun;
+
+    public FixedRateScheduler(String name, Runnable task, long period, int maxCatchUp,
+                              CounterService counterService, GaugeService gaugeService) {
+        Assert.notNull(name,"name can not be null!");
+        this.name = name;
+
+        Assert.notNull(task,"task can not be null!");
+        this.task = task;
+
+        Assert.isTrue(period > 0,"period should be positive!");
+        this.period = period;
+
+        Assert.isTrue(maxCatchUp > 0,"maxCatchUp should be positive!");
+        this.maxCatchUp = maxCatchUp;
+
+        Assert.notNull(counterService,"counterService can not be null!");
+        this.counterService = counterService;
+
+        Assert.notNull(gaugeService,"gaugeService can not be null!");
+        this.gaugeService = gaugeService;
+    }
+
+    /**
+     * Starts the scheduling, stopping any previous one.
+     *
+     * @param firstRun the first due run, which may be in the past
+     * @param progressListener receives the next due run after every tick (may be null)
+     */
+    public synchronized void start(Date firstRun, Consumer<Date> progressListener) {
+        start(firstRun, progressListener, null);
+    }
+
+    /**
+     * Starts the scheduling like {@link #start(Date, Consumer)}, resuming the runs from the progress source.
+     *
+     * @param progressSource provides the due run to resume from before every tick or null (may be null)
+     */
+    public synchronized void start(Date firstRun, Consumer<Date> progressListener, Supplier<Date> progressSource) {
+        stop();
+
+        this.nextRun = firstRun.getTime();
+        this.progressListener = progressListener;
+        this.progressSource = progressSource;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "scheduler-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduleNextTick(executor);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public synchronized boolean isStarted() { return executor != null; }
+    public Date getNextRun() { return new Date(nextRun); }
+
+    /**
+     * @param owner the executor of the start which scheduled the tick
+     */
+    private void tick(ScheduledExecutorService owner) {
+        // A run of a previous start may still be in progress, since shutdownNow does not wait for it
+        if (!running.compareAndSet(false, true)) {
+            counterService.increment("counter.cram.scheduler." + name + ".overlaps");
+            log.warn("The previous run of " + name + " is still in progress, so this run is postponed");
+            scheduleTick(owner, Math.min(period, 1000));
+            return;
+        }
+
+        try {
+            resumeProgress(owner);
+
+            long now = System.currentTimeMillis();
+            long dueRun = nextRun;
+            long dueRuns = (now - dueRun) / period + 1;
+            long runs = Math.min(dueRuns, maxCatchUp);
+
+            gaugeService.submit("histogram.cram.scheduler." + name + ".lag", now - dueRun);
+            if (dueRuns > runs) {
+                counterService.increment("counter.cram.scheduler." + name + ".skipped");
+                log.warn((dueRuns - runs) + " missed runs of " + name + " are skipped");
+            }
+            if (runs > 1)
+                log.info("Catching up with " + runs + " missed runs of " + name);
+
+            for (long i = 0; i < runs && !Thread.currentThread().isInterrupted(); i++)
+                runTask();
+
+            synchronized (this) {
+                // The progress of a cancelled start must not overwrite the one of the current start
+                if (owner != executor)
+                    return;
+
+                nextRun = dueRun + dueRuns * period;
+                reportProgress();
+            }
+        } finally {
+            running.set(false);
+        }
+
+        scheduleNextTick(owner);
+    }
+
+    private void runTask() {
+        long start = System.currentTimeMillis();
+
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            counterService.increment("counter.cram.scheduler." + name + ".failures");
+            log.error("The run of " + name + " failed", e);
+        } finally {
+            gaugeService.submit("histogram.cram.scheduler." + name + ".duration", System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Moves the next due run back to the one of the progress source, if it is earlier
+     */
+    private void resumeProgress(ScheduledExecutorService owner) {
+        if (progressSource == null)
+            return;
+
+        Date resumedRun;
+        try {
+            resumedRun = progressSource.get();
+        } catch (RuntimeException e) {
+            log.warn("The progress of " + name + " could not be read", e);
+            return;
+        }
+
+        synchronized (this) {
+            if (owner == executor && resumedRun != null && resumedRun.getTime() < nextRun) {
+                log.info("The runs of " + name + " are resumed from the persisted progress at " + resumedRun);
+                nextRun = resumedRun.getTime();
+            }
+        }
+    }
+
+    private void reportProgress() {
+        if (progressListener == null)
+            return;
+
+        try {
+            progressListener.accept(new Date(nextRun));
+        } catch (RuntimeException e) {
+            log.warn("The progress of " + name + " could not be persisted", e);
+        }
+    }
+
+    private void scheduleNextTick(ScheduledExecutorService owner) {
+        scheduleTick(owner, Math.max(0, nextRun - System.currentTimeMillis()));
+    }
+
+    private synchronized void scheduleTick(ScheduledExecutorService owner, long delay) {
+        if (owner == executor && !owner.isShutdown())
+            owner.schedule(() -> tick(owner), delay, TimeUnit.MILLISECONDS);
+    }
+}
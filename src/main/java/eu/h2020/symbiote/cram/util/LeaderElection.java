@@ -0,0 +1,164 @@
+package eu.h2020.symbiote.cram.util;
+
+import eu.h2020.symbiote.cram.model.LeaderLease;
+import eu.h2020.symbiote.cram.repository.CramPersistentVariablesRepository;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PreDestroy;
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Elects the CRAM replica which runs the periodic jobs (the rollover and the popularity updates), when
+ * cram.leaderElection.enabled is set. Every replica keeps consuming the notifications and the RPCs.
+ *
+ * The leader holds the {@link LeaderLease} document of the database. Every replica tries to acquire or renew it every
+ * renewInterval; the holder renews it, while the other replicas acquire it only after it has expired. The leadership
+ * is considered lost locally once leaseDuration has passed since the start of the last successful renewal, so a
+ * leader which can not reach the database stops before another replica can take over. The clocks of the replicas
+ * should differ by much less than leaseDuration - renewInterval.
+ *
+ * Every acquisition of the lease increments its fencing token. The periodic jobs take the token when they start and
+ * check it before every batch they write, so a leader which was paused (e.g. by a GC) past the expiry of its lease
+ * stops as soon as it resumes instead of interleaving its writes with the ones of the new leader.
+ *
+ * When the election is disabled, the replica is always the leader with the fencing token 0.
+ */
+@Component
+public class LeaderElection {
+
+    private static Log log = LogFactory.getLog(LeaderElection.class);
+
+    private CramPersistentVariablesRepository cramPersistentVariablesRepository;
+    private Boolean enabled;
+    private Long leaseDuration;
+    private Long renewInterval;
+    private String holderId;
+    private ScheduledExecutorService heartbeat;
+
+    private volatile long fencingToken = -1;
+    private volatile long leaseExpiryNanos;
+
+    @Autowired
+    public LeaderElection(CramPersistentVariablesRepository cramPersistentVariablesRepository,
+                          @Value("${cram.leaderElection.enabled}") Boolean enabled,
+                          @Qualifier("leaderLeaseDuration") Long leaseDuration,
+                          @Qualifier("leaderRenewInterval") Long renewInterval) {
+        Assert.notNull(cramPersistentVariablesRepository,"cramPersistentVariablesRepository can not be null!");
+        this.cramPersistentVariablesRepository = cramPersistentVariablesRepository;
+
+        Assert.notNull(enabled,"enabled can not be null!");
+        this.enabled = enabled;
+
+        Assert.isTrue(leaseDuration != null && leaseDuration > 0,"leaseDuration should be positive!");
+        this.leaseDuration = leaseDuration;
+
+        Assert.isTrue(renewInterval != null && renewInterval > 0 && renewInterval < leaseDuration,
+                "renewInterval should be positive and shorter than leaseDuration!");
+        this.renewInterval = renewInterval;
+
+        this.holderId = ManagementFactory.getRuntimeMXBean().getName() + "-" + UUID.randomUUID();
+
+        if (enabled) {
+            heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "leader-election");
+                thread.setDaemon(true);
+                return thread;
+            });
+            heartbeat.scheduleWithFixedDelay(this::renewLease, 0, renewInterval, TimeUnit.MILLISECONDS);
+        } else
+            fencingToken = 0;
+    }
+
+    public Boolean isEnabled() { return this.enabled; }
+    public String getHolderId() { return this.holderId; }
+
+    public boolean isLeader() {
+        return !enabled || (fencingToken >= 0 && System.nanoTime() - leaseExpiryNanos < 0);
+    }
+
+    /**
+     * @return the fencing token of the current leadership or null if this replica is not the leader
+     */
+    public Long getFencingToken() {
+        long token = fencingToken;
+        return isLeader() ? token : null;
+    }
+
+    /**
+     * @return true if this replica still holds the lease which was acquired with the fencingToken
+     */
+    public boolean holdsLease(long fencingToken) {
+        if (!enabled)
+            return true;
+
+        return isLeader() && this.fencingToken == fencingToken &&
+                cramPersistentVariablesRepository.holdsLease(holderId, fencingToken);
+    }
+
+    /**
+     * @throws IllegalStateException if this replica no longer holds the lease which was acquired with the fencingToken
+     */
+    public void checkLeadership(long fencingToken) {
+        if (!holdsLease(fencingToken))
+            throw new IllegalStateException("The leadership with fencing token " + fencingToken + " was lost");
+    }
+
+    /**
+     * Acquires or renews the lease. It is called every renewInterval by the heartbeat.
+     */
+    public void renewLease() {
+        long start = System.nanoTime();
+
+        try {
+            LeaderLease lease = cramPersistentVariablesRepository.acquireLease(holderId, leaseDuration);
+
+            if (lease == null) {
+                if (fencingToken >= 0)
+                    log.info("The leadership with fencing token " + fencingToken + " was lost");
+                fencingToken = -1;
+                return;
+            }
+
+            leaseExpiryNanos = start + TimeUnit.MILLISECONDS.toNanos(leaseDuration);
+            if (fencingToken != lease.getFencingToken()) {
+                log.info("The leadership was acquired with fencing token " + lease.getFencingToken());
+                fencingToken = lease.getFencingToken();
+            }
+        } catch (RuntimeException e) {
+            // The leadership lapses locally when the lease expires, unless a later renewal succeeds
+            log.warn("The lease could not be renewed", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (heartbeat == null)
+            return;
+
+        heartbeat.shutdownNow();
+        try {
+            heartbeat.awaitTermination(renewInterval, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // The lease is released, so that another replica takes over without waiting for its expiry
+        try {
+            if (fencingToken >= 0)
+                cramPersistentVariablesRepository.releaseLease(holderId);
+        } catch (RuntimeException e) {
+            log.warn("The lease could not be released", e);
+        }
+        fencingToken = -1;
+    }
+}
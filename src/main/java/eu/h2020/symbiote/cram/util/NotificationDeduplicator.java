@@ -0,0 +1,181 @@
+package eu.h2020.symbiote.cram.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Suppresses the access notifications which have already been counted, e.g. when the Resource Access Proxy
+ * retries a notification after a reply timeout. Every view is fingerprinted by its resource id and timestamp and
+ * the fingerprints are kept in two Bloom filters which are rotated every subInterval, so a fingerprint is
+ * remembered for at least one subInterval. A false positive drops a genuine view, so the false positive
+ * probability should be kept low.
+ */
+@Component
+public class NotificationDeduplicator {
+
+    private static Log log = LogFactory.getLog(NotificationDeduplicator.class);
+
+    static final String DUPLICATES_METRIC = "counter.cram.deduplication.duplicates";
+    static final String MEMORY_METRIC = "gauge.cram.deduplication.memoryBytes";
+    static final String FALSE_POSITIVE_PROBABILITY_METRIC = "gauge.cram.deduplication.falsePositiveProbability";
+
+    private Boolean enabled;
+    private Long expectedInsertions;
+    private Double falsePositiveProbability;
+    private Long maxMemory;
+    private CounterService counterService;
+    private GaugeService gaugeService;
+
+    private volatile Generations generations;
+    private ScheduledExecutorService rotator;
+
+    @Autowired
+    public NotificationDeduplicator(@Value("${cram.notifications.deduplication.enabled}") Boolean enabled,
+                                    @Value("${cram.notifications.deduplication.expectedInsertions}") Long expectedInsertions,
+                                    @Value("${cram.notifications.deduplication.falsePositiveProbability}") Double falsePositiveProbability,
+                                    @Value("${cram.notifications.deduplication.maxMemory}") Long maxMemory,
+                                    @Qualifier("subIntervalDuration") Long subIntervalDuration,
+                                    CounterService counterService, GaugeService gaugeService) {
+        Assert.notNull(enabled,"enabled can not be null!");
+        this.enabled = enabled;
+
+        Assert.notNull(expectedInsertions,"expectedInsertions can not be null!");
+        this.expectedInsertions = expectedInsertions;
+
+        Assert.notNull(falsePositiveProbability,"falsePositiveProbability can not be null!");
+        this.falsePositiveProbability = falsePositiveProbability;
+
+        Assert.notNull(maxMemory,"maxMemory can not be null!");
+        this.maxMemory = maxMemory;
+
+        Assert.notNull(subIntervalDuration,"subIntervalDuration can not be null!");
+
+        Assert.notNull(counterService,"counterService can not be null!");
+        this.counterService = counterService;
+
+        Assert.notNull(gaugeService,"gaugeService can not be null!");
+        this.gaugeService = gaugeService;
+
+        if (enabled) {
+            generations = new Generations(newFilter(), newFilter());
+            log.info("Deduplication of notifications enabled: " + generations.current.getNoBits() + " bits and " +
+                    generations.current.getNoHashFunctions() + " hash functions per filter");
+            submitGauges();
+
+            rotator = Executors.newSingleThreadScheduledExecutor();
+            rotator.scheduleAtFixedRate(this::rotate, subIntervalDuration, subIntervalDuration, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public Boolean isEnabled() { return this.enabled; }
+
+    /**
+     * @return true if the view has (most probably) been recorded already
+     */
+    public boolean isDuplicate(String resourceId, Date timestamp) {
+        long hash1 = hash1(resourceId, timestamp);
+        long hash2 = hash2(hash1);
+        Generations current = generations;
+
+        boolean duplicate = current.current.mightContain(hash1, hash2) || current.previous.mightContain(hash1, hash2);
+        if (duplicate)
+            counterService.increment(DUPLICATES_METRIC);
+        return duplicate;
+    }
+
+    /**
+     * Records the views which were stored successfully, so that their redeliveries are suppressed.
+     *
+     * @param timestampsPerResource the timestamps of the stored views per resource id
+     */
+    public void record(Map<String, ? extends Collection<Date>> timestampsPerResource) {
+        BloomFilter current = generations.current;
+
+        for (Map.Entry<String, ? extends Collection<Date>> entry : timestampsPerResource.entrySet()) {
+            for (Date timestamp : entry.getValue()) {
+                long hash1 = hash1(entry.getKey(), timestamp);
+                current.put(hash1, hash2(hash1));
+            }
+        }
+
+        submitGauges();
+    }
+
+    /**
+     * Starts a new generation of fingerprints and forgets the oldest one.
+     */
+    void rotate() {
+        generations = new Generations(newFilter(), generations.current);
+        submitGauges();
+        log.debug("The fingerprints of the notifications were rotated");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (rotator != null)
+            rotator.shutdownNow();
+    }
+
+    private BloomFilter newFilter() {
+        return new BloomFilter(expectedInsertions, falsePositiveProbability, maxMemory);
+    }
+
+    private void submitGauges() {
+        Generations current = generations;
+        gaugeService.submit(MEMORY_METRIC, current.current.getMemoryBytes() + current.previous.getMemoryBytes());
+        gaugeService.submit(FALSE_POSITIVE_PROBABILITY_METRIC,
+                Math.max(current.current.expectedFalsePositiveProbability(),
+                        current.previous.expectedFalsePositiveProbability()));
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the resource id, mixed with the timestamp by the finalizer of MurmurHash3
+     */
+    private static long hash1(String resourceId, Date timestamp) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : resourceId.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash ^ mix(timestamp.getTime()));
+    }
+
+    private static long hash2(long hash1) {
+        return mix(hash1 ^ 0x9e3779b97f4a7c15L) | 1;
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static class Generations {
+        private final BloomFilter current;
+        private final BloomFilter previous;
+
+        Generations(BloomFilter current, BloomFilter previous) {
+            this.current = current;
+            this.previous = previous;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package eu.h2020.symbiote.cram.util;
+
+import eu.h2020.symbiote.cram.model.CramResource;
+import eu.h2020.symbiote.cram.repository.ResourceRepository;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * Parallel engine of the in-memory rollover, which is used when cram.rollover.parallelism is greater than 1.
+ *
+ * The resources are streamed with their views only and they are split into hash partitions by their id. Every
+ * partition collects its own batches and each batch is rolled over and written with its own bulk update by a pool of
+ * parallelism threads, which use the pooled connections of the Mongo client. At most 2 batches per thread are in
+ * flight, so the memory stays bounded. The time spent on every partition is logged and submitted as a gauge.
+ */
+@Component
+public class PartitionedRollover {
+
+    private static Log log = LogFactory.getLog(PartitionedRollover.class);
+
+    static final String PARTITION_TIMER_METRIC = "timer.cram.rollover.partition.";
+    static final int MAX_ROLLOVER_ATTEMPTS = 5;
+
+    private ResourceRepository resourceRepository;
+    private Long noSubIntervals;
+    private Long subIntervalDuration;
+    private Integer parallelism;
+    private Integer batchSize;
+    private GaugeService gaugeService;
+    private ExecutorService executor;
+
+    @Autowired
+    public PartitionedRollover(ResourceRepository resourceRepository,
+                               @Qualifier("noSubIntervals") Long noSubIntervals,
+                               @Qualifier("subIntervalDuration") Long subIntervalDuration,
+                               @Value("${cram.rollover.parallelism}") Integer parallelism,
+                               @Value("${cram.traversal.batchSize}") Integer batchSize,
+                               GaugeService gaugeService) {
+        Assert.notNull(resourceRepository,"resourceRepository can not be null!");
+        this.resourceRepository = resourceRepository;
+
+        Assert.notNull(noSubIntervals,"noSubIntervals can not be null!");
+        this.noSubIntervals = noSubIntervals;
+
+        Assert.notNull(subIntervalDuration,"subIntervalDuration can not be null!");
+        this.subIntervalDuration = subIntervalDuration;
+
+        Assert.isTrue(parallelism != null && parallelism > 0,"parallelism should be positive!");
+        this.parallelism = parallelism;
+
+        Assert.isTrue(batchSize != null && batchSize > 0,"batchSize should be positive!");
+        this.batchSize = batchSize;
+
+        Assert.notNull(gaugeService,"gaugeService can not be null!");
+        this.gaugeService = gaugeService;
+
+        if (isEnabled()) {
+            AtomicInteger noThreads = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(parallelism, r -> {
+                Thread thread = new Thread(r, "partitioned-rollover-" + noThreads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public boolean isEnabled() { return parallelism > 1; }
+    public Integer getParallelism() { return this.parallelism; }
+
+    public long[] rollover() {
+        return rollover(null, () -> {});
+    }
+
+    /**
+     * Rolls all the resources over and waits for all the partitions to finish. If rolloverEpoch is set, only the
+     * resources which have not been rolled over to it yet are traversed and they are marked with it.
+     *
+     * @param rolloverEpoch the epoch which the resources are rolled over to (may be null)
+     * @param batchCheck runs before every batch is submitted and stops the rollover by throwing
+     * @return the time spent on every partition in ms
+     */
+    public long[] rollover(Long rolloverEpoch, Runnable batchCheck) {
+        return rollover(rolloverEpoch, batchCheck, (lastId, rolledOver) -> {});
+    }
+
+    /**
+     * Rolls all the resources over like {@link #rollover(Long, Runnable)} and reports every written batch with the
+     * id of its last resource and the number of the resources it rolled over. The batches are reported by the
+     * threads of the partitions, as soon as each of them is written.
+     */
+    public long[] rollover(Long rolloverEpoch, Runnable batchCheck, ObjIntConsumer<String> batchRecorder) {
+        Assert.state(isEnabled(),"The partitioned rollover is not enabled!");
+
+        Partition[] partitions = new Partition[parallelism];
+        for (int i = 0; i < parallelism; i++)
+            partitions[i] = new Partition();
+
+        Semaphore inFlightBatches = new Semaphore(2 * parallelism);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.currentTimeMillis();
+
+        RuntimeException traversalFailure = null;
+        try {
+            Consumer<List<CramResource>> partitioner = cramResources -> {
+                for (CramResource cramResource : cramResources) {
+                    Partition partition = partitions[Math.floorMod(cramResource.getId().hashCode(), parallelism)];
+                    partition.pending.add(cramResource);
+
+                    if (partition.pending.size() >= batchSize) {
+                        batchCheck.run();
+                        futures.add(submit(partition, rolloverEpoch, batchRecorder, inFlightBatches));
+                    }
+                }
+            };
+
+            if (rolloverEpoch == null)
+                resourceRepository.forEachBatch(batchSize, partitioner, ResourceRepository.VIEWS_FIELDS);
+            else
+                resourceRepository.forEachBatchNotRolledOver(rolloverEpoch, batchSize, partitioner,
+                        ResourceRepository.VIEWS_FIELDS);
+
+            for (Partition partition : partitions) {
+                if (!partition.pending.isEmpty()) {
+                    batchCheck.run();
+                    futures.add(submit(partition, rolloverEpoch, batchRecorder, inFlightBatches));
+                }
+            }
+        } catch (RuntimeException e) {
+            traversalFailure = e;
+        }
+
+        // The submitted batches are always awaited, so that none of them is still being written after the rollover
+        RuntimeException batchFailure = waitFor(futures);
+        if (traversalFailure != null)
+            throw traversalFailure;
+        if (batchFailure != null)
+            throw batchFailure;
+
+        long[] durations = new long[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            durations[i] = partitions[i].duration.get();
+            gaugeService.submit(PARTITION_TIMER_METRIC + i, durations[i]);
+            log.debug("Rollover of partition " + i + ": " + partitions[i].noResources.get() + " resources in " +
+                    durations[i] + " ms");
+        }
+        log.info("Partitioned rollover with parallelism = " + parallelism + " ENDED in " +
+                (System.currentTimeMillis() - start) + " ms");
+
+        return durations;
+    }
+
+    /**
+     * Rolls a batch of resources over and stores their views. If rolloverEpoch is set, the views of a resource are
+     * stored only if its viewsInDefinedInterval has not changed since it was read, since the other replicas keep
+     * adding views during the rollover. The resources which changed are read again and rolled over anew, up to
+     * MAX_ROLLOVER_ATTEMPTS times. Without a rolloverEpoch the changed resources can not be told apart from the
+     * ones which were rolled over already, so the views are stored unconditionally.
+     *
+     * @return the number of the resources which were rolled over
+     */
+    public int rolloverBatch(List<CramResource> batch, Long rolloverEpoch) {
+        List<CramResource> pending = batch;
+        int noRolledOver = 0;
+
+        for (int attempt = 1; ; attempt++) {
+            Map<String, Integer> readViews = new HashMap<>();
+            List<CramResource> rolledOver = new ArrayList<>(pending.size());
+            for (CramResource cramResource : pending) {
+                Integer views = cramResource.getViewsInDefinedInterval();
+                if (cramResource.rolloverTo(rolloverEpoch, noSubIntervals, subIntervalDuration)) {
+                    readViews.put(cramResource.getId(), views);
+                    rolledOver.add(cramResource);
+                }
+            }
+
+            if (rolloverEpoch == null) {
+                resourceRepository.saveViews(rolledOver);
+                return rolledOver.size();
+            }
+
+            int matched = resourceRepository.saveViews(rolledOver, readViews);
+            noRolledOver += matched;
+            if (matched == rolledOver.size())
+                return noRolledOver;
+
+            Set<String> ids = rolledOver.stream().map(CramResource::getId).collect(Collectors.toSet());
+            pending = resourceRepository.findAllWithFields(ids, ResourceRepository.VIEWS_FIELDS).stream()
+                    .filter(cramResource -> !rolloverEpoch.equals(cramResource.getRolloverEpoch()))
+                    .collect(Collectors.toList());
+            if (pending.isEmpty())
+                return noRolledOver;
+
+            if (attempt >= MAX_ROLLOVER_ATTEMPTS)
+                throw new IllegalStateException("The views of " + pending.size() + " resources kept changing " +
+                        "during the rollover to epoch " + rolloverEpoch);
+            log.debug("The views of " + pending.size() + " resources changed during the rollover, so they are " +
+                    "rolled over again");
+        }
+    }
+
+    private Future<?> submit(Partition partition, Long rolloverEpoch, ObjIntConsumer<String> batchRecorder,
+                             Semaphore inFlightBatches) {
+        List<CramResource> batch = partition.pending;
+        partition.pending = new ArrayList<>(batchSize);
+
+        try {
+            inFlightBatches.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("The partitioned rollover was interrupted", e);
+        }
+
+        try {
+            return executor.submit(() -> {
+                try {
+                    long start = System.currentTimeMillis();
+
+                    int rolledOver = rolloverBatch(batch, rolloverEpoch);
+                    batchRecorder.accept(batch.get(batch.size() - 1).getId(), rolledOver);
+
+                    partition.duration.addAndGet(System.currentTimeMillis() - start);
+                    partition.noResources.addAndGet(batch.size());
+                } finally {
+                    inFlightBatches.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlightBatches.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the first failure of the batches, if any
+     */
+    private static RuntimeException waitFor(List<Future<?>> futures) {
+        RuntimeException failure = null;
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new IllegalStateException("The partitioned rollover was interrupted", e);
+            } catch (ExecutionException e) {
+                if (failure == null)
+                    failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() :
+                            new IllegalStateException("A partition of the rollover failed", e.getCause());
+            }
+        }
+
+        return failure;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    private class Partition {
+        private List<CramResource> pending = new ArrayList<>(batchSize);
+        private final AtomicLong duration = new AtomicLong();
+        private final AtomicInteger noResources = new AtomicInteger();
+    }
+}
@@ -3,14 +3,16 @@ package eu.h2020.symbiote.cram.util;
 import eu.h2020.symbiote.cram.repository.ResourceRepository;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
+import javax.annotation.PreDestroy;
 import java.util.Date;
-import java.util.Timer;
 
 /**
  * Created by vasgl on 7/2/2017.
@@ -20,20 +22,43 @@ public class PopularityUpdater {
 
     private static Log log = LogFactory.getLog(PopularityUpdater.class);
 
-    private Timer timer;
+    private FixedRateScheduler scheduler;
     private ScheduledPopularityUpdate scheduledPopularityUpdate;
-    private RabbitTemplate rabbitTemplate;
+    private ConfirmingPublisher confirmingPublisher;
     private Long informSearchInterval;
     private ResourceRepository resourceRepository;
     private String searchExchange;
     private String searchPopularityUpdatesRoutingKey;
+    private ViewsAccumulator viewsAccumulator;
+    private SubIntervalClock subIntervalClock;
+    private Integer traversalBatchSize;
+    private LeaderElection leaderElection;
+    private Boolean deltaUpdates;
+    private Long fullResyncInterval;
+    private Integer chunkMaxEntries;
+    private Integer chunkMaxBytes;
+    private TopKTracker topKTracker;
+    private String searchTopPopularityUpdatesRoutingKey;
+    private AdaptiveInformSearchInterval adaptiveInformSearchInterval;
 
     @Autowired
-    public PopularityUpdater(RabbitTemplate rabbitTemplate, @Qualifier("informSearchInterval") Long informSearchInterval,
+    public PopularityUpdater(ConfirmingPublisher confirmingPublisher,
+                             @Qualifier("informSearchInterval") Long informSearchInterval,
                              ResourceRepository resourceRepository, @Qualifier("searchExchange") String searchExchange,
-                             @Qualifier("searchPopularityUpdatesRoutingKey") String searchPopularityUpdatesRoutingKey) {
-        Assert.notNull(rabbitTemplate,"RabbitTemplate can not be null!");
-        this.rabbitTemplate = rabbitTemplate;
+                             @Qualifier("searchPopularityUpdatesRoutingKey") String searchPopularityUpdatesRoutingKey,
+                             ViewsAccumulator viewsAccumulator, SubIntervalClock subIntervalClock,
+                             @Value("${cram.traversal.batchSize}") Integer traversalBatchSize,
+                             LeaderElection leaderElection,
+                             @Value("${cram.popularity.deltaUpdates.enabled}") Boolean deltaUpdates,
+                             @Qualifier("popularityFullResyncInterval") Long fullResyncInterval,
+                             @Value("${cram.popularity.chunk.maxEntries}") Integer chunkMaxEntries,
+                             @Value("${cram.popularity.chunk.maxBytes}") Integer chunkMaxBytes,
+                             TopKTracker topKTracker,
+                             @Qualifier("searchTopPopularityUpdatesRoutingKey") String searchTopPopularityUpdatesRoutingKey,
+                             AdaptiveInformSearchInterval adaptiveInformSearchInterval,
+                             CounterService counterService, GaugeService gaugeService) {
+        Assert.notNull(confirmingPublisher,"ConfirmingPublisher can not be null!");
+        this.confirmingPublisher = confirmingPublisher;
 
         Assert.notNull(informSearchInterval,"informSearchInterval can not be null!");
         this.informSearchInterval = informSearchInterval;
@@ -47,11 +72,57 @@ public class PopularityUpdater {
         Assert.notNull(searchPopularityUpdatesRoutingKey,"searchPopularityUpdatesRoutingKey can not be null!");
         this.searchPopularityUpdatesRoutingKey = searchPopularityUpdatesRoutingKey;
 
-        this.timer = new Timer();
+        Assert.notNull(viewsAccumulator,"viewsAccumulator can not be null!");
+        this.viewsAccumulator = viewsAccumulator;
+
+        Assert.notNull(subIntervalClock,"subIntervalClock can not be null!");
+        this.subIntervalClock = subIntervalClock;
+
+        Assert.notNull(traversalBatchSize,"traversalBatchSize can not be null!");
+        this.traversalBatchSize = traversalBatchSize;
+
+        Assert.notNull(leaderElection,"leaderElection can not be null!");
+        this.leaderElection = leaderElection;
+
+        Assert.notNull(deltaUpdates,"deltaUpdates can not be null!");
+        this.deltaUpdates = deltaUpdates;
+
+        Assert.notNull(fullResyncInterval,"fullResyncInterval can not be null!");
+        this.fullResyncInterval = fullResyncInterval;
+
+        Assert.notNull(chunkMaxEntries,"chunkMaxEntries can not be null!");
+        this.chunkMaxEntries = chunkMaxEntries;
+
+        Assert.notNull(chunkMaxBytes,"chunkMaxBytes can not be null!");
+        this.chunkMaxBytes = chunkMaxBytes;
+
+        Assert.notNull(topKTracker,"topKTracker can not be null!");
+        this.topKTracker = topKTracker;
+
+        Assert.notNull(searchTopPopularityUpdatesRoutingKey,"searchTopPopularityUpdatesRoutingKey can not be null!");
+        this.searchTopPopularityUpdatesRoutingKey = searchTopPopularityUpdatesRoutingKey;
+
+        Assert.notNull(adaptiveInformSearchInterval,"adaptiveInformSearchInterval can not be null!");
+        this.adaptiveInformSearchInterval = adaptiveInformSearchInterval;
+
+        // The changed resources are counted by the delta updates
+        Assert.isTrue(!adaptiveInformSearchInterval.isEnabled() || deltaUpdates,
+                "cram.popularity.adaptiveInterval.enabled requires cram.popularity.deltaUpdates.enabled!");
+
+        // The missed popularity updates are not caught up, since a single update already sends the current views.
+        // In the adaptive mode, the scheduler checks every minInterval whether the update is due
+        if (adaptiveInformSearchInterval.isEnabled())
+            this.scheduler = new FixedRateScheduler("popularityUpdate", () -> {
+                if (adaptiveInformSearchInterval.isUpdateDue(System.currentTimeMillis()))
+                    scheduledPopularityUpdate.run();
+            }, adaptiveInformSearchInterval.getMinInterval(), 1, counterService, gaugeService);
+        else
+            this.scheduler = new FixedRateScheduler("popularityUpdate", () -> scheduledPopularityUpdate.run(),
+                    informSearchInterval, 1, counterService, gaugeService);
         startTimer();
     }
 
-    public Timer getTimer() { return this.timer; }
+    public FixedRateScheduler getScheduler() { return this.scheduler; }
     public ScheduledPopularityUpdate getScheduledUpdate() { return this.scheduledPopularityUpdate; }
 
     public void restartTimer() {
@@ -60,17 +131,17 @@ public class PopularityUpdater {
     }
 
     public void startTimer() {
-        timer = new Timer();
-        scheduledPopularityUpdate = new ScheduledPopularityUpdate(this.rabbitTemplate, resourceRepository,
-                searchExchange, searchPopularityUpdatesRoutingKey);
-        timer.schedule(scheduledPopularityUpdate, new Date(new Date().getTime() + informSearchInterval),
-                this.informSearchInterval);
+        scheduledPopularityUpdate = new ScheduledPopularityUpdate(confirmingPublisher, resourceRepository,
+                searchExchange, searchPopularityUpdatesRoutingKey, viewsAccumulator, subIntervalClock, traversalBatchSize,
+                leaderElection, deltaUpdates, fullResyncInterval, chunkMaxEntries, chunkMaxBytes, topKTracker,
+                searchTopPopularityUpdatesRoutingKey, adaptiveInformSearchInterval);
+        scheduler.start(new Date(new Date().getTime() + (adaptiveInformSearchInterval.isEnabled() ?
+                adaptiveInformSearchInterval.getMinInterval() : informSearchInterval)), null);
     }
 
+    @PreDestroy
     public void cancelTimer() {
-        timer.cancel();
-        timer.purge();
-        scheduledPopularityUpdate.cancel();
+        scheduler.stop();
     }
 
 }
@@ -2,16 +2,23 @@ package eu.h2020.symbiote.cram.util;
 
 import eu.h2020.symbiote.cram.managers.AuthorizationManager;
 import eu.h2020.symbiote.cram.messaging.AccessNotificationListener;
+import eu.h2020.symbiote.cram.model.CramPersistentVariables;
 import eu.h2020.symbiote.cram.model.NextPopularityUpdate;
+import eu.h2020.symbiote.cram.model.RolloverCheckpoint;
+import eu.h2020.symbiote.cram.repository.CramPersistentVariablesRepository;
 import eu.h2020.symbiote.cram.repository.ResourceRepository;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
-import java.util.Timer;
+import javax.annotation.PreDestroy;
+import java.util.Date;
 
 /**
  * Created by vasgl on 7/2/2017.
@@ -26,17 +33,37 @@ public class ResourceAccessStatsUpdater {
     private Long subIntervalDuration;
     private Long noSubIntervals;
     private AccessNotificationListener accessNotificationListener;
-    private Timer timer;
+    private FixedRateScheduler scheduler;
     private ScheduledUpdate scheduledUpdate;
     private PopularityUpdater popularityUpdater;
     private AuthorizationManager authorizationManager;
+    private ViewsAccumulator viewsAccumulator;
+    private NotificationDeduplicator notificationDeduplicator;
+    private SubIntervalClock subIntervalClock;
+    private Boolean serverSideRollover;
+    private Integer traversalBatchSize;
+    private PartitionedRollover partitionedRollover;
+    private CramPersistentVariablesRepository cramPersistentVariablesRepository;
+    private LeaderElection leaderElection;
+    private TopKTracker topKTracker;
+    private volatile Long resumedFencingToken;
 
     @Autowired
     public ResourceAccessStatsUpdater(ResourceRepository resourceRepository, NextPopularityUpdate nextPopularityUpdate,
                                       @Qualifier("subIntervalDuration") Long subIntervalDuration,
                                       @Qualifier("noSubIntervals") Long noSubIntervals,
                                       AccessNotificationListener accessNotificationListener,
-                                      PopularityUpdater popularityUpdater, AuthorizationManager authorizationManager) {
+                                      PopularityUpdater popularityUpdater, AuthorizationManager authorizationManager,
+                                      ViewsAccumulator viewsAccumulator,
+                                      NotificationDeduplicator notificationDeduplicator,
+                                      SubIntervalClock subIntervalClock,
+                                      @Value("${cram.rollover.serverSide}") Boolean serverSideRollover,
+                                      @Value("${cram.traversal.batchSize}") Integer traversalBatchSize,
+                                      PartitionedRollover partitionedRollover,
+                                      CramPersistentVariablesRepository cramPersistentVariablesRepository,
+                                      @Value("${cram.scheduler.maxCatchUp}") Integer maxCatchUp,
+                                      LeaderElection leaderElection, TopKTracker topKTracker,
+                                      CounterService counterService, GaugeService gaugeService) {
         Assert.notNull(resourceRepository,"Resource repository can not be null!");
         this.resourceRepository = resourceRepository;
 
@@ -58,11 +85,42 @@ public class ResourceAccessStatsUpdater {
         Assert.notNull(authorizationManager,"AuthorizationManager can not be null!");
         this.authorizationManager = authorizationManager;
 
-        this.timer = new Timer();
+        Assert.notNull(viewsAccumulator,"ViewsAccumulator can not be null!");
+        this.viewsAccumulator = viewsAccumulator;
+
+        Assert.notNull(notificationDeduplicator,"NotificationDeduplicator can not be null!");
+        this.notificationDeduplicator = notificationDeduplicator;
+
+        Assert.notNull(subIntervalClock,"SubIntervalClock can not be null!");
+        this.subIntervalClock = subIntervalClock;
+
+        Assert.notNull(serverSideRollover,"serverSideRollover can not be null!");
+        this.serverSideRollover = serverSideRollover;
+
+        Assert.notNull(traversalBatchSize,"traversalBatchSize can not be null!");
+        this.traversalBatchSize = traversalBatchSize;
+
+        Assert.notNull(partitionedRollover,"PartitionedRollover can not be null!");
+        this.partitionedRollover = partitionedRollover;
+
+        Assert.notNull(cramPersistentVariablesRepository,"CramPersistentVariablesRepository can not be null!");
+        this.cramPersistentVariablesRepository = cramPersistentVariablesRepository;
+
+        Assert.notNull(maxCatchUp,"maxCatchUp can not be null!");
+
+        Assert.notNull(leaderElection,"LeaderElection can not be null!");
+        this.leaderElection = leaderElection;
+
+        Assert.notNull(topKTracker,"TopKTracker can not be null!");
+        this.topKTracker = topKTracker;
+
+        // The scheduler always runs the current scheduledUpdate, which is replaced when the timer is started
+        this.scheduler = new FixedRateScheduler("rollover", () -> scheduledUpdate.run(), subIntervalDuration,
+                subIntervalClock.isAligned() ? 1 : maxCatchUp, counterService, gaugeService);
         startTimer();
     }
 
-    public Timer getTimer() { return this.timer; }
+    public FixedRateScheduler getScheduler() { return this.scheduler; }
     public ScheduledUpdate getScheduledUpdate() { return this.scheduledUpdate; }
 
     public void restartTimer() {
@@ -71,16 +129,31 @@ public class ResourceAccessStatsUpdater {
     }
 
     public void startTimer() {
-        timer = new Timer();
         scheduledUpdate = new ScheduledUpdate(resourceRepository, noSubIntervals,
-                subIntervalDuration, accessNotificationListener, popularityUpdater, authorizationManager);
-        timer.schedule(scheduledUpdate, nextPopularityUpdate.getNextUpdate(), subIntervalDuration);
+                subIntervalDuration, accessNotificationListener, popularityUpdater, authorizationManager,
+                viewsAccumulator, notificationDeduplicator, subIntervalClock,
+                serverSideRollover, traversalBatchSize, partitionedRollover, leaderElection,
+                cramPersistentVariablesRepository, topKTracker);
+
+        // An interrupted rollover is resumed by the first run, which is due already, since the progress of the
+        // interrupted run was not persisted
+        CramPersistentVariables checkpoint = cramPersistentVariablesRepository
+                .findByVariableName(RolloverCheckpoint.ROLLOVER_CHECKPOINT);
+        if (checkpoint instanceof RolloverCheckpoint && !((RolloverCheckpoint) checkpoint).isCompleted())
+            log.info("The interrupted rollover to epoch " + ((RolloverCheckpoint) checkpoint).getRolloverEpoch() +
+                    " will be resumed");
+
+        // The aligned rollovers happen at the boundaries of the grid. Otherwise, the rollovers which were missed
+        // since the persisted next update (e.g. while the service was down) are caught up
+        Date firstRun = subIntervalClock.isAligned() ? subIntervalClock.getNextRollover() :
+                nextPopularityUpdate.getNextUpdate();
+        resumedFencingToken = null;
+        scheduler.start(firstRun, this::saveNextPopularityUpdate, this::findPersistedNextUpdate);
     }
 
+    @PreDestroy
     public void cancelTimer() {
-        timer.cancel();
-        timer.purge();
-        scheduledUpdate.cancel();
+        scheduler.stop();
     }
 
     public NextPopularityUpdate getNextPopularityUpdate() {
@@ -90,4 +163,46 @@ public class ResourceAccessStatsUpdater {
     public void setNextPopularityUpdate(NextPopularityUpdate nextPopularityUpdate) {
         this.nextPopularityUpdate = nextPopularityUpdate;
     }
+
+    /**
+     * The next due rollover advances in memory on every replica, although only the leader rolls the resources over.
+     * So, when this replica acquires the leadership, the rollovers are resumed from the next update which was
+     * persisted by the previous leader, so that the ones it missed (e.g. before its lease expired) are caught up.
+     *
+     * @return the persisted next update, once for every acquisition of the leadership, or null
+     */
+    private Date findPersistedNextUpdate() {
+        Long fencingToken = leaderElection.getFencingToken();
+        if (fencingToken == null || fencingToken.equals(resumedFencingToken))
+            return null;
+
+        resumedFencingToken = fencingToken;
+
+        // The aligned rollovers only advance the current epoch, so there is nothing to catch up
+        if (subIntervalClock.isAligned())
+            return null;
+
+        CramPersistentVariables saved = cramPersistentVariablesRepository.findByVariableName("NEXT_POPULARITY_UPDATE");
+        Date nextUpdate = saved instanceof NextPopularityUpdate ? ((NextPopularityUpdate) saved).getNextUpdate() : null;
+        log.info("The leadership with fencing token " + fencingToken + " resumes the rollovers from " + nextUpdate);
+        return nextUpdate;
+    }
+
+    private void saveNextPopularityUpdate(Date nextUpdate) {
+        nextPopularityUpdate.setNextUpdate(nextUpdate);
+
+        // The progress of the rollover is persisted by the leader only, which is the replica that rolls over, and
+        // only after it has resumed from the progress of the previous leader
+        Long fencingToken = leaderElection.getFencingToken();
+        if (fencingToken == null || !fencingToken.equals(resumedFencingToken))
+            return;
+
+        if (nextPopularityUpdate.getId() == null) {
+            CramPersistentVariables saved = cramPersistentVariablesRepository.findByVariableName("NEXT_POPULARITY_UPDATE");
+            if (saved != null)
+                nextPopularityUpdate.setId(saved.getId());
+        }
+
+        cramPersistentVariablesRepository.save(nextPopularityUpdate);
+    }
 }
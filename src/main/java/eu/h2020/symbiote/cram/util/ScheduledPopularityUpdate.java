@@ -3,32 +3,68 @@ package eu.h2020.symbiote.cram.util;
 import eu.h2020.symbiote.core.internal.popularity.PopularityUpdate;
 import eu.h2020.symbiote.core.internal.popularity.PopularityUpdatesMessage;
 import eu.h2020.symbiote.cram.model.CramResource;
+import eu.h2020.symbiote.cram.model.ResourcePopularity;
 import eu.h2020.symbiote.cram.repository.ResourceRepository;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.AmqpException;
 import org.springframework.util.Assert;
 
+import java.util.Collections;
 import java.util.Date;
-import java.util.List;
-import java.util.TimerTask;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * Created by vasgl on 7/2/2017.
+ *
+ * When cram.popularity.deltaUpdates.enabled is set, only the resources whose views differ from the ones they were
+ * last published with are sent to the Search. The published views are stored in every resource after the message is
+ * sent, so the deltas survive restarts and leader changes. All the resources are still sent every fullResyncInterval,
+ * in case the Search has lost some of the updates.
+ *
+ * When cram.popularity.topK.enabled is set, the k most viewed resources are ranked during the same traversal (see
+ * {@link TopKTracker.Ranking}) and they are sent as well in a separate, optional message, after the popularity
+ * updates.
+ *
+ * When cram.popularity.adaptiveInterval.enabled is set, every update which is sent successfully reports the number
+ * of the changed resources it published and the top k it ranked to the {@link AdaptiveInformSearchInterval}.
  */
-public class ScheduledPopularityUpdate extends TimerTask {
+public class ScheduledPopularityUpdate implements Runnable {
 
     private static Log log = LogFactory.getLog(ScheduledPopularityUpdate.class);
 
-    private RabbitTemplate rabbitTemplate;
+    private ConfirmingPublisher confirmingPublisher;
     private ResourceRepository resourceRepository;
     private String searchExchange;
     private String searchPopularityUpdatesRoutingKey;
+    private ViewsAccumulator viewsAccumulator;
+    private SubIntervalClock subIntervalClock;
+    private Integer traversalBatchSize;
+    private LeaderElection leaderElection;
+    private Boolean deltaUpdates;
+    private Long fullResyncInterval;
+    private long lastFullResync;
+    private Integer chunkMaxEntries;
+    private Integer chunkMaxBytes;
+    private TopKTracker topKTracker;
+    private String searchTopPopularityUpdatesRoutingKey;
+    private AdaptiveInformSearchInterval adaptiveInformSearchInterval;
 
-    public ScheduledPopularityUpdate(RabbitTemplate rabbitTemplate,  ResourceRepository resourceRepository,
-                                     String searchExchange, String searchPopularityUpdatesRoutingKey) {
-        Assert.notNull(rabbitTemplate,"RabbitTemplate can not be null!");
-        this.rabbitTemplate = rabbitTemplate;
+    public ScheduledPopularityUpdate(ConfirmingPublisher confirmingPublisher, ResourceRepository resourceRepository,
+                                     String searchExchange, String searchPopularityUpdatesRoutingKey,
+                                     ViewsAccumulator viewsAccumulator, SubIntervalClock subIntervalClock,
+                                     Integer traversalBatchSize, LeaderElection leaderElection,
+                                     Boolean deltaUpdates, Long fullResyncInterval,
+                                     Integer chunkMaxEntries, Integer chunkMaxBytes,
+                                     TopKTracker topKTracker, String searchTopPopularityUpdatesRoutingKey,
+                                     AdaptiveInformSearchInterval adaptiveInformSearchInterval) {
+        Assert.notNull(confirmingPublisher,"confirmingPublisher can not be null!");
+        this.confirmingPublisher = confirmingPublisher;
 
         Assert.notNull(resourceRepository,"resourceRepository can not be null!");
         this.resourceRepository = resourceRepository;
@@ -38,29 +74,166 @@ public class ScheduledPopularityUpdate extends TimerTask {
 
         Assert.notNull(searchPopularityUpdatesRoutingKey,"searchPopularityUpdatesRoutingKey can not be null!");
         this.searchPopularityUpdatesRoutingKey = searchPopularityUpdatesRoutingKey;
+
+        Assert.notNull(viewsAccumulator,"viewsAccumulator can not be null!");
+        this.viewsAccumulator = viewsAccumulator;
+
+        Assert.notNull(subIntervalClock,"subIntervalClock can not be null!");
+        this.subIntervalClock = subIntervalClock;
+
+        Assert.isTrue(traversalBatchSize != null && traversalBatchSize > 0,"traversalBatchSize should be positive!");
+        this.traversalBatchSize = traversalBatchSize;
+
+        Assert.notNull(leaderElection,"leaderElection can not be null!");
+        this.leaderElection = leaderElection;
+
+        Assert.notNull(deltaUpdates,"deltaUpdates can not be null!");
+        this.deltaUpdates = deltaUpdates;
+
+        Assert.isTrue(fullResyncInterval != null && fullResyncInterval > 0,"fullResyncInterval should be positive!");
+        this.fullResyncInterval = fullResyncInterval;
+
+        Assert.isTrue(chunkMaxEntries != null && chunkMaxEntries > 0,"chunkMaxEntries should be positive!");
+        this.chunkMaxEntries = chunkMaxEntries;
+
+        Assert.isTrue(chunkMaxBytes != null && chunkMaxBytes > 0,"chunkMaxBytes should be positive!");
+        this.chunkMaxBytes = chunkMaxBytes;
+
+        Assert.notNull(topKTracker,"topKTracker can not be null!");
+        this.topKTracker = topKTracker;
+
+        Assert.notNull(searchTopPopularityUpdatesRoutingKey,"searchTopPopularityUpdatesRoutingKey can not be null!");
+        this.searchTopPopularityUpdatesRoutingKey = searchTopPopularityUpdatesRoutingKey;
+
+        Assert.notNull(adaptiveInformSearchInterval,"adaptiveInformSearchInterval can not be null!");
+        this.adaptiveInformSearchInterval = adaptiveInformSearchInterval;
     }
 
     public void run() {
+        // Only the leader informs the Search, so that it does not receive the popularity updates of every replica
+        Long fencingToken = leaderElection.getFencingToken();
+        if (fencingToken == null) {
+            log.trace("Periodic sending of popularity updates SKIPPED, since this replica is not the leader");
+            return;
+        }
+
         log.trace("Periodic sending of popularity updates to search engine STARTED at:" + new Date(new Date().getTime()));
 
-        PopularityUpdatesMessage popularityUpdatesMessage = new PopularityUpdatesMessage();
+        long start = System.currentTimeMillis();
+        boolean fullResync = !deltaUpdates || start - lastFullResync >= fullResyncInterval;
+        Set<String> changedResources = new HashSet<>();
+        AtomicInteger noPublished = new AtomicInteger();
+        TopKTracker.Ranking ranking = topKTracker.isEnabled() ? new TopKTracker.Ranking(topKTracker.getK()) : null;
+
+        // The published views are stored only after their chunk was confirmed, so a failed update is retried
+        ChunkedPopularityPublisher publisher = new ChunkedPopularityPublisher(confirmingPublisher, searchExchange,
+                searchPopularityUpdatesRoutingKey, chunkMaxEntries, chunkMaxBytes, String.valueOf(start),
+                !deltaUpdates ? null : sentUpdates -> {
+                    Map<String, Integer> publishedViews = new HashMap<>();
+                    for (PopularityUpdate popularityUpdate : sentUpdates) {
+                        if (changedResources.remove(popularityUpdate.getId()))
+                            publishedViews.put(popularityUpdate.getId(), popularityUpdate.getViewsInDefinedInterval());
+                    }
+                    noPublished.addAndGet(resourceRepository.savePublishedViews(publishedViews));
+                });
+
+        // The resources are streamed in batches with their views only and the updates are sent in chunks, so
+        // neither the memory nor the messages grow with the registry
+        log.trace("Sending messages to exchange = " + searchExchange + " with key = " + searchPopularityUpdatesRoutingKey);
+        int noResources;
+        if (subIntervalClock.isAligned()) {
+            // The views of the current window are summed over the subIntervals, so the resources are mapped
+            noResources = resourceRepository.forEachBatch(traversalBatchSize, listOfCramResources -> {
+                leaderElection.checkLeadership(fencingToken);
 
-        List<CramResource> listOfCramResources = resourceRepository.findAll();
+                if (subIntervalClock.isLazyRollover()) {
+                    int expiredResources = resourceRepository.expireSubIntervals(listOfCramResources,
+                            subIntervalClock.getStartOfWindow(), subIntervalClock.getCurrentEpoch());
+                    log.debug("The subIntervals of " + expiredResources + " resources were expired");
+                }
 
-        log.debug("resourdeRepo size = " + listOfCramResources.size());
+                for (CramResource cramResource : listOfCramResources)
+                    addUpdate(publisher, changedResources, ranking, fullResync, cramResource.getId(),
+                            cramResource.getViewsInWindow(subIntervalClock.getStartOfWindow(),
+                                    subIntervalClock.getEndOfWindow()),
+                            cramResource.getPublishedViews());
+            }, ResourceRepository.VIEWS_FIELDS);
+        } else {
+            // Otherwise the stored viewsInDefinedInterval is up to date, so only the popularity fields are read
+            noResources = resourceRepository.forEachPopularityBatch(traversalBatchSize, listOfPopularities -> {
+                leaderElection.checkLeadership(fencingToken);
 
-        for(CramResource cramResource : listOfCramResources) {
-            PopularityUpdate popularityUpdate = new PopularityUpdate();
-            popularityUpdate.setId(cramResource.getId());
-            popularityUpdate.setViewsInDefinedInterval(cramResource.getViewsInDefinedInterval());
-            popularityUpdatesMessage.addToPopularityUpdateList(popularityUpdate);
+                for (ResourcePopularity resourcePopularity : listOfPopularities)
+                    addUpdate(publisher, changedResources, ranking, fullResync, resourcePopularity.getId(),
+                            resourcePopularity.getViewsInDefinedInterval(), resourcePopularity.getPublishedViews());
+            });
         }
 
+        log.debug("resourdeRepo size = " + noResources);
+
         // Informing Search Engine
-        log.trace("Sending message to exchange = " + searchExchange + " with key = " + searchPopularityUpdatesRoutingKey);
-        if (popularityUpdatesMessage.getPopularityUpdateList() != null &&
-                popularityUpdatesMessage.getPopularityUpdateList().size() > 0)
-        rabbitTemplate.convertAndSend(searchExchange, searchPopularityUpdatesRoutingKey, popularityUpdatesMessage);
+        leaderElection.checkLeadership(fencingToken);
+        int noMessages = publisher.finish();
+        log.debug("The popularity updates were sent in " + noMessages + " messages");
+
+        if (deltaUpdates) {
+            log.debug("Published the changed views of " + noPublished.get() + " resources" +
+                    (fullResync ? " with a full resync" : ""));
+
+            if (fullResync)
+                lastFullResync = start;
+        }
+
+        // The popularity updates have been confirmed, so the interval adapts regardless of the top k message
+        if (adaptiveInformSearchInterval.isEnabled())
+            adaptiveInformSearchInterval.onPublished(start, noPublished.get(), ranking == null ?
+                    Collections.emptyList() : ranking.getTopK().stream().map(PopularityUpdate::getId)
+                    .collect(Collectors.toList()));
+
+        // The most viewed resources are also sent in a single compact message, in which they are ranked. It is
+        // optional, so it is not retried if the Search has not bound a queue to its routing key and a failure to
+        // send it does not fail the update
+        if (ranking != null) {
+            PopularityUpdatesMessage topPopularityUpdatesMessage = new PopularityUpdatesMessage();
+            topPopularityUpdatesMessage.setPopularityUpdateList(ranking.getTopK());
+            try {
+                confirmingPublisher.send(searchExchange, searchTopPopularityUpdatesRoutingKey,
+                        topPopularityUpdatesMessage, null, null, false);
+                confirmingPublisher.awaitConfirms();
+                log.debug("The top " + topPopularityUpdatesMessage.getPopularityUpdateList().size() +
+                        " resources were sent");
+            } catch (AmqpException | IllegalStateException e) {
+                log.warn("The top " + topPopularityUpdatesMessage.getPopularityUpdateList().size() +
+                        " resources were not sent", e);
+            }
+        }
+
         log.trace("Periodic sending of popularity updates to search engine ENDED at:" + new Date(new Date().getTime()));
     }
+
+    /**
+     * Adds the popularity update of a resource to the publisher, unless only the changed views are published and the
+     * views of the resource have not changed. The resource is offered to the ranking (if any) in any case
+     */
+    private void addUpdate(ChunkedPopularityPublisher publisher, Set<String> changedResources,
+                           TopKTracker.Ranking ranking, boolean fullResync,
+                           String id, Integer storedViews, Integer publishedViews) {
+        // The views which have not been flushed to the database yet are also taken into account
+        Integer views = (storedViews == null ? 0 : storedViews) + (int) viewsAccumulator.getPendingViews(id);
+        boolean changed = !views.equals(publishedViews);
+
+        if (ranking != null)
+            ranking.offer(id, views);
+
+        if (!fullResync && !changed)
+            return;
+
+        if (deltaUpdates && changed)
+            changedResources.add(id);
+
+        PopularityUpdate popularityUpdate = new PopularityUpdate();
+        popularityUpdate.setId(id);
+        popularityUpdate.setViewsInDefinedInterval(views);
+        publisher.add(popularityUpdate);
+    }
 }
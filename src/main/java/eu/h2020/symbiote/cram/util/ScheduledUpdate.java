@@ -6,8 +6,12 @@ import eu.h2020.symbiote.core.cci.accessNotificationMessages.SuccessfulPushesMes
 import eu.h2020.symbiote.core.internal.cram.NotificationMessageSecured;
 import eu.h2020.symbiote.cram.managers.AuthorizationManager;
 import eu.h2020.symbiote.cram.messaging.AccessNotificationListener;
+import eu.h2020.symbiote.cram.messaging.NotificationHandoff;
 import eu.h2020.symbiote.cram.model.CramResource;
+import eu.h2020.symbiote.cram.model.RolloverCheckpoint;
+import eu.h2020.symbiote.cram.model.SubIntervalViews;
 import eu.h2020.symbiote.cram.model.authorization.AuthorizationResult;
+import eu.h2020.symbiote.cram.repository.CramPersistentVariablesRepository;
 import eu.h2020.symbiote.cram.repository.ResourceRepository;
 import eu.h2020.symbiote.security.communication.payloads.SecurityRequest;
 import org.apache.commons.logging.Log;
@@ -15,26 +19,48 @@ import org.apache.commons.logging.LogFactory;
 import org.springframework.util.Assert;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by vasgl on 7/2/2017.
  */
-public class ScheduledUpdate extends TimerTask {
+public class ScheduledUpdate implements Runnable {
 
     private static Log log = LogFactory.getLog(ScheduledUpdate.class);
 
+    static final int MAX_SAVE_ATTEMPTS = 5;
+
     private static ResourceRepository resourceRepository;
     private static Long noSubIntervals;
     private static Long subIntervalDuration;
     private static AccessNotificationListener accessNotificationListener;
     private static AuthorizationManager authorizationManager;
+    private static ViewsAccumulator viewsAccumulator;
+    private static NotificationDeduplicator notificationDeduplicator;
+    private static SubIntervalClock subIntervalClock;
+    private static Boolean serverSideRollover;
+    private static Integer traversalBatchSize;
+    private static PartitionedRollover partitionedRollover;
+    private static LeaderElection leaderElection;
+    private static CramPersistentVariablesRepository cramPersistentVariablesRepository;
+    private static TopKTracker topKTracker;
+    private static Boolean pipelineUpdatesSupported;
 
     ScheduledUpdate(ResourceRepository resourceRepository, Long noSubIntervals,
                            Long subIntervalDuration, AccessNotificationListener accessNotificationListener,
-                           PopularityUpdater popularityUpdater, AuthorizationManager authorizationManager) {
+                           PopularityUpdater popularityUpdater, AuthorizationManager authorizationManager,
+                           ViewsAccumulator viewsAccumulator, NotificationDeduplicator notificationDeduplicator,
+                           SubIntervalClock subIntervalClock, Boolean serverSideRollover,
+                           Integer traversalBatchSize, PartitionedRollover partitionedRollover,
+                           LeaderElection leaderElection,
+                           CramPersistentVariablesRepository cramPersistentVariablesRepository,
+                           TopKTracker topKTracker) {
         Assert.notNull(resourceRepository,"Resource repository can not be null!");
         this.resourceRepository = resourceRepository;
 
@@ -49,64 +75,415 @@ public class ScheduledUpdate extends TimerTask {
 
         Assert.notNull(authorizationManager,"authorizationManager can not be null!");
         this.authorizationManager = authorizationManager;
+
+        Assert.notNull(viewsAccumulator,"viewsAccumulator can not be null!");
+        this.viewsAccumulator = viewsAccumulator;
+
+        Assert.notNull(notificationDeduplicator,"notificationDeduplicator can not be null!");
+        this.notificationDeduplicator = notificationDeduplicator;
+
+        Assert.notNull(subIntervalClock,"subIntervalClock can not be null!");
+        this.subIntervalClock = subIntervalClock;
+
+        Assert.notNull(serverSideRollover,"serverSideRollover can not be null!");
+        this.serverSideRollover = serverSideRollover;
+
+        Assert.isTrue(traversalBatchSize != null && traversalBatchSize > 0,"traversalBatchSize should be positive!");
+        this.traversalBatchSize = traversalBatchSize;
+
+        Assert.notNull(partitionedRollover,"partitionedRollover can not be null!");
+        this.partitionedRollover = partitionedRollover;
+
+        Assert.notNull(leaderElection,"leaderElection can not be null!");
+        this.leaderElection = leaderElection;
+
+        Assert.notNull(cramPersistentVariablesRepository,"cramPersistentVariablesRepository can not be null!");
+        this.cramPersistentVariablesRepository = cramPersistentVariablesRepository;
+
+        Assert.notNull(topKTracker,"topKTracker can not be null!");
+        this.topKTracker = topKTracker;
+
+        // The support of the server-side rollover is checked with the first rollover
+        pipelineUpdatesSupported = null;
     }
 
     public void run() {
         log.trace("Periodic resource popularity update STARTED :" + new Date(new Date().getTime()));
-        accessNotificationListener.setScheduledUpdateOngoing(true);
-
-        List<CramResource> listOfCramResources = resourceRepository.findAll();
 
-        log.debug("resourceRepo size = " + listOfCramResources.size());
+        // The windows of the resources are implied by the current epoch, so none of them has to be rewritten
+        if (subIntervalClock.isAligned()) {
+            long currentEpoch = subIntervalClock.advance();
+            log.trace("Periodic resource popularity update ENDED with the current epoch = " + currentEpoch);
+            return;
+        }
 
-        for(CramResource cramResource : listOfCramResources) {
-            cramResource.scheduleUpdateInResourceAccessStats(noSubIntervals, subIntervalDuration);
+        // Only the leader rolls the resources over, since the rollover rewrites all of them
+        Long fencingToken = leaderElection.getFencingToken();
+        if (fencingToken == null) {
+            log.trace("Periodic resource popularity update SKIPPED, since this replica is not the leader");
+            return;
         }
 
-        resourceRepository.save(listOfCramResources);
-        accessNotificationListener.setScheduledUpdateOngoing(false);
-        updateResourcesWithQueuedNotifications(accessNotificationListener.getNotificationMessageList());
+        NotificationHandoff notificationHandoff = accessNotificationListener.getNotificationHandoff();
+        notificationHandoff.beginRollover();
+
+        // The pending views are flushed before the resources are loaded, since the whole resources are saved below
+        viewsAccumulator.suspendFlushing();
+
+        try {
+            RolloverCheckpoint checkpoint = findCheckpoint();
+
+            // An interrupted rollover is completed first, so no resource is rolled over twice, and then the rollover
+            // of this run follows, so the resources do not fall behind by one subInterval
+            if (!checkpoint.isCompleted()) {
+                log.info("Resuming the rollover to epoch " + checkpoint.getRolloverEpoch() + " after " +
+                        checkpoint.getProcessedResources() + " resources (last id = " +
+                        checkpoint.getLastProcessedId() + ")");
+                rollover(checkpoint, fencingToken);
+            }
+
+            leaderElection.checkLeadership(fencingToken);
+            checkpoint.startNextRollover();
+            cramPersistentVariablesRepository.save(checkpoint);
+            rollover(checkpoint, fencingToken);
+        } finally {
+            viewsAccumulator.resumeFlushing();
+
+            int queuedNotifications = notificationHandoff.endRollover();
+            log.trace("The queued notifications processed after the update: " + queuedNotifications);
+        }
 
         log.trace("Periodic resource popularity update ENDED :" + new Date());
     }
 
-    private void updateResourcesWithQueuedNotifications(List<NotificationMessageSecured> notificationMessageList) {
-        log.trace("updateResourcesWithQueuedNotifications STARTED" );
+    private static RolloverCheckpoint findCheckpoint() {
+        RolloverCheckpoint checkpoint = (RolloverCheckpoint) cramPersistentVariablesRepository
+                .findByVariableName(RolloverCheckpoint.ROLLOVER_CHECKPOINT);
+        return checkpoint != null ? checkpoint : new RolloverCheckpoint();
+    }
+
+    /**
+     * Rolls the resources over to the epoch of the checkpoint and marks the checkpoint as completed
+     */
+    private static void rollover(RolloverCheckpoint checkpoint, long fencingToken) {
+        if (!serverSideRollover || !rolloverInDatabase(checkpoint, fencingToken))
+            rolloverInMemory(checkpoint, fencingToken);
+
+        leaderElection.checkLeadership(fencingToken);
+        checkpoint.setCompleted(true);
+        cramPersistentVariablesRepository.save(checkpoint);
+    }
+
+    /**
+     * The resources which have not been rolled over to the epoch of the checkpoint are streamed in batches with
+     * their views only, so the memory does not grow with the registry. The leadership is checked before every batch
+     * is written and the checkpoint is saved after it. The views which other replicas add meanwhile are not
+     * overwritten (see {@link PartitionedRollover#rolloverBatch(List, Long)})
+     */
+    private static void rolloverInMemory(RolloverCheckpoint checkpoint, long fencingToken) {
+        Long rolloverEpoch = checkpoint.getRolloverEpoch();
 
-        ArrayList<NotificationMessageSecured> messagesToRemove = new ArrayList<>();
-        for (NotificationMessageSecured messageSecured : notificationMessageList) {
-            updateSuccessfulAttemptsMessage(messageSecured);
-            messagesToRemove.add(messageSecured);
+        if (partitionedRollover.isEnabled()) {
+            partitionedRollover.rollover(rolloverEpoch, () -> leaderElection.checkLeadership(fencingToken),
+                    (lastId, rolledOver) -> {
+                        // The batches of the partitions are written concurrently
+                        synchronized (checkpoint) {
+                            checkpoint.recordBatch(lastId, rolledOver);
+                            cramPersistentVariablesRepository.save(checkpoint);
+                        }
+                    });
+            return;
         }
-        notificationMessageList.removeAll(messagesToRemove);
 
-        log.trace("updateResourcesWithQueuedNotifications ENDED" );
+        int noResources = resourceRepository.forEachBatchNotRolledOver(rolloverEpoch, traversalBatchSize, cramResources -> {
+            leaderElection.checkLeadership(fencingToken);
+
+            String lastId = cramResources.get(cramResources.size() - 1).getId();
+            int rolledOver = partitionedRollover.rolloverBatch(cramResources, rolloverEpoch);
+            checkpoint.recordBatch(lastId, rolledOver);
+            cramPersistentVariablesRepository.save(checkpoint);
+        }, ResourceRepository.VIEWS_FIELDS);
+
+        log.debug("resourceRepo size = " + noResources);
+    }
+
+    /**
+     * @return false if the database can not roll the resources over, because it is older than MongoDB 4.2. Any
+     * failure of the rollover itself is propagated, since some of the resources may have already been rolled over
+     */
+    private static boolean rolloverInDatabase(RolloverCheckpoint checkpoint, long fencingToken) {
+        if (pipelineUpdatesSupported == null) {
+            pipelineUpdatesSupported = resourceRepository.supportsPipelineUpdates();
+            if (!pipelineUpdatesSupported)
+                log.warn("The database does not support the server-side rollover (it requires MongoDB 4.2 or " +
+                        "later), so the resources are rolled over in memory");
+        }
+
+        if (!pipelineUpdatesSupported)
+            return false;
+
+        leaderElection.checkLeadership(fencingToken);
+        int rolledOverResources = resourceRepository.rolloverSubIntervals(noSubIntervals, subIntervalDuration,
+                checkpoint.getRolloverEpoch());
+        log.debug("The subIntervals of " + rolledOverResources + " resources were rolled over in the database");
+        return true;
     }
 
     public static void updateSuccessfulAttemptsMessage(NotificationMessageSecured message) {
-        for(SuccessfulAccessMessageInfo successfulAttempts : message.getBody().getSuccessfulAttempts())
-            updateResourceViews(successfulAttempts, message.getSecurityRequest(), "SuccessfulAccessMessageInfo");
+        updateSuccessfulAttemptsMessages(Collections.singletonList(message));
+    }
+
+    /**
+     * Updates the resource views with the successful attempts and pushes of a batch of notification messages.
+     * The entries of every message are first grouped by resource id, so that each resource is loaded once (with a
+     * single $in query for the whole batch), no matter how many entries refer to it. The SecurityRequest of every
+     * message is evaluated once per distinct platform of its resources.
+     * All the timestamps are then grouped by subInterval and they are stored with a single bulk of $inc updates,
+     * instead of saving the whole resource for every single MessageInfo.
+     *
+     * @param messages the notification messages to be applied
+     */
+    public static void updateSuccessfulAttemptsMessages(List<NotificationMessageSecured> messages) {
+        List<Map<String, List<Date>>> timestampsPerMessage = new ArrayList<>(messages.size());
+        Set<String> resourceIds = new HashSet<>();
+
+        for (NotificationMessageSecured message : messages) {
+            Map<String, List<Date>> timestampsPerResource = groupTimestampsByResource(message);
+            timestampsPerMessage.add(timestampsPerResource);
+            resourceIds.addAll(timestampsPerResource.keySet());
+        }
+
+        Map<String, CramResource> resources = findResources(resourceIds);
+
+        // The notified resources which were last updated in a previous epoch are expired before their views are added
+        if (subIntervalClock.isLazyRollover())
+            resourceRepository.expireSubIntervals(resources.values(), subIntervalClock.getStartOfWindow(),
+                    subIntervalClock.getCurrentEpoch());
+
+        Map<String, Map<Date, Integer>> viewsPerResource = new HashMap<>();
+        Map<String, List<Date>> viewsWithoutSubInterval = new HashMap<>();
+        Map<String, Set<Date>> acceptedViews = new HashMap<>();
+
+        for (int i = 0; i < messages.size(); i++) {
+            Map<String, List<Date>> timestampsPerResource = timestampsPerMessage.get(i);
+            Map<String, AuthorizationResult> authorizationResults = authorizeMessage(
+                    timestampsPerResource.keySet(), resources, messages.get(i).getSecurityRequest());
+
+            for (Map.Entry<String, List<Date>> entry : timestampsPerResource.entrySet()) {
+                CramResource cramResource = resources.get(entry.getKey());
+
+                if (cramResource == null)
+                    log.debug("The resource with id = " + entry.getKey() + " was not found");
+                else
+                    aggregateResourceViews(cramResource, entry.getValue(),
+                            authorizationResults.get(cramResource.getPlatformId()),
+                            viewsPerResource, viewsWithoutSubInterval, acceptedViews);
+            }
+        }
+
+        if (viewsAccumulator.isEnabled())
+            viewsAccumulator.addViews(viewsPerResource);
+        else
+            resourceRepository.incrementViewsInSubIntervals(viewsPerResource);
+
+        // The views which do not belong to any of the existing subIntervals create new subIntervals. This happens
+        // after the bulk update, so that the $inc updates are not overwritten
+        if (!viewsWithoutSubInterval.isEmpty()) {
+            // The views of the window are summed over the subIntervals in the aligned mode, so one more subInterval
+            // is kept for the views which arrive after the end of the window, when the rollover is late
+            if (subIntervalClock.isAligned())
+                resourceRepository.incrementViewsInAlignedSubIntervals(groupBySubInterval(viewsWithoutSubInterval),
+                        subIntervalDuration, (int) (noSubIntervals + 1));
+            else
+                addViewsInNewSubIntervals(viewsWithoutSubInterval);
+        }
+
+        if (topKTracker.isEnabled()) {
+            topKTracker.addViews(viewsPerResource);
+            for (Map.Entry<String, List<Date>> entry : viewsWithoutSubInterval.entrySet()) {
+                Map<Date, Integer> views = new HashMap<>();
+                entry.getValue().forEach(timestamp -> views.merge(timestamp, 1, Integer::sum));
+                topKTracker.addViews(Collections.singletonMap(entry.getKey(), views));
+            }
+        }
+
+        // The views are recorded only after they are stored, so that a retry of a failed write is not suppressed
+        if (notificationDeduplicator.isEnabled())
+            notificationDeduplicator.record(acceptedViews);
+    }
+
+    /**
+     * @return the number of the views per resource id and per start of their subInterval on the global grid
+     */
+    private static Map<String, Map<Date, Integer>> groupBySubInterval(Map<String, List<Date>> timestampsPerResource) {
+        Map<String, Map<Date, Integer>> viewsPerResource = new HashMap<>();
+
+        for (Map.Entry<String, List<Date>> entry : timestampsPerResource.entrySet()) {
+            Map<Date, Integer> subIntervalViews = viewsPerResource.computeIfAbsent(entry.getKey(), k -> new HashMap<>());
+            for (Date timestamp : entry.getValue())
+                subIntervalViews.merge(subIntervalClock.startOfSubInterval(timestamp), 1, Integer::sum);
+        }
+
+        return viewsPerResource;
+    }
+
+    /**
+     * Adds the views which do not belong to any of the existing subIntervals of the resources. The new subIntervals
+     * replace the whole list of a resource, so it is written only if neither views were added to the resource nor it
+     * was rolled over since it was read. Otherwise the writes of the other replicas or the rollover of the leader
+     * would be undone, since only the handoff of the leader is paused during the rollover. The resources which
+     * changed are read again and their views are added anew, up to MAX_SAVE_ATTEMPTS times.
+     */
+    private static void addViewsInNewSubIntervals(Map<String, List<Date>> viewsWithoutSubInterval) {
+        Set<String> pending = viewsWithoutSubInterval.keySet();
+
+        for (int attempt = 1; ; attempt++) {
+            Set<String> changed = new HashSet<>();
+
+            for (CramResource cramResource : resourceRepository.findAllWithFields(pending,
+                    ResourceRepository.VIEWS_FIELDS)) {
+                Integer readViews = cramResource.getViewsInDefinedInterval();
+                cramResource.addViewsInSubIntervals(viewsWithoutSubInterval.get(cramResource.getId()),
+                        noSubIntervals, subIntervalDuration);
+
+                if (!resourceRepository.saveViewsIfUnchanged(cramResource, readViews))
+                    changed.add(cramResource.getId());
+            }
+
+            pending = changed;
+
+            if (pending.isEmpty())
+                return;
+
+            if (attempt >= MAX_SAVE_ATTEMPTS)
+                throw new IllegalStateException("The views of " + pending.size() + " resources kept changing " +
+                        "while new subIntervals were added to them");
+            log.debug("The views of " + pending.size() + " resources changed while new subIntervals were added to " +
+                    "them, so they are added again");
+        }
+    }
+
+    /**
+     * Merges the timestamps of all the successful attempts and pushes of a message which refer to the same resource.
+     */
+    private static Map<String, List<Date>> groupTimestampsByResource(NotificationMessageSecured message) {
+        Map<String, List<Date>> timestampsPerResource = new HashMap<>();
+
+        if (message.getBody() == null)
+            return timestampsPerResource;
+
+        if (message.getBody().getSuccessfulAttempts() != null) {
+            log.trace("Updating views due to SuccessfulAccessMessageInfo");
+            for (SuccessfulAccessMessageInfo successfulAttempts : message.getBody().getSuccessfulAttempts())
+                mergeTimestamps(successfulAttempts, timestampsPerResource);
+        }
+
+        if (message.getBody().getSuccessfulPushes() != null) {
+            log.trace("Updating views due to SuccessfulPushesMessageInfo");
+            for (SuccessfulPushesMessageInfo successfulPushes : message.getBody().getSuccessfulPushes())
+                mergeTimestamps(successfulPushes, timestampsPerResource);
+        }
+
+        return timestampsPerResource;
+    }
+
+    private static void mergeTimestamps(MessageInfo messageInfo, Map<String, List<Date>> timestampsPerResource) {
+        if (messageInfo.getSymbIoTeId() == null || messageInfo.getTimestamps() == null)
+            return;
 
-        for(SuccessfulPushesMessageInfo successfulPushes : message.getBody().getSuccessfulPushes())
-            updateResourceViews(successfulPushes, message.getSecurityRequest(), "SuccessfulPushesMessageInfo");
+        timestampsPerResource.computeIfAbsent(messageInfo.getSymbIoTeId(), k -> new ArrayList<>())
+                .addAll(messageInfo.getTimestamps());
     }
 
-    private static void updateResourceViews(MessageInfo messageInfo, SecurityRequest securityRequest,
-                                            String typeOfMessage) {
-        log.trace("Updating views due to " + typeOfMessage);
+    private static Map<String, CramResource> findResources(Set<String> resourceIds) {
+        Map<String, CramResource> resources = new HashMap<>();
 
-        CramResource cramResource = resourceRepository.findOne(messageInfo.getSymbIoTeId());
-        AuthorizationResult authorizationResult = authorizationManager.checkNotificationSecured(cramResource, securityRequest);
+        if (resourceIds.isEmpty())
+            return resources;
 
-        if (cramResource != null && authorizationResult.isValidated()) {
-            cramResource.addViewsInSubIntervals(messageInfo.getTimestamps(), noSubIntervals, subIntervalDuration);
-            resourceRepository.save(cramResource);
+        for (CramResource cramResource : resourceRepository.findAll(resourceIds))
+            resources.put(cramResource.getId(), cramResource);
 
-            log.debug("The views of the resource with id = " + messageInfo.getSymbIoTeId() + " were updated");
+        log.debug("Loaded " + resources.size() + " out of " + resourceIds.size() + " notified resources");
+        return resources;
+    }
+
+    /**
+     * Evaluates the SecurityRequest of a message once for every distinct platform of the notified resources.
+     */
+    private static Map<String, AuthorizationResult> authorizeMessage(Set<String> resourceIds,
+                                                                     Map<String, CramResource> resources,
+                                                                     SecurityRequest securityRequest) {
+        Set<String> platformIds = new HashSet<>();
+
+        for (String resourceId : resourceIds) {
+            CramResource cramResource = resources.get(resourceId);
+            if (cramResource != null)
+                platformIds.add(cramResource.getPlatformId());
+        }
+
+        if (platformIds.isEmpty())
+            return Collections.emptyMap();
+
+        return authorizationManager.checkNotificationSecuredPerPlatform(platformIds, securityRequest);
+    }
+
+    private static void aggregateResourceViews(CramResource cramResource, List<Date> timestamps,
+                                               AuthorizationResult authorizationResult,
+                                               Map<String, Map<Date, Integer>> viewsPerResource,
+                                               Map<String, List<Date>> viewsWithoutSubInterval,
+                                               Map<String, Set<Date>> acceptedViews) {
+        if (authorizationResult == null || !authorizationResult.isValidated()) {
+            log.debug(authorizationResult != null ? authorizationResult.getMessage() :
+                    "No authorization result for the resource with id = " + cramResource.getId());
+            return;
+        }
+
+        String resourceId = cramResource.getId();
+        Date now = new Date();
+        Map<Date, Integer> subIntervalViews = viewsPerResource.computeIfAbsent(resourceId, k -> new HashMap<>());
+
+        for (Date timestamp : timestamps) {
+            if (subIntervalClock.isAligned() && !subIntervalClock.isCountable(timestamp))
+                continue;
+
+            if (notificationDeduplicator.isEnabled() && isDuplicate(resourceId, timestamp, acceptedViews))
+                continue;
+
+            Date startOfSubInterval = getStartOfSubInterval(cramResource, timestamp);
+
+            if (startOfSubInterval != null)
+                subIntervalViews.merge(startOfSubInterval, 1, Integer::sum);
+            else if (timestamp.before(now))
+                viewsWithoutSubInterval.computeIfAbsent(resourceId, k -> new ArrayList<>()).add(timestamp);
+        }
+
+        log.debug("The views of the resource with id = " + resourceId + " were aggregated");
+    }
+
+    private static Date getStartOfSubInterval(CramResource cramResource, Date timestamp) {
+        if (subIntervalClock.isAligned()) {
+            Date startOfSubInterval = subIntervalClock.startOfSubInterval(timestamp);
+            return cramResource.getSubIntervalStartingAt(startOfSubInterval.getTime()) != null ?
+                    startOfSubInterval : null;
         }
-        else if (cramResource == null)
-            log.debug("The resource with id = " + messageInfo.getSymbIoTeId() + " was not found");
-        else if (!authorizationResult.isValidated())
-            log.debug(authorizationResult.getMessage());
+
+        SubIntervalViews subInterval = cramResource.getSubIntervalOf(timestamp);
+        return subInterval != null ? subInterval.getStartOfInterval() : null;
+    }
+
+    /**
+     * Checks a view against the views which have already been stored and the views of the current batch.
+     */
+    private static boolean isDuplicate(String resourceId, Date timestamp, Map<String, Set<Date>> acceptedViews) {
+        Set<Date> acceptedTimestamps = acceptedViews.computeIfAbsent(resourceId, k -> new HashSet<>());
+
+        if (acceptedTimestamps.contains(timestamp) || notificationDeduplicator.isDuplicate(resourceId, timestamp)) {
+            log.debug("Duplicate view of the resource with id = " + resourceId + " at " + timestamp.getTime());
+            return true;
+        }
+
+        acceptedTimestamps.add(timestamp);
+        return false;
     }
 }
@@ -0,0 +1,99 @@
+package eu.h2020.symbiote.cram.util;
+
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Space-Saving summary of the most frequent ids of a stream with weighted increments (Metwally et al.). At most
+ * capacity counters are kept; when an untracked id arrives while the summary is full, the counter with the minimum
+ * count is reassigned to it and its count becomes the error of the new counter. The count of a tracked id is thus
+ * overestimated by at most its error, which never exceeds total / capacity, and every id whose count exceeds
+ * total / capacity is guaranteed to be tracked.
+ *
+ * The summary is not thread-safe.
+ */
+public class SpaceSaving {
+
+    private final int capacity;
+    private final Map<String, Counter> counters = new HashMap<>();
+    private final TreeSet<Counter> countersByCount = new TreeSet<>((c1, c2) -> {
+        int compare = Long.compare(c1.count, c2.count);
+        return compare != 0 ? compare : Long.compare(c1.sequence, c2.sequence);
+    });
+    private long total = 0;
+    private long nextSequence = 0;
+
+    public SpaceSaving(int capacity) {
+        Assert.isTrue(capacity > 0,"capacity should be positive!");
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() { return this.capacity; }
+    public long getTotal() { return this.total; }
+    public int size() { return this.counters.size(); }
+
+    public void offer(String id, long weight) {
+        Assert.isTrue(weight > 0,"weight should be positive!");
+        total += weight;
+
+        Counter counter = counters.get(id);
+        if (counter == null) {
+            if (counters.size() < capacity)
+                counter = new Counter(id, 0, 0);
+            else {
+                Counter minimum = countersByCount.pollFirst();
+                counters.remove(minimum.id);
+                counter = new Counter(id, minimum.count, minimum.count);
+            }
+            counters.put(id, counter);
+        } else
+            countersByCount.remove(counter);
+
+        counter.count += weight;
+        counter.sequence = nextSequence++;
+        countersByCount.add(counter);
+    }
+
+    /**
+     * @return the minimum count of a full summary, which bounds the count of every untracked id and the error of every
+     * tracked one, or 0 while the summary is not full
+     */
+    public long getMinCount() {
+        return counters.size() < capacity ? 0 : countersByCount.first().count;
+    }
+
+    public Collection<Counter> getCounters() {
+        return new ArrayList<>(counters.values());
+    }
+
+    public static class Counter {
+
+        private final String id;
+        private long count;
+        private final long error;
+        private long sequence;
+
+        Counter(String id, long count, long error) {
+            this.id = id;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getId() { return this.id; }
+
+        /**
+         * @return the estimated count, which is an upper bound of the actual one
+         */
+        public long getCount() { return this.count; }
+
+        /**
+         * @return the maximum overestimation of the count
+         */
+        public long getError() { return this.error; }
+    }
+}
@@ -0,0 +1,114 @@
+package eu.h2020.symbiote.cram.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import java.util.Date;
+
+/**
+ * Global grid of the subIntervals, which is used when cram.subIntervals.aligned is set. The subIntervals of all the
+ * resources start at multiples of subIntervalDuration since the Unix epoch, so they are identified by their epoch,
+ * i.e. the index of the subInterval on the grid. The window of every resource is implied by the current epoch: it
+ * consists of the last noSubIntervals epochs. Consequently, the rollover just advances the current epoch and the
+ * resources without new views are not written at all.
+ *
+ * When cram.subIntervals.lazyRollover is set (which implies the aligned grid), the subIntervals which have left the
+ * window are also removed from the database lazily: every resource records the epoch of its last update and its
+ * expired subIntervals are removed on its next write or when its views are read for the popularity updates.
+ */
+@Component
+public class SubIntervalClock {
+
+    private static Log log = LogFactory.getLog(SubIntervalClock.class);
+
+    private Boolean aligned;
+    private Boolean lazyRollover;
+    private Long subIntervalDuration;
+    private Long noSubIntervals;
+    private volatile long currentEpoch;
+
+    @Autowired
+    public SubIntervalClock(@Value("${cram.subIntervals.aligned}") Boolean aligned,
+                            @Value("${cram.subIntervals.lazyRollover}") Boolean lazyRollover,
+                            @Qualifier("subIntervalDuration") Long subIntervalDuration,
+                            @Qualifier("noSubIntervals") Long noSubIntervals) {
+        Assert.notNull(aligned,"aligned can not be null!");
+        Assert.notNull(lazyRollover,"lazyRollover can not be null!");
+        this.lazyRollover = lazyRollover;
+        this.aligned = aligned || lazyRollover;
+
+        if (lazyRollover && !aligned)
+            log.info("The lazy rollover requires the aligned subIntervals, so they are enabled too");
+
+        Assert.notNull(subIntervalDuration,"subIntervalDuration can not be null!");
+        this.subIntervalDuration = subIntervalDuration;
+
+        Assert.notNull(noSubIntervals,"noSubIntervals can not be null!");
+        this.noSubIntervals = noSubIntervals;
+
+        this.currentEpoch = epochOf(new Date());
+    }
+
+    public Boolean isAligned() { return this.aligned; }
+    public Boolean isLazyRollover() { return this.lazyRollover; }
+    public long getCurrentEpoch() { return this.currentEpoch; }
+
+    public long epochOf(Date timestamp) {
+        return Math.floorDiv(timestamp.getTime(), subIntervalDuration);
+    }
+
+    public Date startOfEpoch(long epoch) {
+        return new Date(epoch * subIntervalDuration);
+    }
+
+    public Date startOfSubInterval(Date timestamp) {
+        return startOfEpoch(epochOf(timestamp));
+    }
+
+    /**
+     * @return the start of the oldest subInterval of the current window
+     */
+    public Date getStartOfWindow() {
+        return startOfEpoch(currentEpoch - noSubIntervals + 1);
+    }
+
+    /**
+     * @return the end of the newest subInterval of the current window
+     */
+    public Date getEndOfWindow() {
+        return startOfEpoch(currentEpoch + 1);
+    }
+
+    /**
+     * A view counts if it is not older than the current window and it did not happen in the future. The views
+     * after the end of the window (i.e. when the rollover is late) are stored and they are counted after the rollover.
+     */
+    public boolean isCountable(Date timestamp) {
+        return epochOf(timestamp) > currentEpoch - noSubIntervals && timestamp.before(new Date());
+    }
+
+    /**
+     * @return the start of the next subInterval on the grid, when the next rollover should happen
+     */
+    public Date getNextRollover() {
+        return startOfEpoch(epochOf(new Date()) + 1);
+    }
+
+    /**
+     * Advances the current epoch to the subInterval whose start is nearest to now, so that the rollover is not
+     * affected by the small deviations of the timer.
+     *
+     * @return the new current epoch
+     */
+    public long advance() {
+        long nearestEpoch = Math.floorDiv(System.currentTimeMillis() + subIntervalDuration / 2, subIntervalDuration);
+        currentEpoch = Math.max(currentEpoch, nearestEpoch);
+        log.debug("The current epoch of the subIntervals is " + currentEpoch);
+        return currentEpoch;
+    }
+}
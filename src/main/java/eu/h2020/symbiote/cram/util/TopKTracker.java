@@ -0,0 +1,215 @@
+package eu.h2020.symbiote.cram.util;
+
+import eu.h2020.symbiote.core.internal.popularity.PopularityUpdate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Tracks the k most viewed resources of the last intervalDuration in constant memory, when
+ * cram.popularity.topK.enabled is set. The views are counted by a {@link SpaceSaving} summary of capacity resources
+ * per subInterval of the global grid of subIntervalDuration and the noSubIntervals summaries of the window are merged
+ * when the top k are queried. The summary of the oldest subInterval is reused once the window has moved past it, so
+ * the memory is bounded by noSubIntervals * capacity counters.
+ *
+ * The counts are estimates: in every subInterval the views of a resource are overestimated by at most the views of
+ * the subInterval / capacity or, if the resource was evicted from the summary, underestimated by at most as much.
+ * The tracker counts the views which are consumed by this replica only, so it answers the local queries. The top k
+ * which are sent to the Search are ranked exactly by a {@link Ranking} from the stored views of all the resources,
+ * while they are traversed by the popularity update, so they do not depend on the replica which sends them.
+ */
+@Component
+public class TopKTracker {
+
+    private Boolean enabled;
+    private Integer k;
+    private Integer capacity;
+    private Long subIntervalDuration;
+
+    private final SpaceSaving[] summaries;
+    private final long[] epochs;
+
+    @Autowired
+    public TopKTracker(@Value("${cram.popularity.topK.enabled}") Boolean enabled,
+                       @Value("${cram.popularity.topK.k}") Integer k,
+                       @Value("${cram.popularity.topK.capacity}") Integer capacity,
+                       @Qualifier("subIntervalDuration") Long subIntervalDuration,
+                       @Qualifier("noSubIntervals") Long noSubIntervals) {
+        Assert.notNull(enabled,"enabled can not be null!");
+        this.enabled = enabled;
+
+        Assert.isTrue(k != null && k > 0,"k should be positive!");
+        this.k = k;
+
+        Assert.isTrue(capacity != null && capacity >= k,"capacity should be at least k!");
+        this.capacity = capacity;
+
+        Assert.isTrue(subIntervalDuration != null && subIntervalDuration > 0,"subIntervalDuration should be positive!");
+        this.subIntervalDuration = subIntervalDuration;
+
+        Assert.isTrue(noSubIntervals != null && noSubIntervals > 0,"noSubIntervals should be positive!");
+        this.summaries = new SpaceSaving[noSubIntervals.intValue()];
+        this.epochs = new long[noSubIntervals.intValue()];
+        for (int i = 0; i < epochs.length; i++)
+            epochs[i] = Long.MIN_VALUE;
+    }
+
+    public Boolean isEnabled() { return this.enabled; }
+    public Integer getK() { return this.k; }
+
+    /**
+     * Adds the views to the summaries of the subIntervals they belong to. The views which are older than the window
+     * or belong to the future are ignored.
+     *
+     * @param viewsPerResource the views per resource id and per timestamp (or start of the subInterval)
+     */
+    public synchronized void addViews(Map<String, Map<Date, Integer>> viewsPerResource) {
+        long currentEpoch = epochOf(System.currentTimeMillis());
+
+        for (Map.Entry<String, Map<Date, Integer>> resourceViews : viewsPerResource.entrySet()) {
+            for (Map.Entry<Date, Integer> views : resourceViews.getValue().entrySet()) {
+                long epoch = epochOf(views.getKey().getTime());
+
+                if (views.getValue() <= 0 || epoch > currentEpoch || epoch <= currentEpoch - summaries.length)
+                    continue;
+
+                SpaceSaving summary = getSummary(epoch);
+                if (summary != null)
+                    summary.offer(resourceViews.getKey(), views.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return the k most viewed resources of the window with their estimated views, in descending order
+     */
+    public List<PopularityUpdate> getTopK() {
+        return getTopK(k);
+    }
+
+    /**
+     * @return the noResources (at most k) most viewed resources of the window with their estimated views, in
+     * descending order
+     */
+    public synchronized List<PopularityUpdate> getTopK(int noResources) {
+        long currentEpoch = epochOf(System.currentTimeMillis());
+        Map<String, Long> views = new HashMap<>();
+
+        // The estimates of a resource are summed over the summaries of the window
+        for (int i = 0; i < summaries.length; i++) {
+            if (summaries[i] == null || epochs[i] > currentEpoch || epochs[i] <= currentEpoch - summaries.length)
+                continue;
+
+            for (SpaceSaving.Counter counter : summaries[i].getCounters())
+                views.merge(counter.getId(), counter.getCount(), Long::sum);
+        }
+
+        List<Map.Entry<String, Long>> sortedViews = new ArrayList<>(views.entrySet());
+        sortedViews.sort((v1, v2) -> Long.compare(v2.getValue(), v1.getValue()));
+
+        List<PopularityUpdate> topK = new ArrayList<>();
+        for (Map.Entry<String, Long> resourceViews : sortedViews) {
+            if (topK.size() == Math.min(noResources, k))
+                break;
+
+            PopularityUpdate popularityUpdate = new PopularityUpdate();
+            popularityUpdate.setId(resourceViews.getKey());
+            popularityUpdate.setViewsInDefinedInterval((int) Math.min(resourceViews.getValue(), Integer.MAX_VALUE));
+            topK.add(popularityUpdate);
+        }
+
+        return topK;
+    }
+
+    /**
+     * @return the maximum overestimation of the views of a resource in the current window
+     */
+    public synchronized long getMaxError() {
+        long currentEpoch = epochOf(System.currentTimeMillis());
+        long maxError = 0;
+
+        for (int i = 0; i < summaries.length; i++) {
+            if (summaries[i] != null && epochs[i] <= currentEpoch && epochs[i] > currentEpoch - summaries.length)
+                maxError += summaries[i].getMinCount();
+        }
+
+        return maxError;
+    }
+
+    /**
+     * @return the summary of the epoch, replacing the one of an older epoch which has left the window, or null if
+     * the slot already holds a newer epoch
+     */
+    private SpaceSaving getSummary(long epoch) {
+        int slot = (int) Math.floorMod(epoch, (long) summaries.length);
+
+        if (epochs[slot] > epoch)
+            return null;
+
+        if (epochs[slot] < epoch) {
+            summaries[slot] = new SpaceSaving(capacity);
+            epochs[slot] = epoch;
+        }
+
+        return summaries[slot];
+    }
+
+    private long epochOf(long time) {
+        return Math.floorDiv(time, subIntervalDuration);
+    }
+
+    /**
+     * The k most viewed of the offered resources, which are kept in a min-heap of k entries, so a traversal of all
+     * the resources ranks them in O(n log k) time and O(k) memory. The ties are broken by the id.
+     */
+    public static class Ranking {
+
+        private static final Comparator<PopularityUpdate> ASCENDING = Comparator
+                .comparing(PopularityUpdate::getViewsInDefinedInterval)
+                .thenComparing(PopularityUpdate::getId, Comparator.reverseOrder());
+
+        private final int k;
+        private final PriorityQueue<PopularityUpdate> heap;
+
+        public Ranking(int k) {
+            Assert.isTrue(k > 0,"k should be positive!");
+            this.k = k;
+            this.heap = new PriorityQueue<>(k, ASCENDING);
+        }
+
+        public void offer(String id, int views) {
+            if (views <= 0)
+                return;
+
+            PopularityUpdate popularityUpdate = new PopularityUpdate();
+            popularityUpdate.setId(id);
+            popularityUpdate.setViewsInDefinedInterval(views);
+
+            if (heap.size() < k)
+                heap.add(popularityUpdate);
+            else if (ASCENDING.compare(popularityUpdate, heap.peek()) > 0) {
+                heap.poll();
+                heap.add(popularityUpdate);
+            }
+        }
+
+        /**
+         * @return the k most viewed resources with their views, in descending order
+         */
+        public List<PopularityUpdate> getTopK() {
+            List<PopularityUpdate> topK = new ArrayList<>(heap);
+            topK.sort(ASCENDING.reversed());
+            return topK;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package eu.h2020.symbiote.cram.util;
+
+import eu.h2020.symbiote.cram.repository.ResourceRepository;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory accumulator of resource views. The views are counted per resource id and per start of the subInterval
+ * with striped counters, so the listeners never block on Mongo. The pending views are drained periodically to
+ * the {@link ResourceRepository} as a single bulk of $inc updates. The views of the updates which fail or do not match
+ * are retried with the next flush, unless their subInterval has left the window.
+ */
+@Component
+public class ViewsAccumulator {
+
+    private static Log log = LogFactory.getLog(ViewsAccumulator.class);
+
+    private ResourceRepository resourceRepository;
+    private Boolean enabled;
+    private Long flushInterval;
+    private Long intervalDuration;
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Date, LongAdder>> pendingViews = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flusher;
+    private boolean flushingSuspended = false;
+
+    @Autowired
+    public ViewsAccumulator(ResourceRepository resourceRepository,
+                            @Value("${cram.viewsAccumulator.enabled}") Boolean enabled,
+                            @Qualifier("viewsAccumulatorFlushInterval") Long flushInterval,
+                            @Qualifier("intervalDuration") Long intervalDuration) {
+        Assert.notNull(resourceRepository,"resourceRepository can not be null!");
+        this.resourceRepository = resourceRepository;
+
+        Assert.notNull(enabled,"enabled can not be null!");
+        this.enabled = enabled;
+
+        Assert.notNull(flushInterval,"flushInterval can not be null!");
+        this.flushInterval = flushInterval;
+
+        Assert.notNull(intervalDuration,"intervalDuration can not be null!");
+        this.intervalDuration = intervalDuration;
+
+        if (enabled) {
+            flusher = Executors.newSingleThreadScheduledExecutor();
+            flusher.scheduleWithFixedDelay(this::periodicFlush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public Boolean isEnabled() { return this.enabled; }
+
+    /**
+     * Adds the views to the pending counters. This never blocks on the database.
+     *
+     * @param viewsPerResource the views per resource id and per start of the subInterval
+     */
+    public void addViews(Map<String, Map<Date, Integer>> viewsPerResource) {
+        for (Map.Entry<String, Map<Date, Integer>> resourceViews : viewsPerResource.entrySet()) {
+            // The counters of a resource are only created and removed atomically, so no view is lost while flushing
+            pendingViews.compute(resourceViews.getKey(), (resourceId, counters) -> {
+                if (counters == null)
+                    counters = new ConcurrentHashMap<>();
+
+                for (Map.Entry<Date, Integer> subIntervalViews : resourceViews.getValue().entrySet())
+                    counters.computeIfAbsent(subIntervalViews.getKey(), k -> new LongAdder())
+                            .add(subIntervalViews.getValue());
+                return counters;
+            });
+        }
+    }
+
+    /**
+     * @param resourceId the id of the resource
+     * @return the views of the resource which have not been flushed to the database yet
+     */
+    public long getPendingViews(String resourceId) {
+        ConcurrentHashMap<Date, LongAdder> counters = pendingViews.get(resourceId);
+        if (counters == null)
+            return 0;
+
+        long views = 0;
+        for (LongAdder counter : counters.values())
+            views += counter.sum();
+        return views;
+    }
+
+    /**
+     * Drains the pending views to the database. The drained amounts are subtracted from the counters instead of
+     * resetting them, so increments which happen concurrently are kept for the next flush.
+     *
+     * @return the number of subIntervals which were updated
+     */
+    public synchronized int flush() {
+        if (flushingSuspended)
+            return 0;
+
+        Map<String, Map<Date, Integer>> drainedViews = new HashMap<>();
+        Map<LongAdder, Long> drainedCounters = new HashMap<>();
+        long staleBefore = new Date().getTime() - 2 * intervalDuration;
+
+        for (Map.Entry<String, ConcurrentHashMap<Date, LongAdder>> resourceCounters : pendingViews.entrySet()) {
+            for (Map.Entry<Date, LongAdder> counter : resourceCounters.getValue().entrySet()) {
+                long views = counter.getValue().sum();
+
+                if (views != 0) {
+                    counter.getValue().add(-views);
+                    drainedCounters.put(counter.getValue(), views);
+                    drainedViews.computeIfAbsent(resourceCounters.getKey(), k -> new HashMap<>())
+                            .put(counter.getKey(), (int) views);
+                }
+            }
+
+            // Remove the counters of the subIntervals which have certainly left the window
+            pendingViews.computeIfPresent(resourceCounters.getKey(), (resourceId, counters) -> {
+                counters.entrySet().removeIf(counter -> counter.getKey().getTime() < staleBefore
+                        && counter.getValue().sum() == 0);
+                return counters.isEmpty() ? null : counters;
+            });
+        }
+
+        Map<String, Map<Date, Integer>> notAppliedViews = new HashMap<>();
+        int updated;
+        try {
+            updated = resourceRepository.incrementViewsInSubIntervals(drainedViews, notAppliedViews);
+        } catch (RuntimeException e) {
+            // It is not known which updates were applied, if any, so all of them are retried
+            log.warn("Could not flush the pending views. They will be retried with the next flush", e);
+            drainedCounters.forEach(LongAdder::add);
+            return 0;
+        }
+
+        restoreNotAppliedViews(notAppliedViews);
+        return updated;
+    }
+
+    /**
+     * Flushes the pending views and suspends any further flushing, e.g. while the resource views are rolled over.
+     */
+    public synchronized void suspendFlushing() {
+        flush();
+        flushingSuspended = true;
+    }
+
+    public synchronized void resumeFlushing() {
+        flushingSuspended = false;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (flusher != null)
+            flusher.shutdown();
+        flushingSuspended = false;
+        flush();
+    }
+
+    /**
+     * Adds the views which were not applied back to the pending counters, so that they are retried with the next
+     * flush. The views of the subIntervals which have left the window are dropped, since they can no longer be applied.
+     */
+    private void restoreNotAppliedViews(Map<String, Map<Date, Integer>> notAppliedViews) {
+        long startOfWindow = new Date().getTime() - intervalDuration;
+
+        for (Map.Entry<String, Map<Date, Integer>> resourceViews : notAppliedViews.entrySet()) {
+            Map<Date, Integer> restoredViews = new HashMap<>();
+
+            for (Map.Entry<Date, Integer> subIntervalViews : resourceViews.getValue().entrySet()) {
+                if (subIntervalViews.getKey().getTime() < startOfWindow)
+                    log.warn("Dropping " + subIntervalViews.getValue() + " views of the resource with id = " +
+                            resourceViews.getKey() + ", since their subInterval starting at " +
+                            subIntervalViews.getKey() + " has left the window");
+                else
+                    restoredViews.put(subIntervalViews.getKey(), subIntervalViews.getValue());
+            }
+
+            if (!restoredViews.isEmpty())
+                addViews(Collections.singletonMap(resourceViews.getKey(), restoredViews));
+        }
+    }
+
+    private void periodicFlush() {
+        try {
+            int updated = flush();
+            log.trace("Periodic flush of the pending views updated " + updated + " subIntervals");
+        } catch (Throwable e) {
+            log.warn("Periodic flush of the pending views failed", e);
+        }
+    }
+}
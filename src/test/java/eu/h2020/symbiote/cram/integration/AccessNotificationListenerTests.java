@@ -26,12 +26,21 @@ import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 /**
  * Created by vasgl on 7/7/2017.
@@ -67,6 +76,9 @@ public class AccessNotificationListenerTests {
     @Value("${rabbit.routingKey.cram.accessNotifications}")
     private String cramAccessNotificationsRoutingKey;
 
+    @Value("${rabbit.routingKey.cram.accessNotificationsOneWay}")
+    private String cramAccessNotificationsOneWayRoutingKey;
+
     private String serviceResponse = "exampleServiceResponse";
 
     @Before
@@ -89,8 +101,13 @@ public class AccessNotificationListenerTests {
         resourceRepo.save(resource1);
         resourceRepo.save(resource2);
 
-        doReturn(new AuthorizationResult("Validated", true)).when(authorizationManager)
-                .checkNotificationSecured(any(), any());
+        reset(authorizationManager);
+        doAnswer(invocation -> {
+            Map<String, AuthorizationResult> results = new HashMap<>();
+            for (String platformId : (Set<String>) invocation.getArguments()[0])
+                results.put(platformId, new AuthorizationResult("Validated", true));
+            return results;
+        }).when(authorizationManager).checkNotificationSecuredPerPlatform(any(), any());
         doReturn(new ServiceResponseResult(serviceResponse, true))
                 .when(authorizationManager).generateServiceResponse();
     }
@@ -98,8 +115,7 @@ public class AccessNotificationListenerTests {
     @After
     public void clearSetup() {
         resourceRepo.deleteAll();
-        accessNotificationListener.setScheduledUpdateOngoing(false);
-        accessNotificationListener.getNotificationMessageList().clear();
+        accessNotificationListener.getNotificationHandoff().clear();
         resourceAccessStatsUpdater.cancelTimer();
     }
 
@@ -123,15 +139,69 @@ public class AccessNotificationListenerTests {
         assertEquals(3, (int) result.getViewsInDefinedInterval());
 
         // Check that the resources were not queued
-        assertEquals(0, accessNotificationListener.getNotificationMessageList().size());
+        assertEquals(0, accessNotificationListener.getNotificationHandoff().size());
+
+    }
+
+    @Test
+    public void sameResourceInManyEntriesTest() throws Exception {
+
+        NotificationMessageSecured notificationMessage = createSuccessfulAttemptsMessage();
+        SuccessfulAccessMessageInfo successfulAttempts = new SuccessfulAccessMessageInfo();
+        successfulAttempts.setSymbIoTeId("sensor_id");
+        successfulAttempts.setTimestamps(Arrays.asList(new Date(1200), new Date(1700)));
+        notificationMessage.getBody().addSuccessfulAttempt(successfulAttempts);
+
+        sendNotificationMessage(notificationMessage);
+
+        // Sleep to make sure that message has been received
+        TimeUnit.MILLISECONDS.sleep(500);
+
+        CramResource result = resourceRepo.findOne("sensor_id");
+        assertEquals(2, result.getViewsInSubIntervals().size());
+        assertEquals(4, (int) result.getViewsInSubIntervals().get(0).getViews());
+        assertEquals(1, (int) result.getViewsInSubIntervals().get(1).getViews());
+        assertEquals(5, (int) result.getViewsInDefinedInterval());
+
+        result = resourceRepo.findOne("sensor_id2");
+        assertEquals(2, (int) result.getViewsInSubIntervals().get(0).getViews());
+        assertEquals(3, (int) result.getViewsInDefinedInterval());
+
+        // Check that the SecurityRequest was evaluated only once for the whole message
+        verify(authorizationManager, times(1)).checkNotificationSecuredPerPlatform(any(), any());
+    }
+
+    @Test
+    public void oneWayNotificationsTest() throws Exception {
+
+        // Without reply_to in the request/reply queue
+        rabbitTemplate.convertAndSend(cramExchangeName, cramAccessNotificationsRoutingKey,
+                createSuccessfulAttemptsMessage());
+
+        // In the one-way queue
+        rabbitTemplate.convertAndSend(cramExchangeName, cramAccessNotificationsOneWayRoutingKey,
+                createSuccessfulAttemptsMessage());
+
+        // Sleep to make sure that message has been received
+        TimeUnit.MILLISECONDS.sleep(500);
 
+        CramResource result = resourceRepo.findOne("sensor_id");
+        assertEquals(4, (int) result.getViewsInSubIntervals().get(0).getViews());
+        assertEquals(6, (int) result.getViewsInDefinedInterval());
+
+        result = resourceRepo.findOne("sensor_id2");
+        assertEquals(4, (int) result.getViewsInSubIntervals().get(0).getViews());
+        assertEquals(6, (int) result.getViewsInDefinedInterval());
+
+        // Check that no service response was generated
+        verify(authorizationManager, never()).generateServiceResponse();
     }
 
     @Test
     public void whileUpdatingTest() throws Exception {
 
         NotificationMessageSecured notificationMessage = createSuccessfulAttemptsMessage();
-        accessNotificationListener.setScheduledUpdateOngoing(true);
+        accessNotificationListener.getNotificationHandoff().beginRollover();
         sendNotificationMessage(notificationMessage);
 
         // Sleep to make sure that message has been received
@@ -146,19 +216,20 @@ public class AccessNotificationListenerTests {
         assertEquals(0, (int) result.getViewsInDefinedInterval());
 
         // Check that the resources were queued
-        assertEquals(1, accessNotificationListener.getNotificationMessageList().size());
-        assertEquals(2, accessNotificationListener.getNotificationMessageList().get(0)
+        assertEquals(1, accessNotificationListener.getNotificationHandoff().size());
+        assertEquals(2, accessNotificationListener.getNotificationHandoff().getQueuedMessages().get(0)
                 .getBody().getSuccessfulAttempts().size());
     }
 
     @Test
-    public void nonEmptyNotificationMessageList() throws Exception {
+    public void queuedNotificationsAreProcessedAfterUpdateTest() throws Exception {
 
         NotificationMessageSecured notificationMessage = createSuccessfulAttemptsMessage();
         NotificationMessageSecured emptyNotificationMessage = new NotificationMessageSecured();
         emptyNotificationMessage.setBody(new NotificationMessage());
 
-        accessNotificationListener.getNotificationMessageList().add(emptyNotificationMessage);
+        accessNotificationListener.getNotificationHandoff().beginRollover();
+        accessNotificationListener.getNotificationHandoff().submit(emptyNotificationMessage);
         sendNotificationMessage(notificationMessage);
 
         // Sleep to make sure that message has been received
@@ -168,16 +239,24 @@ public class AccessNotificationListenerTests {
         assertEquals(0, (int) result.getViewsInSubIntervals().get(0).getViews());
         assertEquals(0, (int) result.getViewsInDefinedInterval());
 
-        result = resourceRepo.findOne("sensor_id2");
-        assertEquals(0, (int) result.getViewsInSubIntervals().get(0).getViews());
-        assertEquals(0, (int) result.getViewsInDefinedInterval());
-
         // Check that the resources were queued
-        assertEquals(2, accessNotificationListener.getNotificationMessageList().size());
-        assertEquals(0, accessNotificationListener.getNotificationMessageList().get(0)
+        assertEquals(2, accessNotificationListener.getNotificationHandoff().size());
+        assertEquals(0, accessNotificationListener.getNotificationHandoff().getQueuedMessages().get(0)
                 .getBody().getSuccessfulAttempts().size());
-        assertEquals(2, accessNotificationListener.getNotificationMessageList().get(1)
+        assertEquals(2, accessNotificationListener.getNotificationHandoff().getQueuedMessages().get(1)
                 .getBody().getSuccessfulAttempts().size());
+
+        // Check that the queued notifications are processed as soon as the update ends
+        assertEquals(2, accessNotificationListener.getNotificationHandoff().endRollover());
+        assertEquals(0, accessNotificationListener.getNotificationHandoff().size());
+
+        result = resourceRepo.findOne("sensor_id");
+        assertEquals(2, (int) result.getViewsInSubIntervals().get(0).getViews());
+        assertEquals(3, (int) result.getViewsInDefinedInterval());
+
+        result = resourceRepo.findOne("sensor_id2");
+        assertEquals(2, (int) result.getViewsInSubIntervals().get(0).getViews());
+        assertEquals(3, (int) result.getViewsInDefinedInterval());
     }
 
     @Test
@@ -186,7 +265,7 @@ public class AccessNotificationListenerTests {
         NotificationMessageSecured notificationMessageSecured = new NotificationMessageSecured();
         notificationMessageSecured.setBody(notificationMessage);
 
-        accessNotificationListener.setScheduledUpdateOngoing(true);
+        accessNotificationListener.getNotificationHandoff().beginRollover();
 
         ArrayList<Date> dateList = new ArrayList<>();
         dateList.add(new Date(1000));
@@ -221,7 +300,7 @@ public class AccessNotificationListenerTests {
         TimeUnit.MILLISECONDS.sleep(500);
 
         // Check that the messages were not queued
-        assertEquals(0, accessNotificationListener.getNotificationMessageList().size());
+        assertEquals(0, accessNotificationListener.getNotificationHandoff().size());
     }
 
     private NotificationMessageSecured createSuccessfulAttemptsMessage() {
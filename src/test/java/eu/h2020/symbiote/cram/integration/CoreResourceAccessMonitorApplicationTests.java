@@ -36,6 +36,8 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 import java.util.ArrayList;
 import java.util.List;
 
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasProperty;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.*;
 
@@ -135,8 +137,7 @@ public class CoreResourceAccessMonitorApplicationTests {
         platformRepo.deleteAll();
         smartSpaceRepo.deleteAll();
         resourceRepo.deleteAll();
-        accessNotificationListener.setScheduledUpdateOngoing(false);
-        accessNotificationListener.getNotificationMessageList().clear();
+        accessNotificationListener.getNotificationHandoff().clear();
         resourceAccessStatsUpdater.cancelTimer();
     }
 
@@ -219,13 +220,11 @@ public class CoreResourceAccessMonitorApplicationTests {
     @Test
     public void testGetResourcesUrlsNotAuthorizedNotFound() {
 
-        CramResource cramResource1 = resourceRepo.findOne("sensor_id");
-        CramResource cramResource2 = resourceRepo.findOne("sensor_id2");
-
+        // The resources are loaded with the url fields only, so they are matched by their ids
         doReturn(new AuthorizationResult("Validated", true)).when(authorizationManager)
-                .checkResourceUrlRequest(eq(cramResource1), any());
+                .checkResourceUrlRequest(argThat(hasProperty("id", equalTo("sensor_id"))), any());
         doReturn(new AuthorizationResult("Invalid", false)).when(authorizationManager)
-                .checkResourceUrlRequest(eq(cramResource2), any());
+                .checkResourceUrlRequest(argThat(hasProperty("id", equalTo("sensor_id2"))), any());
         doReturn(new ServiceResponseResult("Service Response", true))
                 .when(authorizationManager).generateServiceResponse();
 
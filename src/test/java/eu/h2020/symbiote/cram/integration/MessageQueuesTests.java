@@ -114,8 +114,7 @@ public class MessageQueuesTests {
         platformRepo.deleteAll();
         smartSpaceRepo.deleteAll();
         resourceRepo.deleteAll();
-        accessNotificationListener.setScheduledUpdateOngoing(false);
-        accessNotificationListener.getNotificationMessageList().clear();
+        accessNotificationListener.getNotificationHandoff().clear();
         resourceAccessStatsUpdater.cancelTimer();
     }
 
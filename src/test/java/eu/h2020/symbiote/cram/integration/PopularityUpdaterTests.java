@@ -31,11 +31,15 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 
 /**
@@ -113,8 +117,12 @@ public class PopularityUpdaterTests {
 
         popularityUpdater.restartTimer();
 
-        doReturn(new AuthorizationResult("Validated", true)).when(authorizationManager)
-                .checkNotificationSecured(any(), any());
+        doAnswer(invocation -> {
+            Map<String, AuthorizationResult> results = new HashMap<>();
+            for (String platformId : (Set<String>) invocation.getArguments()[0])
+                results.put(platformId, new AuthorizationResult("Validated", true));
+            return results;
+        }).when(authorizationManager).checkNotificationSecuredPerPlatform(any(), any());
         doReturn(new ServiceResponseResult(serviceResponse, true))
                 .when(authorizationManager).generateServiceResponse();
     }
@@ -27,6 +27,9 @@ import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
@@ -111,14 +114,16 @@ public class ResourceAccessStatsUpdaterTests {
         resourceRepo.save(resource2);
 
         doAnswer(invocation -> {
-                Object[] args = invocation.getArguments();
-                CramResource cramResource = (CramResource) args[0];
+                Map<String, AuthorizationResult> results = new HashMap<>();
 
-                if (!cramResource.getId().equals("sensor_id_invalid_rasut"))
-                    return new AuthorizationResult("Validated", true);
-                else
-                    return new AuthorizationResult("Do not own the resource", false);
-            }).when(authorizationManager).checkNotificationSecured(any(), any());
+                for (String platformId : (Set<String>) invocation.getArguments()[0]) {
+                    if (!"invalid_platform".equals(platformId))
+                        results.put(platformId, new AuthorizationResult("Validated", true));
+                    else
+                        results.put(platformId, new AuthorizationResult("Do not own the resource", false));
+                }
+                return results;
+            }).when(authorizationManager).checkNotificationSecuredPerPlatform(any(), any());
 
     }
 
@@ -126,8 +131,7 @@ public class ResourceAccessStatsUpdaterTests {
     public void clearSetup() {
         resourceRepo.deleteAll();
         cramPersistentVariablesRepository.deleteAll();
-        accessNotificationListener.setScheduledUpdateOngoing(false);
-        accessNotificationListener.getNotificationMessageList().clear();
+        accessNotificationListener.getNotificationHandoff().clear();
         resourceAccessStatsUpdater.cancelTimer();
     }
 
@@ -171,8 +175,9 @@ public class ResourceAccessStatsUpdaterTests {
     @Test
     public void testTimerWithNonEmptySuccessfulAttemptsMessageList() throws Exception {
 
-        accessNotificationListener.getNotificationMessageList().add(createSuccessfulAttemptsMessage(false));
-        assertEquals(1, accessNotificationListener.getNotificationMessageList().size());
+        accessNotificationListener.getNotificationHandoff().beginRollover();
+        accessNotificationListener.getNotificationHandoff().submit(createSuccessfulAttemptsMessage(false));
+        assertEquals(1, accessNotificationListener.getNotificationHandoff().size());
 
         resourceAccessStatsUpdater.setNextPopularityUpdate(new NextPopularityUpdate(subIntervalDuration));
         resourceAccessStatsUpdater.startTimer();
@@ -191,7 +196,7 @@ public class ResourceAccessStatsUpdaterTests {
         assertEquals(0, (long) cramResource.getViewsInSubIntervals().get(1).getViews());
         assertEquals(4, (int) cramResource.getViewsInDefinedInterval()); // The 1st SubInterval is removed
 
-        assertEquals(0, accessNotificationListener.getNotificationMessageList().size());
+        assertEquals(0, accessNotificationListener.getNotificationHandoff().size());
     }
 
     @Test
@@ -199,6 +204,7 @@ public class ResourceAccessStatsUpdaterTests {
 
         CramResource invalidResource = new CramResource();
         invalidResource.setId("sensor_id_invalid_rasut");
+        invalidResource.setPlatformId("invalid_platform");
         invalidResource.setInterworkingServiceURL(platformAAMUrl);
         invalidResource.setResourceUrl(resourceUrl);
         invalidResource.setViewsInDefinedInterval(0);
@@ -208,8 +214,9 @@ public class ResourceAccessStatsUpdaterTests {
         invalidResource.setViewsInSubIntervals(subIntervals);
         resourceRepo.save(invalidResource);
 
-        accessNotificationListener.getNotificationMessageList().add(createSuccessfulAttemptsMessage(true));
-        assertEquals(1, accessNotificationListener.getNotificationMessageList().size());
+        accessNotificationListener.getNotificationHandoff().beginRollover();
+        accessNotificationListener.getNotificationHandoff().submit(createSuccessfulAttemptsMessage(true));
+        assertEquals(1, accessNotificationListener.getNotificationHandoff().size());
 
         resourceAccessStatsUpdater.setNextPopularityUpdate(new NextPopularityUpdate(subIntervalDuration));
         resourceAccessStatsUpdater.startTimer();
@@ -234,7 +241,7 @@ public class ResourceAccessStatsUpdaterTests {
         assertEquals(0, (long) cramResource.getViewsInSubIntervals().get(1).getViews());
         assertEquals(0, (int) cramResource.getViewsInDefinedInterval()); // The 1st SubInterval is removed
 
-        assertEquals(0, accessNotificationListener.getNotificationMessageList().size());
+        assertEquals(0, accessNotificationListener.getNotificationHandoff().size());
     }
 
     private NotificationMessageSecured createSuccessfulAttemptsMessage(boolean invalidResource) {
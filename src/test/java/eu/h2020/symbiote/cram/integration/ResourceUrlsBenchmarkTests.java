@@ -0,0 +1,177 @@
+package eu.h2020.symbiote.cram.integration;
+
+import eu.h2020.symbiote.cram.model.CramResource;
+import eu.h2020.symbiote.cram.model.SubIntervalViews;
+import eu.h2020.symbiote.cram.repository.ResourceRepository;
+import eu.h2020.symbiote.cram.util.ResourceAccessStatsUpdater;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the lookup of the resource urls with a findOne per id to the single projected $in query. It is skipped
+ * unless it is run with -Dcram.benchmark=true and the number of the ids per request can be set with
+ * -Dcram.benchmark.idCounts (comma-separated).
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringBootTest(
+        properties = {
+                "subIntervalDuration=P0-0-0T1:0:0",
+                "intervalDuration=P0-0-1T0:0:0"
+        })
+@ActiveProfiles("test")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+public class ResourceUrlsBenchmarkTests {
+
+    private static final Logger log = LoggerFactory.getLogger(ResourceUrlsBenchmarkTests.class);
+
+    private static final long SUB_INTERVAL_DURATION = 3600000L;
+    private static final long NO_SUB_INTERVALS = 24L;
+    private static final int NO_RESOURCES = 10000;
+    private static final int INSERT_BATCH_SIZE = 10000;
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int ITERATIONS = 200;
+
+    @Autowired
+    private ResourceRepository resourceRepo;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private ResourceAccessStatsUpdater resourceAccessStatsUpdater;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("The benchmarks run only with -Dcram.benchmark=true", Boolean.getBoolean("cram.benchmark"));
+        resourceAccessStatsUpdater.cancelTimer();
+        resourceRepo.deleteAll();
+        insertResources();
+    }
+
+    @After
+    public void clearSetup() {
+        resourceRepo.deleteAll();
+    }
+
+    @Test
+    public void resourceUrlsBenchmark() {
+        Random random = new Random(42);
+
+        for (String idCount : System.getProperty("cram.benchmark.idCounts", "1,50,500").split(",")) {
+            int noIds = Integer.parseInt(idCount.trim());
+
+            // Every request asks for a random set of existing ids and a missing one
+            List<List<String>> requests = new ArrayList<>();
+            for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++) {
+                List<String> ids = new ArrayList<>();
+                for (int j = 0; j < noIds - 1; j++)
+                    ids.add(String.valueOf(random.nextInt(NO_RESOURCES)));
+                ids.add("missing");
+                requests.add(ids);
+            }
+
+            long[] perId = measure(requests, this::findPerId);
+            long[] singleQuery = measure(requests, this::findWithSingleQuery);
+
+            log.info("Resource urls of " + noIds + " ids: findOne per id p50 = " + millis(percentile(perId, 50)) +
+                    " ms, p99 = " + millis(percentile(perId, 99)) + " ms, single query p50 = " +
+                    millis(percentile(singleQuery, 50)) + " ms, p99 = " + millis(percentile(singleQuery, 99)) + " ms");
+        }
+    }
+
+    private int findPerId(List<String> ids) {
+        int found = 0;
+        for (String id : ids) {
+            if (resourceRepo.findOne(id) != null)
+                found++;
+        }
+        return found;
+    }
+
+    private int findWithSingleQuery(List<String> ids) {
+        return resourceRepo.findAllWithFields(new HashSet<>(ids), ResourceRepository.URL_FIELDS).size();
+    }
+
+    /**
+     * @return the sorted latencies (in ns) of the requests, without the warmup ones
+     */
+    private long[] measure(List<List<String>> requests, Function<List<String>, Integer> lookup) {
+        long[] latencies = new long[ITERATIONS];
+
+        for (int i = 0; i < requests.size(); i++) {
+            List<String> ids = requests.get(i);
+            long start = System.nanoTime();
+            int found = lookup.apply(ids);
+            long latency = System.nanoTime() - start;
+
+            assertEquals(new HashSet<>(ids).size() - 1, found);
+            if (i >= WARMUP_ITERATIONS)
+                latencies[i - WARMUP_ITERATIONS] = latency;
+        }
+
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static long percentile(long[] sortedLatencies, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(index, 0)];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    /**
+     * Every resource has a full window with 1 view in every subInterval, so the projection has something to skip
+     */
+    private void insertResources() {
+        long startOfWindow = System.currentTimeMillis() - NO_SUB_INTERVALS * SUB_INTERVAL_DURATION;
+        List<CramResource> batch = new ArrayList<>(INSERT_BATCH_SIZE);
+
+        for (int i = 0; i < NO_RESOURCES; i++) {
+            CramResource cramResource = new CramResource();
+            cramResource.setId(String.valueOf(i));
+            cramResource.setResourceUrl("https://platform.example/rap/Sensors('" + i + "')");
+            cramResource.setPlatformId("platform");
+
+            List<SubIntervalViews> subIntervals = new ArrayList<>();
+            for (int j = 0; j < NO_SUB_INTERVALS; j++) {
+                long start = startOfWindow + j * SUB_INTERVAL_DURATION;
+                subIntervals.add(new SubIntervalViews(new Date(start), new Date(start + SUB_INTERVAL_DURATION), 1));
+            }
+            cramResource.setViewsInSubIntervals(subIntervals);
+            cramResource.setViewsInDefinedInterval((int) NO_SUB_INTERVALS);
+            batch.add(cramResource);
+
+            if (batch.size() == INSERT_BATCH_SIZE) {
+                mongoTemplate.insert(batch, CramResource.class);
+                batch.clear();
+            }
+        }
+
+        if (!batch.isEmpty())
+            mongoTemplate.insert(batch, CramResource.class);
+    }
+}
@@ -0,0 +1,164 @@
+package eu.h2020.symbiote.cram.integration;
+
+import eu.h2020.symbiote.cram.model.CramResource;
+import eu.h2020.symbiote.cram.model.SubIntervalViews;
+import eu.h2020.symbiote.cram.repository.ResourceRepository;
+import eu.h2020.symbiote.cram.util.ResourceAccessStatsUpdater;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the in-memory rollover (findAll and save) with the server-side one. It is skipped unless it is run with
+ * -Dcram.benchmark=true and the sizes can be set with -Dcram.benchmark.sizes (comma-separated). The largest sizes
+ * need a large heap for the in-memory rollover.
+ *
+ * Every strategy rolls over a freshly inserted registry, and the strategy which runs first alternates between the
+ * rounds (-Dcram.benchmark.rounds), so that neither of them benefits from the cache warmed up by the other.
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringBootTest(
+        properties = {
+                "subIntervalDuration=P0-0-0T1:0:0",
+                "intervalDuration=P0-0-1T0:0:0"
+        })
+@ActiveProfiles("test")
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_CLASS)
+public class RolloverBenchmarkTests {
+
+    private static Log log = LogFactory.getLog(RolloverBenchmarkTests.class);
+
+    private static final long SUB_INTERVAL_DURATION = 3600000L;
+    private static final long NO_SUB_INTERVALS = 24L;
+    private static final int INSERT_BATCH_SIZE = 10000;
+
+    @Autowired
+    private ResourceRepository resourceRepo;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private ResourceAccessStatsUpdater resourceAccessStatsUpdater;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("The benchmarks run only with -Dcram.benchmark=true", Boolean.getBoolean("cram.benchmark"));
+        resourceAccessStatsUpdater.cancelTimer();
+        resourceRepo.deleteAll();
+    }
+
+    @After
+    public void clearSetup() {
+        resourceRepo.deleteAll();
+    }
+
+    @Test
+    public void rolloverBenchmark() {
+        int noRounds = Integer.getInteger("cram.benchmark.rounds", 2);
+
+        for (String size : System.getProperty("cram.benchmark.sizes", "10000,100000,1000000").split(",")) {
+            int noResources = Integer.parseInt(size.trim());
+            long inMemory = 0;
+            long serverSide = 0;
+
+            for (int round = 0; round < noRounds; round++) {
+                if (round % 2 == 0) {
+                    inMemory += measure(noResources, this::rolloverInMemory);
+                    serverSide += measure(noResources, this::rolloverInDatabase);
+                } else {
+                    serverSide += measure(noResources, this::rolloverInDatabase);
+                    inMemory += measure(noResources, this::rolloverInMemory);
+                }
+            }
+
+            log.info("Rollover of " + noResources + " resources (average of " + noRounds + " rounds): in memory = " +
+                    inMemory / noRounds + " ms, server side = " + serverSide / noRounds + " ms");
+        }
+    }
+
+    /**
+     * Rolls a freshly inserted registry over once with the given strategy
+     *
+     * @return the duration of the rollover in ms
+     */
+    private long measure(int noResources, LongSupplier rollover) {
+        resourceRepo.deleteAll();
+        insertResources(noResources);
+
+        long duration = rollover.getAsLong();
+
+        CramResource sample = resourceRepo.findOne("0");
+        assertEquals(NO_SUB_INTERVALS, sample.getViewsInSubIntervals().size());
+        assertEquals(NO_SUB_INTERVALS - 1, (long) sample.getViewsInDefinedInterval());
+
+        resourceRepo.deleteAll();
+        return duration;
+    }
+
+    private long rolloverInMemory() {
+        long start = System.nanoTime();
+
+        List<CramResource> cramResources = resourceRepo.findAll();
+        for (CramResource cramResource : cramResources)
+            cramResource.scheduleUpdateInResourceAccessStats(NO_SUB_INTERVALS, SUB_INTERVAL_DURATION);
+        resourceRepo.save(cramResources);
+
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private long rolloverInDatabase() {
+        long start = System.nanoTime();
+        resourceRepo.rolloverSubIntervals(NO_SUB_INTERVALS, SUB_INTERVAL_DURATION, null);
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * Every resource has a full window with 1 view in every subInterval
+     */
+    private void insertResources(int noResources) {
+        long startOfWindow = System.currentTimeMillis() - NO_SUB_INTERVALS * SUB_INTERVAL_DURATION;
+        List<CramResource> batch = new ArrayList<>(INSERT_BATCH_SIZE);
+
+        for (int i = 0; i < noResources; i++) {
+            CramResource cramResource = new CramResource();
+            cramResource.setId(String.valueOf(i));
+            cramResource.setResourceUrl("https://platform.example/rap/Sensors('" + i + "')");
+            cramResource.setPlatformId("platform");
+
+            List<SubIntervalViews> subIntervals = new ArrayList<>();
+            for (int j = 0; j < NO_SUB_INTERVALS; j++) {
+                long start = startOfWindow + j * SUB_INTERVAL_DURATION;
+                subIntervals.add(new SubIntervalViews(new Date(start), new Date(start + SUB_INTERVAL_DURATION), 1));
+            }
+            cramResource.setViewsInSubIntervals(subIntervals);
+            cramResource.setViewsInDefinedInterval((int) NO_SUB_INTERVALS);
+            batch.add(cramResource);
+
+            if (batch.size() == INSERT_BATCH_SIZE) {
+                mongoTemplate.insert(batch, CramResource.class);
+                batch.clear();
+            }
+        }
+
+        if (!batch.isEmpty())
+            mongoTemplate.insert(batch, CramResource.class);
+    }
+}
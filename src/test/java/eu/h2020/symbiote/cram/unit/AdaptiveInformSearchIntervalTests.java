@@ -0,0 +1,104 @@
+package eu.h2020.symbiote.cram.unit;
+
+import eu.h2020.symbiote.cram.util.AdaptiveInformSearchInterval;
+import eu.h2020.symbiote.cram.util.TopKTracker;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * This file tests the AdaptiveInformSearchInterval
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class AdaptiveInformSearchIntervalTests {
+
+    private TopKTracker topKTracker;
+    private GaugeService gaugeService;
+    private AdaptiveInformSearchInterval adaptiveInformSearchInterval;
+    private long start;
+
+    @Before
+    public void setup() {
+        topKTracker = Mockito.mock(TopKTracker.class);
+        gaugeService = Mockito.mock(GaugeService.class);
+        doReturn(4).when(topKTracker).getK();
+
+        start = System.currentTimeMillis();
+        adaptiveInformSearchInterval = new AdaptiveInformSearchInterval(true, 10000L, 1000L, 60000L, 3, 0.3,
+                topKTracker, gaugeService);
+    }
+
+    @Test
+    public void backOffTest() {
+        assertEquals(10000, adaptiveInformSearchInterval.getInterval());
+        assertFalse(adaptiveInformSearchInterval.isUpdateDue(start + 5000));
+        assertTrue(adaptiveInformSearchInterval.isUpdateDue(start + 10000));
+
+        // Little has changed, so the interval is doubled after every update up to maxInterval
+        adaptiveInformSearchInterval.onPublished(start + 10000, 1, Collections.emptyList());
+        assertEquals(20000, adaptiveInformSearchInterval.getInterval());
+        verify(gaugeService).submit("gauge.cram.popularity.informSearchInterval", 20000);
+
+        assertFalse(adaptiveInformSearchInterval.isUpdateDue(start + 29000));
+        assertTrue(adaptiveInformSearchInterval.isUpdateDue(start + 30000));
+        adaptiveInformSearchInterval.onPublished(start + 30000, 0, Collections.emptyList());
+        assertEquals(40000, adaptiveInformSearchInterval.getInterval());
+        adaptiveInformSearchInterval.onPublished(start + 70000, 0, Collections.emptyList());
+        assertEquals(60000, adaptiveInformSearchInterval.getInterval());
+    }
+
+    @Test
+    public void changedResourcesTest() {
+        adaptiveInformSearchInterval.onPublished(start + 10000, 2, Collections.emptyList());
+        assertEquals(20000, adaptiveInformSearchInterval.getInterval());
+
+        // The threshold of the changed resources is crossed, so the next update is sent after minInterval
+        adaptiveInformSearchInterval.onPublished(start + 30000, 3, Collections.emptyList());
+        assertEquals(1000, adaptiveInformSearchInterval.getInterval());
+        assertFalse(adaptiveInformSearchInterval.isUpdateDue(start + 30500));
+        assertTrue(adaptiveInformSearchInterval.isUpdateDue(start + 31000));
+    }
+
+    @Test
+    public void unreportedUpdateTest() {
+        assertTrue(adaptiveInformSearchInterval.isUpdateDue(start + 10000));
+
+        // An update which was skipped or failed does not start a new interval, so it is retried at the next check
+        assertTrue(adaptiveInformSearchInterval.isUpdateDue(start + 11000));
+        assertEquals(10000, adaptiveInformSearchInterval.getInterval());
+        verify(gaugeService, never()).submit(anyString(), anyDouble());
+    }
+
+    @Test
+    public void rankChangeTest() {
+        // The first ranking is entirely new
+        adaptiveInformSearchInterval.onPublished(start + 10000, 0,
+                Arrays.asList("sensor_id1", "sensor_id2", "sensor_id3", "sensor_id4"));
+        assertEquals(1000, adaptiveInformSearchInterval.getInterval());
+
+        // Swapping two neighbours is a small change
+        adaptiveInformSearchInterval.onPublished(start + 11000, 0,
+                Arrays.asList("sensor_id2", "sensor_id1", "sensor_id3", "sensor_id4"));
+        assertEquals(2000, adaptiveInformSearchInterval.getInterval());
+
+        // Reversing the ranking is a large change
+        adaptiveInformSearchInterval.onPublished(start + 13000, 0,
+                Arrays.asList("sensor_id4", "sensor_id3", "sensor_id2", "sensor_id1"));
+        assertEquals(1000, adaptiveInformSearchInterval.getInterval());
+    }
+}
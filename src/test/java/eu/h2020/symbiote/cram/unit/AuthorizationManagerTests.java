@@ -0,0 +1,141 @@
+package eu.h2020.symbiote.cram.unit;
+
+import eu.h2020.symbiote.cram.managers.AuthorizationManager;
+import eu.h2020.symbiote.cram.managers.AuthorizationVerdictCache;
+import eu.h2020.symbiote.cram.model.authorization.AuthorizationResult;
+import eu.h2020.symbiote.security.communication.payloads.SecurityCredentials;
+import eu.h2020.symbiote.security.communication.payloads.SecurityRequest;
+import eu.h2020.symbiote.security.handler.IComponentSecurityHandler;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * This file tests the batch authorization of the notification messages in the AuthorizationManager
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class AuthorizationManagerTests {
+
+    private AuthorizationManager authorizationManager;
+    private IComponentSecurityHandler componentSecurityHandler;
+    private AuthorizationVerdictCache verdictCache;
+
+    @Before
+    public void setup() throws Exception {
+        verdictCache = new AuthorizationVerdictCache(false, 100, 30000L, mock(CounterService.class));
+        authorizationManager = new AuthorizationManager("owner", "password", "aamAddress", "clientId",
+                "keystoreName", "keystorePass", false, verdictCache);
+
+        // Enable the security without contacting the AAM
+        ReflectionTestUtils.setField(authorizationManager, "securityEnabled", true);
+        componentSecurityHandler = mock(IComponentSecurityHandler.class);
+        authorizationManager.setComponentSecurityHandler(componentSecurityHandler);
+    }
+
+    @Test
+    public void checkNotificationSecuredPerPlatformTest() {
+        doAnswer(invocation -> {
+            Map<String, ?> accessPoliciesMap = (Map<String, ?>) invocation.getArguments()[0];
+            assertEquals(new HashSet<>(Arrays.asList("platform1", "platform2")), accessPoliciesMap.keySet());
+            return Collections.singleton("platform1");
+        }).when(componentSecurityHandler).getSatisfiedPoliciesIdentifiers(any(), any());
+
+        Set<String> platformIds = new HashSet<>(Arrays.asList("platform1", "platform2", null));
+        Map<String, AuthorizationResult> results = authorizationManager
+                .checkNotificationSecuredPerPlatform(platformIds, mock(SecurityRequest.class));
+
+        assertEquals(3, results.size());
+        assertTrue(results.get("platform1").isValidated());
+        assertFalse(results.get("platform2").isValidated());
+        assertFalse(results.get(null).isValidated());
+
+        // All the platform policies are evaluated in a single call
+        verify(componentSecurityHandler, times(1)).getSatisfiedPoliciesIdentifiers(anyMap(), any());
+    }
+
+    @Test
+    public void nullSecurityRequestTest() {
+        Set<String> platformIds = new HashSet<>(Arrays.asList("platform1", "platform2"));
+        Map<String, AuthorizationResult> results = authorizationManager
+                .checkNotificationSecuredPerPlatform(platformIds, null);
+
+        assertEquals(2, results.size());
+        assertFalse(results.get("platform1").isValidated());
+        assertEquals("SecurityRequest is null", results.get("platform2").getMessage());
+        verify(componentSecurityHandler, never()).getSatisfiedPoliciesIdentifiers(anyMap(), any());
+    }
+
+    @Test
+    public void nullResourceTest() {
+        AuthorizationResult result = authorizationManager.checkNotificationSecured(null, null);
+
+        assertFalse(result.isValidated());
+        assertEquals("The resource is null", result.getMessage());
+        verify(componentSecurityHandler, never()).getSatisfiedPoliciesIdentifiers(anyMap(), any());
+    }
+
+    @Test
+    public void securityHandlerExceptionTest() {
+        doAnswer(invocation -> {
+            throw new RuntimeException("Invalid token");
+        }).when(componentSecurityHandler).getSatisfiedPoliciesIdentifiers(any(), any());
+
+        Map<String, AuthorizationResult> results = authorizationManager.checkNotificationSecuredPerPlatform(
+                Collections.singleton("platform1"), mock(SecurityRequest.class));
+
+        assertFalse(results.get("platform1").isValidated());
+        assertEquals("Invalid token", results.get("platform1").getMessage());
+    }
+
+    @Test
+    public void cachedVerdictsTest() {
+        verdictCache = new AuthorizationVerdictCache(true, 100, 30000L, mock(CounterService.class));
+        ReflectionTestUtils.setField(authorizationManager, "verdictCache", verdictCache);
+
+        doAnswer(invocation -> ((Map<String, ?>) invocation.getArguments()[0]).keySet())
+                .when(componentSecurityHandler).getSatisfiedPoliciesIdentifiers(any(), any());
+
+        long exp = System.currentTimeMillis() / 1000 + 60;
+        String token = "header." + Base64.getUrlEncoder().encodeToString(("{\"exp\":" + exp + "}").getBytes()) +
+                ".signature";
+        SecurityRequest securityRequest = new SecurityRequest(
+                Collections.singleton(new SecurityCredentials(token)), System.currentTimeMillis());
+
+        authorizationManager.checkNotificationSecuredPerPlatform(
+                new HashSet<>(Arrays.asList("platform1", "platform2")), securityRequest);
+        Map<String, AuthorizationResult> results = authorizationManager.checkNotificationSecuredPerPlatform(
+                new HashSet<>(Arrays.asList("platform1", "platform2")), securityRequest);
+
+        assertTrue(results.get("platform1").isValidated());
+        assertTrue(results.get("platform2").isValidated());
+
+        // Only the platform which was not cached is evaluated in the 2nd call
+        results = authorizationManager.checkNotificationSecuredPerPlatform(
+                new HashSet<>(Arrays.asList("platform1", "platform3")), securityRequest);
+        assertTrue(results.get("platform3").isValidated());
+
+        verify(componentSecurityHandler, times(2)).getSatisfiedPoliciesIdentifiers(anyMap(), any());
+        assertEquals(3, verdictCache.size());
+    }
+}
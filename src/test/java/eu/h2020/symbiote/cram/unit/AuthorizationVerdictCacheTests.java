@@ -0,0 +1,114 @@
+package eu.h2020.symbiote.cram.unit;
+
+import eu.h2020.symbiote.cram.managers.AuthorizationVerdictCache;
+import eu.h2020.symbiote.cram.model.authorization.AuthorizationResult;
+import eu.h2020.symbiote.security.communication.payloads.SecurityCredentials;
+import eu.h2020.symbiote.security.communication.payloads.SecurityRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * This file tests the AuthorizationVerdictCache
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class AuthorizationVerdictCacheTests {
+
+    private CounterService counterService;
+    private AuthorizationVerdictCache verdictCache;
+
+    @Before
+    public void setup() {
+        counterService = mock(CounterService.class);
+        verdictCache = new AuthorizationVerdictCache(true, 2, 30000L, counterService);
+    }
+
+    @Test
+    public void hitAndMissTest() {
+        SecurityRequest securityRequest = createSecurityRequest(60, 1000);
+        AuthorizationVerdictCache.CredentialsKey key = verdictCache.keyOf(securityRequest);
+        String policyIdentity = AuthorizationVerdictCache.componentHomeTokenPolicyIdentity("platform1");
+
+        assertNull(verdictCache.get(key, policyIdentity));
+        verdictCache.put(key, policyIdentity, new AuthorizationResult("ok", true));
+
+        // An identical SecurityRequest leads to the same key
+        AuthorizationResult result = verdictCache.get(verdictCache.keyOf(createSecurityRequest(60, 1000)),
+                policyIdentity);
+        assertNotNull(result);
+        assertTrue(result.isValidated());
+
+        // The timestamp of the SecurityRequest is not part of the key
+        assertNotNull(verdictCache.get(verdictCache.keyOf(createSecurityRequest(60, 2000)), policyIdentity));
+
+        // Different policy or different credentials
+        assertNull(verdictCache.get(key, AuthorizationVerdictCache.componentHomeTokenPolicyIdentity("platform2")));
+        assertNull(verdictCache.get(verdictCache.keyOf(createSecurityRequest(120, 1000)), policyIdentity));
+
+        verify(counterService, times(2)).increment("counter.cram.authorizationCache.hits");
+        verify(counterService, times(3)).increment("counter.cram.authorizationCache.misses");
+    }
+
+    @Test
+    public void tokenExpirationTest() throws Exception {
+        SecurityRequest securityRequest = createSecurityRequest(1, 1000);
+        AuthorizationVerdictCache.CredentialsKey key = verdictCache.keyOf(securityRequest);
+        String policyIdentity = AuthorizationVerdictCache.componentHomeTokenPolicyIdentity("platform1");
+
+        // The entry expires with the token, although the timeToLive is longer
+        assertTrue(key.getExpiresAt() <= System.currentTimeMillis() + 1000);
+        verdictCache.put(key, policyIdentity, new AuthorizationResult("ok", true));
+        assertNotNull(verdictCache.get(key, policyIdentity));
+
+        Thread.sleep(key.getExpiresAt() - System.currentTimeMillis() + 10);
+        assertNull(verdictCache.get(key, policyIdentity));
+        assertEquals(0, verdictCache.size());
+
+        // Expired tokens and tokens without expiration are not cached at all
+        assertNull(verdictCache.keyOf(createSecurityRequest(-1, 1000)));
+        assertNull(verdictCache.keyOf(new SecurityRequest(
+                Collections.singleton(new SecurityCredentials("notAJwt")), 1000)));
+    }
+
+    @Test
+    public void evictionTest() {
+        AuthorizationVerdictCache.CredentialsKey key = verdictCache.keyOf(createSecurityRequest(60, 1000));
+
+        for (String platformId : Arrays.asList("platform1", "platform2", "platform3"))
+            verdictCache.put(key, AuthorizationVerdictCache.componentHomeTokenPolicyIdentity(platformId),
+                    new AuthorizationResult("ok", true));
+
+        assertEquals(2, verdictCache.size());
+        assertNull(verdictCache.get(key, AuthorizationVerdictCache.componentHomeTokenPolicyIdentity("platform1")));
+        assertNotNull(verdictCache.get(key, AuthorizationVerdictCache.componentHomeTokenPolicyIdentity("platform3")));
+    }
+
+    @Test
+    public void disabledCacheTest() {
+        verdictCache = new AuthorizationVerdictCache(false, 2, 30000L, counterService);
+        assertNull(verdictCache.keyOf(createSecurityRequest(60, 1000)));
+    }
+
+    private SecurityRequest createSecurityRequest(long secondsToExpiration, long timestamp) {
+        long exp = System.currentTimeMillis() / 1000 + secondsToExpiration;
+        String claims = "{\"sub\":\"rap\",\"exp\":" + exp + "}";
+        String token = "header." + Base64.getUrlEncoder().encodeToString(claims.getBytes()) + ".signature";
+
+        return new SecurityRequest(new HashSet<>(Collections.singleton(new SecurityCredentials(token))), timestamp);
+    }
+}
@@ -0,0 +1,191 @@
+package eu.h2020.symbiote.cram.unit;
+
+import com.rabbitmq.client.Channel;
+import eu.h2020.symbiote.core.cci.accessNotificationMessages.NotificationMessage;
+import eu.h2020.symbiote.core.cci.accessNotificationMessages.SuccessfulAccessMessageInfo;
+import eu.h2020.symbiote.core.internal.cram.NotificationMessageSecured;
+import eu.h2020.symbiote.cram.managers.AuthorizationManager;
+import eu.h2020.symbiote.cram.messaging.AccessNotificationListener;
+import eu.h2020.symbiote.cram.messaging.BatchingNotificationConsumer;
+import eu.h2020.symbiote.cram.messaging.NotificationHandoff;
+import eu.h2020.symbiote.cram.model.authorization.ServiceResponseResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * This file tests the BatchingNotificationConsumer
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class BatchingNotificationConsumerTests {
+
+    private List<List<NotificationMessageSecured>> processedBatches;
+    private NotificationHandoff notificationHandoff;
+    private RabbitTemplate rabbitTemplate;
+    private Channel channel;
+    private Jackson2JsonMessageConverter messageConverter;
+    private BatchingNotificationConsumer batchingNotificationConsumer;
+    private RuntimeException processingFailure;
+
+    @Before
+    public void setup() {
+        processedBatches = new CopyOnWriteArrayList<>();
+        processingFailure = null;
+        notificationHandoff = new NotificationHandoff(messages -> {
+            // A failure of a whole batch is repeated for the poison message only
+            if (processingFailure != null && (messages.size() > 1 || messages.get(0).getBody()
+                    .getSuccessfulAttempts().get(0).getSymbIoTeId().equals("poison_id")))
+                throw processingFailure;
+            processedBatches.add(new ArrayList<>(messages));
+        }, 100);
+
+        AccessNotificationListener accessNotificationListener = mock(AccessNotificationListener.class);
+        doReturn(notificationHandoff).when(accessNotificationListener).getNotificationHandoff();
+
+        AuthorizationManager authorizationManager = mock(AuthorizationManager.class);
+        doReturn(new ServiceResponseResult("serviceResponse", true))
+                .when(authorizationManager).generateServiceResponse();
+
+        rabbitTemplate = mock(RabbitTemplate.class);
+        channel = mock(Channel.class);
+        doReturn(true).when(channel).isOpen();
+        messageConverter = new Jackson2JsonMessageConverter();
+
+        batchingNotificationConsumer = new BatchingNotificationConsumer(accessNotificationListener,
+                authorizationManager, rabbitTemplate, messageConverter, 3, 200L, false);
+    }
+
+    @After
+    public void tearDown() {
+        batchingNotificationConsumer.shutdown();
+    }
+
+    @Test
+    public void fullBatchTest() throws Exception {
+        for (long deliveryTag = 1; deliveryTag <= 3; deliveryTag++)
+            batchingNotificationConsumer.onMessage(createMessage(deliveryTag, deliveryTag == 2), channel);
+
+        assertEquals(1, processedBatches.size());
+        assertEquals(3, processedBatches.get(0).size());
+        verify(channel, times(1)).basicAck(3, true);
+        verify(channel, never()).basicAck(eq(1L), anyBoolean());
+
+        // Only the message with the replyTo gets a reply
+        verify(rabbitTemplate, times(1)).send(eq(""), eq("replyQueue"), any(Message.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void viewsAccumulatorIsRefusedTest() {
+        AccessNotificationListener accessNotificationListener = mock(AccessNotificationListener.class);
+        doReturn(notificationHandoff).when(accessNotificationListener).getNotificationHandoff();
+
+        new BatchingNotificationConsumer(accessNotificationListener, mock(AuthorizationManager.class), rabbitTemplate,
+                messageConverter, 3, 200L, true);
+    }
+
+    @Test
+    public void batchTimeoutTest() throws Exception {
+        batchingNotificationConsumer.onMessage(createMessage(1, false), channel);
+        assertEquals(0, processedBatches.size());
+
+        TimeUnit.MILLISECONDS.sleep(500);
+        assertEquals(1, processedBatches.size());
+        verify(channel, times(1)).basicAck(1, true);
+    }
+
+    @Test
+    public void rolloverTest() throws Exception {
+        notificationHandoff.beginRollover();
+
+        for (long deliveryTag = 1; deliveryTag <= 4; deliveryTag++)
+            batchingNotificationConsumer.onMessage(createMessage(deliveryTag, false), channel);
+
+        // The batch is kept unacknowledged during the rollover
+        assertEquals(0, processedBatches.size());
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+
+        notificationHandoff.endRollover();
+        TimeUnit.MILLISECONDS.sleep(500);
+
+        assertEquals(1, processedBatches.size());
+        assertEquals(4, processedBatches.get(0).size());
+        verify(channel, times(1)).basicAck(4, true);
+    }
+
+    @Test
+    public void failedWriteTest() throws Exception {
+        processingFailure = new DataAccessResourceFailureException("Mongo is down");
+
+        for (long deliveryTag = 1; deliveryTag <= 3; deliveryTag++)
+            batchingNotificationConsumer.onMessage(createMessage(deliveryTag, false), channel);
+
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+        verify(channel, times(1)).basicNack(3, true, true);
+        verify(rabbitTemplate, never()).send(any(), any(), any(Message.class));
+    }
+
+    @Test
+    public void poisonMessageTest() throws Exception {
+        processingFailure = new IllegalArgumentException("Malformed notification");
+
+        batchingNotificationConsumer.onMessage(createMessage(1, false), channel);
+        batchingNotificationConsumer.onMessage(createMessage(2, false, "poison_id"), channel);
+        batchingNotificationConsumer.onMessage(createMessage(3, true), channel);
+
+        // Only the poison message is rejected and it is not requeued
+        assertEquals(2, processedBatches.size());
+        verify(channel, times(1)).basicAck(1, false);
+        verify(channel, times(1)).basicNack(2, false, false);
+        verify(channel, times(1)).basicAck(3, false);
+        verify(channel, never()).basicNack(anyLong(), anyBoolean(), eq(true));
+        verify(rabbitTemplate, times(1)).send(eq(""), eq("replyQueue"), any(Message.class));
+    }
+
+    private Message createMessage(long deliveryTag, boolean withReplyTo) {
+        return createMessage(deliveryTag, withReplyTo, "sensor_id");
+    }
+
+    private Message createMessage(long deliveryTag, boolean withReplyTo, String resourceId) {
+        SuccessfulAccessMessageInfo successfulAttempts = new SuccessfulAccessMessageInfo();
+        successfulAttempts.setSymbIoTeId(resourceId);
+        successfulAttempts.setTimestamps(Collections.singletonList(new Date(1000)));
+
+        NotificationMessage notificationMessage = new NotificationMessage();
+        notificationMessage.addSuccessfulAttempt(successfulAttempts);
+
+        NotificationMessageSecured notificationMessageSecured = new NotificationMessageSecured();
+        notificationMessageSecured.setBody(notificationMessage);
+
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setDeliveryTag(deliveryTag);
+        if (withReplyTo)
+            messageProperties.setReplyTo("replyQueue");
+
+        return messageConverter.toMessage(notificationMessageSecured, messageProperties);
+    }
+}
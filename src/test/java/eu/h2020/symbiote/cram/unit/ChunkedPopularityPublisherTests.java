@@ -0,0 +1,137 @@
+package eu.h2020.symbiote.cram.unit;
+
+import eu.h2020.symbiote.core.internal.popularity.PopularityUpdate;
+import eu.h2020.symbiote.core.internal.popularity.PopularityUpdatesMessage;
+import eu.h2020.symbiote.cram.util.ChunkedPopularityPublisher;
+import eu.h2020.symbiote.cram.util.ConfirmingPublisher;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * This file tests the ChunkedPopularityPublisher
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class ChunkedPopularityPublisherTests {
+
+    private RabbitTemplate rabbitTemplate;
+    private List<List<PopularityUpdate>> sentChunks;
+
+    @Before
+    public void setup() {
+        rabbitTemplate = Mockito.mock(RabbitTemplate.class);
+        sentChunks = new ArrayList<>();
+    }
+
+    @Test
+    public void chunksByEntriesTest() throws Exception {
+        ChunkedPopularityPublisher publisher = createPublisher(10, 1000000);
+
+        for (int i = 0; i < 25; i++)
+            publisher.add(createPopularityUpdate("sensor_id" + i, i));
+
+        assertEquals(3, publisher.finish());
+
+        List<PopularityUpdatesMessage> messages = new ArrayList<>();
+        List<Map<String, Object>> headers = new ArrayList<>();
+        captureMessages(3, messages, headers);
+
+        assertEquals(10, messages.get(0).getPopularityUpdateList().size());
+        assertEquals(10, messages.get(1).getPopularityUpdateList().size());
+        assertEquals(5, messages.get(2).getPopularityUpdateList().size());
+        assertEquals("sensor_id24", messages.get(2).getPopularityUpdateList().get(4).getId());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("snapshot", headers.get(i).get(ChunkedPopularityPublisher.SNAPSHOT_ID_HEADER));
+            assertEquals(i, headers.get(i).get(ChunkedPopularityPublisher.SEQUENCE_HEADER));
+            assertEquals(i == 2, headers.get(i).get(ChunkedPopularityPublisher.END_OF_SNAPSHOT_HEADER));
+        }
+
+        assertEquals(3, sentChunks.size());
+    }
+
+    @Test
+    public void chunksByBytesTest() throws Exception {
+        // Every update of "sensor_idX" with a single digit of views takes 36 + 10 + 1 bytes
+        ChunkedPopularityPublisher publisher = createPublisher(1000, 27 + 3 * 47);
+
+        for (int i = 0; i < 7; i++)
+            publisher.add(createPopularityUpdate("sensor_id" + i, i));
+
+        assertEquals(3, publisher.finish());
+
+        List<PopularityUpdatesMessage> messages = new ArrayList<>();
+        captureMessages(3, messages, new ArrayList<>());
+        assertEquals(3, messages.get(0).getPopularityUpdateList().size());
+        assertEquals(3, messages.get(1).getPopularityUpdateList().size());
+        assertEquals(1, messages.get(2).getPopularityUpdateList().size());
+    }
+
+    @Test
+    public void oversizedUpdateTest() throws Exception {
+        ChunkedPopularityPublisher publisher = createPublisher(1000, 10);
+
+        publisher.add(createPopularityUpdate("sensor_id1", 1));
+        publisher.add(createPopularityUpdate("sensor_id2", 2));
+
+        assertEquals(2, publisher.finish());
+    }
+
+    @Test
+    public void emptySnapshotTest() {
+        ChunkedPopularityPublisher publisher = createPublisher(10, 1000);
+
+        assertEquals(0, publisher.finish());
+        verify(rabbitTemplate, never()).convertAndSend(anyString(), anyString(), any(Object.class),
+                any(MessagePostProcessor.class));
+    }
+
+    private ChunkedPopularityPublisher createPublisher(int maxEntries, int maxBytes) {
+        ConfirmingPublisher confirmingPublisher = new ConfirmingPublisher(rabbitTemplate, false, 16, 3, 500L, 30000L,
+                Mockito.mock(CounterService.class), Mockito.mock(GaugeService.class));
+        return new ChunkedPopularityPublisher(confirmingPublisher, "exchange", "routingKey", maxEntries, maxBytes,
+                "snapshot", sentChunks::add);
+    }
+
+    private void captureMessages(int noMessages, List<PopularityUpdatesMessage> messages,
+                                 List<Map<String, Object>> headers) throws Exception {
+        ArgumentCaptor<PopularityUpdatesMessage> messageCaptor = ArgumentCaptor.forClass(PopularityUpdatesMessage.class);
+        ArgumentCaptor<MessagePostProcessor> postProcessorCaptor = ArgumentCaptor.forClass(MessagePostProcessor.class);
+        verify(rabbitTemplate, times(noMessages)).convertAndSend(eq("exchange"), eq("routingKey"),
+                messageCaptor.capture(), postProcessorCaptor.capture());
+
+        messages.addAll(messageCaptor.getAllValues());
+        for (MessagePostProcessor postProcessor : postProcessorCaptor.getAllValues()) {
+            Message message = postProcessor.postProcessMessage(new Message(new byte[0], new MessageProperties()));
+            headers.add(message.getMessageProperties().getHeaders());
+        }
+    }
+
+    private PopularityUpdate createPopularityUpdate(String id, int views) {
+        PopularityUpdate popularityUpdate = new PopularityUpdate();
+        popularityUpdate.setId(id);
+        popularityUpdate.setViewsInDefinedInterval(views);
+        return popularityUpdate;
+    }
+}
@@ -0,0 +1,289 @@
+package eu.h2020.symbiote.cram.unit;
+
+import eu.h2020.symbiote.cram.util.ConfirmingPublisher;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * This file tests the ConfirmingPublisher
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class ConfirmingPublisherTests {
+
+    private RabbitTemplate rabbitTemplate;
+    private CounterService counterService;
+    private GaugeService gaugeService;
+    private BlockingQueue<CorrelationData> publishedMessages;
+    private List<String> confirmedMessages;
+    private ConfirmingPublisher confirmingPublisher;
+    private ExecutorService executor;
+
+    @Before
+    public void setup() {
+        rabbitTemplate = Mockito.mock(RabbitTemplate.class);
+        counterService = Mockito.mock(CounterService.class);
+        gaugeService = Mockito.mock(GaugeService.class);
+        publishedMessages = new LinkedBlockingQueue<>();
+        confirmedMessages = new CopyOnWriteArrayList<>();
+        executor = Executors.newSingleThreadExecutor();
+
+        doAnswer(invocation -> {
+            publishedMessages.add((CorrelationData) invocation.getArguments()[4]);
+            return null;
+        }).when(rabbitTemplate).convertAndSend(anyString(), anyString(), any(Object.class),
+                any(MessagePostProcessor.class), any(CorrelationData.class));
+    }
+
+    @After
+    public void clearSetup() {
+        executor.shutdownNow();
+        if (confirmingPublisher != null)
+            confirmingPublisher.shutdown();
+    }
+
+    @Test
+    public void confirmsTest() throws InterruptedException {
+        confirmingPublisher = createConfirmingPublisher(2, 3, 30000L);
+        verify(rabbitTemplate).setConfirmCallback(confirmingPublisher);
+
+        send("message1");
+        send("message2");
+        assertEquals(2, publishedMessages.size());
+
+        // The callbacks run on the sending thread only
+        confirmingPublisher.confirm(publishedMessages.take(), true, null);
+        confirmingPublisher.confirm(publishedMessages.take(), true, null);
+        assertTrue(confirmedMessages.isEmpty());
+
+        confirmingPublisher.awaitConfirms();
+        assertEquals(2, confirmedMessages.size());
+        verify(gaugeService, times(2)).submit(eq("histogram.cram.popularity.publish.latency"), anyDouble());
+        verify(gaugeService).submit(eq("gauge.cram.popularity.publish.throughput"), anyDouble());
+    }
+
+    @Test
+    public void inFlightWindowTest() throws Exception {
+        confirmingPublisher = createConfirmingPublisher(1, 3, 30000L);
+
+        send("message1");
+        Future<?> secondSend = executor.submit(() -> send("message2"));
+
+        // The second message waits for the confirm of the first one
+        Thread.sleep(200);
+        assertFalse(secondSend.isDone());
+        assertEquals(1, publishedMessages.size());
+
+        confirmingPublisher.confirm(publishedMessages.take(), true, null);
+        secondSend.get(2, TimeUnit.SECONDS);
+        confirmingPublisher.confirm(publishedMessages.poll(2, TimeUnit.SECONDS), true, null);
+
+        confirmingPublisher.awaitConfirms();
+        assertEquals(2, confirmedMessages.size());
+    }
+
+    @Test
+    public void nackRetryTest() throws InterruptedException {
+        confirmingPublisher = createConfirmingPublisher(2, 3, 30000L);
+
+        send("message");
+        confirmingPublisher.confirm(publishedMessages.take(), false, "nack");
+
+        // The message is published again after the backoff
+        CorrelationData retry = publishedMessages.poll(2, TimeUnit.SECONDS);
+        assertNotNull(retry);
+        confirmingPublisher.confirm(retry, true, null);
+
+        confirmingPublisher.awaitConfirms();
+        assertEquals(1, confirmedMessages.size());
+        verify(counterService).increment("counter.cram.popularity.publish.retries");
+    }
+
+    @Test
+    public void nackFailureTest() throws InterruptedException {
+        confirmingPublisher = createConfirmingPublisher(2, 1, 30000L);
+
+        send("message");
+        confirmingPublisher.confirm(publishedMessages.take(), false, "nack");
+        confirmingPublisher.confirm(publishedMessages.poll(2, TimeUnit.SECONDS), false, "nack");
+
+        try {
+            confirmingPublisher.awaitConfirms();
+            fail("The failed message should be reported");
+        } catch (IllegalStateException e) {
+            assertEquals("1 popularity messages were not confirmed by the broker", e.getMessage());
+        }
+
+        assertTrue(confirmedMessages.isEmpty());
+        verify(counterService).increment("counter.cram.popularity.publish.failures");
+        assertNull(publishedMessages.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void returnedMessageTest() throws InterruptedException {
+        confirmingPublisher = createConfirmingPublisher(2, 1, 30000L);
+        verify(rabbitTemplate).setReturnCallback(confirmingPublisher);
+
+        send("message");
+
+        // The unroutable message is returned before it is acked, so it is retried
+        CorrelationData returned = publishedMessages.take();
+        confirmingPublisher.returnedMessage(createReturnedMessage(returned), 312, "NO_ROUTE", "exchange",
+                "routingKey");
+        confirmingPublisher.confirm(returned, true, null);
+
+        CorrelationData retry = publishedMessages.poll(2, TimeUnit.SECONDS);
+        assertNotNull(retry);
+        confirmingPublisher.returnedMessage(createReturnedMessage(retry), 312, "NO_ROUTE", "exchange",
+                "routingKey");
+        confirmingPublisher.confirm(retry, true, null);
+
+        try {
+            confirmingPublisher.awaitConfirms();
+            fail("The returned message should be reported");
+        } catch (IllegalStateException e) {
+            assertEquals("1 popularity messages were not confirmed by the broker", e.getMessage());
+        }
+
+        assertTrue(confirmedMessages.isEmpty());
+        verify(counterService).increment("counter.cram.popularity.publish.retries");
+        verify(counterService).increment("counter.cram.popularity.publish.failures");
+    }
+
+    @Test
+    public void optionalReturnedMessageTest() throws InterruptedException {
+        confirmingPublisher = createConfirmingPublisher(2, 1, 30000L);
+
+        confirmingPublisher.send("exchange", "unboundKey", "message", null, () -> confirmedMessages.add("message"),
+                false);
+
+        // The optional message is confirmed with its ack, even though nothing was routed
+        CorrelationData returned = publishedMessages.take();
+        confirmingPublisher.returnedMessage(createReturnedMessage(returned), 312, "NO_ROUTE", "exchange",
+                "unboundKey");
+        confirmingPublisher.confirm(returned, true, null);
+        confirmingPublisher.awaitConfirms();
+
+        assertEquals(1, confirmedMessages.size());
+        assertNull(publishedMessages.poll(200, TimeUnit.MILLISECONDS));
+        verify(counterService, times(0)).increment(anyString());
+    }
+
+    @Test
+    public void correlationHeaderTest() throws Exception {
+        confirmingPublisher = createConfirmingPublisher(2, 3, 30000L);
+        ArgumentCaptor<MessagePostProcessor> captor = ArgumentCaptor.forClass(MessagePostProcessor.class);
+
+        send("message");
+        CorrelationData correlationData = publishedMessages.take();
+        verify(rabbitTemplate).convertAndSend(eq("exchange"), eq("routingKey"), eq("message"), captor.capture(),
+                eq(correlationData));
+
+        Message message = captor.getValue().postProcessMessage(new Message(new byte[0], new MessageProperties()));
+        assertEquals(correlationData.getId(), message.getMessageProperties().getHeaders()
+                .get("cram_popularity_correlation"));
+    }
+
+    @Test
+    public void confirmTimeoutTest() throws InterruptedException {
+        confirmingPublisher = createConfirmingPublisher(1, 3, 100L);
+
+        send("message1");
+        CorrelationData unconfirmed = publishedMessages.take();
+
+        try {
+            confirmingPublisher.awaitConfirms();
+            fail("The missing confirm should be reported");
+        } catch (IllegalStateException e) {
+            assertEquals("1 popularity messages were not confirmed within 100 ms", e.getMessage());
+        }
+
+        // The window is reset, but the late confirm still runs the callback of the abandoned message
+        send("message2");
+        CorrelationData unconfirmed2 = publishedMessages.take();
+        confirmingPublisher.confirm(unconfirmed, true, null);
+
+        // and it does not release the permit of message2, which is abandoned in turn
+        try {
+            send("message3");
+            fail("The late confirm should not release a permit");
+        } catch (IllegalStateException e) {
+            assertEquals("1 popularity messages were not confirmed within 100 ms", e.getMessage());
+        }
+
+        confirmingPublisher.confirm(unconfirmed2, true, null);
+        send("message3");
+        confirmingPublisher.confirm(publishedMessages.take(), true, null);
+        confirmingPublisher.awaitConfirms();
+
+        assertEquals(Arrays.asList("message1", "message2", "message3"), confirmedMessages);
+        verify(counterService, atLeastOnce()).increment("counter.cram.popularity.publish.failures");
+    }
+
+    @Test
+    public void disabledTest() {
+        confirmingPublisher = new ConfirmingPublisher(rabbitTemplate, false, 1, 3, 10L, 30000L,
+                counterService, gaugeService);
+
+        send("message1");
+        send("message2");
+        confirmingPublisher.awaitConfirms();
+
+        assertEquals(2, confirmedMessages.size());
+        verify(rabbitTemplate, times(2)).convertAndSend(eq("exchange"), eq("routingKey"), any(Object.class),
+                any(MessagePostProcessor.class));
+        verify(rabbitTemplate, times(0)).setConfirmCallback(any());
+        verify(rabbitTemplate, times(0)).setReturnCallback(any());
+    }
+
+    private ConfirmingPublisher createConfirmingPublisher(int maxInFlight, int maxRetries, long confirmTimeout) {
+        return new ConfirmingPublisher(rabbitTemplate, true, maxInFlight, maxRetries, 10L, confirmTimeout,
+                counterService, gaugeService);
+    }
+
+    private Message createReturnedMessage(CorrelationData correlationData) {
+        MessageProperties messageProperties = new MessageProperties();
+        messageProperties.setHeader("cram_popularity_correlation", correlationData.getId());
+        return new Message(new byte[0], messageProperties);
+    }
+
+    private void send(String message) {
+        confirmingPublisher.send("exchange", "routingKey", message, m -> m, () -> confirmedMessages.add(message));
+    }
+}
@@ -31,6 +31,25 @@ public class CramResourceTests {
         assertEquals(0, (long) cramResource.getViewsInSubIntervals().get(2).getViews());
     }
 
+    @Test
+    public void getSubIntervalOfTest() {
+        CramResource cramResource = createCramResourceWithIntervals();
+
+        assertEquals(1000, cramResource.getSubIntervalOf(new Date(1999)).getStartOfInterval().getTime());
+        assertEquals(2000, cramResource.getSubIntervalOf(new Date(2000)).getStartOfInterval().getTime());
+        assertEquals(null, cramResource.getSubIntervalOf(new Date(4000)));
+
+        cramResource.setViewsInSubIntervals(null);
+        assertEquals(null, cramResource.getSubIntervalOf(new Date(2000)));
+
+        // Subintervals with a gap are searched one by one
+        cramResource.setViewsInSubIntervals(new ArrayList<>(Arrays.asList(
+                new SubIntervalViews(new Date(1000), new Date(2000), 0),
+                new SubIntervalViews(new Date(5000), new Date(6000), 0))));
+        assertEquals(5000, cramResource.getSubIntervalOf(new Date(5500)).getStartOfInterval().getTime());
+        assertEquals(null, cramResource.getSubIntervalOf(new Date(2500)));
+    }
+
     @Test
     public void addViewsInSubIntervalsTest() {
         Long subIntervalDuration_ms = 1000L;
@@ -208,6 +227,62 @@ public class CramResourceTests {
 
     }
 
+    @Test
+    public void expireSubIntervalsTest() {
+        CramResource cramResource = createCramResourceWithIntervals();
+        cramResource.getViewsInSubIntervals().get(0).setViews(3);
+        cramResource.getViewsInSubIntervals().get(1).setViews(2);
+        cramResource.setViewsInDefinedInterval(5);
+
+        assertEquals(true, cramResource.hasExpiredSubIntervals(new Date(3000), 3));
+        assertEquals(5, cramResource.getExpiredViews(new Date(3000)));
+
+        // The instance is not modified
+        assertEquals(3, cramResource.getViewsInSubIntervals().size());
+        assertEquals(5, (int) cramResource.getViewsInDefinedInterval());
+
+        // Nothing has expired yet, so the resource is not written
+        assertEquals(false, cramResource.hasExpiredSubIntervals(new Date(1000), 3));
+        assertEquals(0, cramResource.getExpiredViews(new Date(1000)));
+
+        cramResource.setLastUpdateEpoch(3L);
+        assertEquals(false, cramResource.hasExpiredSubIntervals(new Date(3000), 3));
+        assertEquals(true, cramResource.hasExpiredSubIntervals(new Date(3000), 4));
+    }
+
+    @Test
+    public void getViewsInWindowTest() {
+        CramResource cramResource = createCramResourceWithIntervals();
+        cramResource.getViewsInSubIntervals().get(0).setViews(3);
+        cramResource.getViewsInSubIntervals().get(1).setViews(2);
+        cramResource.getViewsInSubIntervals().get(2).setViews(1);
+
+        assertEquals(6, cramResource.getViewsInWindow(new Date(1000), null));
+        assertEquals(3, cramResource.getViewsInWindow(new Date(2000), null));
+        assertEquals(2, cramResource.getViewsInWindow(new Date(2000), new Date(3000)));
+        assertEquals(0, cramResource.getViewsInWindow(new Date(4000), null));
+    }
+
+    @Test
+    public void rolloverToTest() {
+        CramResource cramResource = createCramResourceWithIntervals();
+        cramResource.getViewsInSubIntervals().get(0).setViews(2);
+        cramResource.setViewsInDefinedInterval(2);
+
+        assertEquals(true, cramResource.rolloverTo(7L, 3L, 1000L));
+        assertEquals(7, (long) cramResource.getRolloverEpoch());
+        assertEquals(0, (int) cramResource.getViewsInDefinedInterval());
+        assertEquals(new Date(2000), cramResource.getViewsInSubIntervals().get(0).getStartOfInterval());
+
+        // A resumed rollover does not roll the resource over twice
+        assertEquals(false, cramResource.rolloverTo(7L, 3L, 1000L));
+        assertEquals(new Date(2000), cramResource.getViewsInSubIntervals().get(0).getStartOfInterval());
+
+        assertEquals(true, cramResource.rolloverTo(null, 3L, 1000L));
+        assertEquals(7, (long) cramResource.getRolloverEpoch());
+        assertEquals(new Date(3000), cramResource.getViewsInSubIntervals().get(0).getStartOfInterval());
+    }
+
     @Test
     public void equals() {
         CramResource cramResource1 = new CramResource();
@@ -0,0 +1,187 @@
+package eu.h2020.symbiote.cram.unit;
+
+import eu.h2020.symbiote.cram.util.FixedRateScheduler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+
+/**
+ * This file tests the FixedRateScheduler
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class FixedRateSchedulerTests {
+
+    private CounterService counterService;
+    private GaugeService gaugeService;
+    private FixedRateScheduler scheduler;
+
+    @Before
+    public void setup() {
+        counterService = Mockito.mock(CounterService.class);
+        gaugeService = Mockito.mock(GaugeService.class);
+    }
+
+    @After
+    public void clearSetup() {
+        if (scheduler != null)
+            scheduler.stop();
+    }
+
+    @Test
+    public void runAtFixedRateTest() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(3);
+        scheduler = new FixedRateScheduler("test", latch::countDown, 50, 1, counterService, gaugeService);
+
+        scheduler.start(new Date(System.currentTimeMillis() + 50), null);
+
+        assertTrue(scheduler.isStarted());
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        verify(gaugeService, atLeastOnce()).submit(eq("histogram.cram.scheduler.test.duration"), anyDouble());
+        verify(gaugeService, atLeastOnce()).submit(eq("histogram.cram.scheduler.test.lag"), anyDouble());
+    }
+
+    @Test
+    public void catchUpTest() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch progress = new CountDownLatch(1);
+        List<Date> nextRuns = new CopyOnWriteArrayList<>();
+        long period = 60000;
+        long firstRun = System.currentTimeMillis() - 10 * period - period / 2;
+        scheduler = new FixedRateScheduler("test", runs::incrementAndGet, period, 3, counterService, gaugeService);
+
+        scheduler.start(new Date(firstRun), nextRun -> {
+            nextRuns.add(nextRun);
+            progress.countDown();
+        });
+
+        assertTrue(progress.await(2, TimeUnit.SECONDS));
+
+        // 11 runs were due, but only maxCatchUp of them are executed
+        assertEquals(3, runs.get());
+        assertEquals(1, nextRuns.size());
+        assertEquals(firstRun + 11 * period, nextRuns.get(0).getTime());
+        assertEquals(firstRun + 11 * period, scheduler.getNextRun().getTime());
+        verify(counterService).increment("counter.cram.scheduler.test.skipped");
+    }
+
+    @Test
+    public void resumeFromProgressSourceTest() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        AtomicInteger reads = new AtomicInteger();
+        CountDownLatch progress = new CountDownLatch(1);
+        long period = 60000;
+        long firstRun = System.currentTimeMillis();
+        long persistedRun = firstRun - 4 * period;
+        scheduler = new FixedRateScheduler("test", runs::incrementAndGet, period, 10, counterService, gaugeService);
+
+        // The persisted progress is behind the next run in memory, e.g. after another replica was the leader
+        scheduler.start(new Date(firstRun), nextRun -> progress.countDown(),
+                () -> reads.incrementAndGet() == 1 ? new Date(persistedRun) : null);
+
+        assertTrue(progress.await(2, TimeUnit.SECONDS));
+
+        // The 4 missed runs are caught up together with the due one
+        assertEquals(5, runs.get());
+        assertEquals(persistedRun + 5 * period, scheduler.getNextRun().getTime());
+    }
+
+    @Test
+    public void failingTaskTest() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(3);
+        scheduler = new FixedRateScheduler("test", () -> {
+            latch.countDown();
+            throw new IllegalStateException("failure");
+        }, 50, 1, counterService, gaugeService);
+
+        scheduler.start(new Date(), null);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        verify(counterService, atLeastOnce()).increment("counter.cram.scheduler.test.failures");
+    }
+
+    @Test
+    public void failingProgressListenerTest() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(2);
+        scheduler = new FixedRateScheduler("test", latch::countDown, 50, 1, counterService, gaugeService);
+
+        scheduler.start(new Date(), nextRun -> {
+            throw new IllegalStateException("failure");
+        });
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void restartWithoutOverlapTest() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger concurrentRuns = new AtomicInteger();
+        AtomicInteger maxConcurrentRuns = new AtomicInteger();
+        AtomicInteger runs = new AtomicInteger();
+
+        scheduler = new FixedRateScheduler("test", () -> {
+            int current = concurrentRuns.incrementAndGet();
+            maxConcurrentRuns.accumulateAndGet(current, Math::max);
+            runs.incrementAndGet();
+            started.countDown();
+
+            // The first run blocks uninterruptibly until it is released
+            boolean released = false;
+            while (!released) {
+                try {
+                    released = release.await(10, TimeUnit.MILLISECONDS) || runs.get() > 1;
+                } catch (InterruptedException e) {
+                    // Ignore the interruption of shutdownNow
+                }
+            }
+            concurrentRuns.decrementAndGet();
+        }, 50, 1, counterService, gaugeService);
+
+        scheduler.start(new Date(), null);
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+
+        // The run of the previous start is still in progress
+        scheduler.start(new Date(), null);
+        Thread.sleep(200);
+        assertEquals(1, runs.get());
+        verify(counterService, atLeastOnce()).increment("counter.cram.scheduler.test.overlaps");
+
+        release.countDown();
+        Thread.sleep(1500);
+        assertTrue(runs.get() > 1);
+        assertEquals(1, maxConcurrentRuns.get());
+    }
+
+    @Test
+    public void stopTest() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        scheduler = new FixedRateScheduler("test", runs::incrementAndGet, 50, 1, counterService, gaugeService);
+
+        scheduler.start(new Date(System.currentTimeMillis() + 100), null);
+        scheduler.stop();
+        Thread.sleep(300);
+
+        assertFalse(scheduler.isStarted());
+        assertEquals(0, runs.get());
+    }
+}
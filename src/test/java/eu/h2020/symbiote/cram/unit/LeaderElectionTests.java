@@ -0,0 +1,153 @@
+package eu.h2020.symbiote.cram.unit;
+
+import eu.h2020.symbiote.cram.model.LeaderLease;
+import eu.h2020.symbiote.cram.repository.CramPersistentVariablesRepository;
+import eu.h2020.symbiote.cram.util.LeaderElection;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+/**
+ * This file tests the LeaderElection
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class LeaderElectionTests {
+
+    private CramPersistentVariablesRepository cramPersistentVariablesRepository;
+    private LeaderElection leaderElection;
+
+    @Before
+    public void setup() {
+        cramPersistentVariablesRepository = Mockito.mock(CramPersistentVariablesRepository.class);
+    }
+
+    @After
+    public void clearSetup() {
+        if (leaderElection != null)
+            leaderElection.shutdown();
+    }
+
+    @Test
+    public void disabledElectionTest() {
+        leaderElection = new LeaderElection(cramPersistentVariablesRepository, false, 30000L, 10000L);
+
+        assertTrue(leaderElection.isLeader());
+        assertEquals(0, (long) leaderElection.getFencingToken());
+        assertTrue(leaderElection.holdsLease(0));
+        verify(cramPersistentVariablesRepository, never()).acquireLease(anyString(), anyLong());
+    }
+
+    @Test
+    public void acquireLeaseTest() {
+        doReturn(createLease(3L)).when(cramPersistentVariablesRepository).acquireLease(anyString(), eq(30000L));
+        doReturn(true).when(cramPersistentVariablesRepository).holdsLease(anyString(), eq(3L));
+        leaderElection = new LeaderElection(cramPersistentVariablesRepository, true, 30000L, 10000L);
+
+        leaderElection.renewLease();
+
+        assertTrue(leaderElection.isLeader());
+        assertEquals(3, (long) leaderElection.getFencingToken());
+        assertTrue(leaderElection.holdsLease(3));
+        assertFalse(leaderElection.holdsLease(2));
+        leaderElection.checkLeadership(3);
+    }
+
+    @Test
+    public void leaseHeldByAnotherReplicaTest() {
+        doReturn(null).when(cramPersistentVariablesRepository).acquireLease(anyString(), anyLong());
+        leaderElection = new LeaderElection(cramPersistentVariablesRepository, true, 30000L, 10000L);
+
+        leaderElection.renewLease();
+
+        assertFalse(leaderElection.isLeader());
+        assertNull(leaderElection.getFencingToken());
+    }
+
+    @Test
+    public void lostLeaseTest() {
+        AtomicBoolean leaseHeld = new AtomicBoolean(true);
+        doAnswer(invocation -> leaseHeld.get() ? createLease(1L) : null).when(cramPersistentVariablesRepository)
+                .acquireLease(anyString(), anyLong());
+        doAnswer(invocation -> leaseHeld.get()).when(cramPersistentVariablesRepository)
+                .holdsLease(anyString(), eq(1L));
+        leaderElection = new LeaderElection(cramPersistentVariablesRepository, true, 30000L, 10000L);
+        leaderElection.renewLease();
+        assertTrue(leaderElection.isLeader());
+
+        // Another replica acquired the lease while this one was paused
+        leaseHeld.set(false);
+
+        try {
+            leaderElection.checkLeadership(1);
+            fail("The lost leadership was not detected");
+        } catch (IllegalStateException e) {
+            assertEquals("The leadership with fencing token 1 was lost", e.getMessage());
+        }
+
+        leaderElection.renewLease();
+        assertFalse(leaderElection.isLeader());
+    }
+
+    @Test
+    public void leaseExpiresLocallyTest() throws InterruptedException {
+        AtomicBoolean databaseUp = new AtomicBoolean(true);
+        doAnswer(invocation -> {
+            if (!databaseUp.get())
+                throw new IllegalStateException("Mongo is down");
+            return createLease(1L);
+        }).when(cramPersistentVariablesRepository).acquireLease(anyString(), anyLong());
+        leaderElection = new LeaderElection(cramPersistentVariablesRepository, true, 200L, 100L);
+        leaderElection.renewLease();
+        assertTrue(leaderElection.isLeader());
+
+        // The database can not be reached, so the leadership lapses when the lease expires
+        databaseUp.set(false);
+        Thread.sleep(300);
+
+        assertFalse(leaderElection.isLeader());
+        assertNull(leaderElection.getFencingToken());
+    }
+
+    @Test
+    public void heartbeatAndReleaseTest() {
+        doReturn(createLease(1L)).when(cramPersistentVariablesRepository).acquireLease(anyString(), anyLong());
+        leaderElection = new LeaderElection(cramPersistentVariablesRepository, true, 200L, 50L);
+
+        verify(cramPersistentVariablesRepository, timeout(1000).atLeast(3))
+                .acquireLease(eq(leaderElection.getHolderId()), eq(200L));
+        assertTrue(leaderElection.isLeader());
+
+        leaderElection.shutdown();
+        verify(cramPersistentVariablesRepository).releaseLease(leaderElection.getHolderId());
+        assertFalse(leaderElection.isLeader());
+    }
+
+    private LeaderLease createLease(Long fencingToken) {
+        LeaderLease lease = new LeaderLease();
+        lease.setId(LeaderLease.LEADER_LEASE);
+        lease.setHolderId("holder");
+        lease.setExpiresAt(new Date(System.currentTimeMillis() + 30000));
+        lease.setFencingToken(fencingToken);
+        return lease;
+    }
+}
@@ -0,0 +1,118 @@
+package eu.h2020.symbiote.cram.unit;
+
+import eu.h2020.symbiote.cram.util.BloomFilter;
+import eu.h2020.symbiote.cram.util.NotificationDeduplicator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * This file tests the NotificationDeduplicator and its BloomFilter
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class NotificationDeduplicatorTests {
+
+    private CounterService counterService;
+    private GaugeService gaugeService;
+    private NotificationDeduplicator notificationDeduplicator;
+
+    @Before
+    public void setup() {
+        counterService = mock(CounterService.class);
+        gaugeService = mock(GaugeService.class);
+        notificationDeduplicator = new NotificationDeduplicator(true, 10000L, 0.001,
+                1024 * 1024L, 3600000L, counterService, gaugeService);
+    }
+
+    @After
+    public void tearDown() {
+        notificationDeduplicator.shutdown();
+    }
+
+    @Test
+    public void duplicatesTest() {
+        Map<String, List<Date>> views = new HashMap<>();
+        views.put("sensor_id", Arrays.asList(new Date(1000), new Date(1500)));
+        views.put("sensor_id2", Collections.singletonList(new Date(1000)));
+
+        assertFalse(notificationDeduplicator.isDuplicate("sensor_id", new Date(1000)));
+        notificationDeduplicator.record(views);
+
+        assertTrue(notificationDeduplicator.isDuplicate("sensor_id", new Date(1000)));
+        assertTrue(notificationDeduplicator.isDuplicate("sensor_id", new Date(1500)));
+        assertTrue(notificationDeduplicator.isDuplicate("sensor_id2", new Date(1000)));
+        assertFalse(notificationDeduplicator.isDuplicate("sensor_id2", new Date(1500)));
+        assertFalse(notificationDeduplicator.isDuplicate("sensor_id3", new Date(1000)));
+
+        verify(counterService, times(3)).increment("counter.cram.deduplication.duplicates");
+        verify(gaugeService, atLeastOnce()).submit(eq("gauge.cram.deduplication.memoryBytes"), anyDouble());
+        verify(gaugeService, atLeastOnce())
+                .submit(eq("gauge.cram.deduplication.falsePositiveProbability"), anyDouble());
+    }
+
+    @Test
+    public void rotationTest() {
+        notificationDeduplicator.record(Collections.singletonMap("sensor_id",
+                Collections.singletonList(new Date(1000))));
+
+        // The fingerprints are remembered for at least one rotation
+        ReflectionTestUtils.invokeMethod(notificationDeduplicator, "rotate");
+        assertTrue(notificationDeduplicator.isDuplicate("sensor_id", new Date(1000)));
+
+        ReflectionTestUtils.invokeMethod(notificationDeduplicator, "rotate");
+        assertFalse(notificationDeduplicator.isDuplicate("sensor_id", new Date(1000)));
+    }
+
+    @Test
+    public void bloomFilterFalsePositiveProbabilityTest() {
+        int expectedInsertions = 100000;
+        BloomFilter bloomFilter = new BloomFilter(expectedInsertions, 0.01, 1024 * 1024L);
+        Random random = new Random(0);
+
+        for (int i = 0; i < expectedInsertions; i++) {
+            long hash1 = random.nextLong();
+            long hash2 = random.nextLong() | 1;
+            bloomFilter.put(hash1, hash2);
+            assertTrue(bloomFilter.mightContain(hash1, hash2));
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < expectedInsertions; i++) {
+            if (bloomFilter.mightContain(random.nextLong(), random.nextLong() | 1))
+                falsePositives++;
+        }
+
+        assertTrue("False positives: " + falsePositives, falsePositives < expectedInsertions * 0.02);
+        assertEquals(0.01, bloomFilter.expectedFalsePositiveProbability(), 0.005);
+    }
+
+    @Test
+    public void bloomFilterMemoryLimitTest() {
+        BloomFilter bloomFilter = new BloomFilter(1000000, 0.0001, 1024);
+        assertEquals(1024, bloomFilter.getMemoryBytes());
+        assertEquals(1024 * 8, bloomFilter.getNoBits());
+    }
+}
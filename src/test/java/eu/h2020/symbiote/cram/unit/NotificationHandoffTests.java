@@ -0,0 +1,196 @@
+package eu.h2020.symbiote.cram.unit;
+
+import eu.h2020.symbiote.core.cci.accessNotificationMessages.NotificationMessage;
+import eu.h2020.symbiote.core.cci.accessNotificationMessages.SuccessfulAccessMessageInfo;
+import eu.h2020.symbiote.core.internal.cram.NotificationMessageSecured;
+import eu.h2020.symbiote.cram.messaging.NotificationHandoff;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.amqp.AmqpException;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * This file tests the NotificationHandoff
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class NotificationHandoffTests {
+
+    @Test
+    public void processedImmediatelyWithoutRolloverTest() {
+        List<NotificationMessageSecured> processed = new ArrayList<>();
+        NotificationHandoff notificationHandoff = new NotificationHandoff(processed::addAll, 10);
+
+        notificationHandoff.submit(createMessage("sensor_id"));
+
+        assertEquals(1, processed.size());
+        assertEquals(0, notificationHandoff.size());
+    }
+
+    @Test
+    public void queuedDuringRolloverTest() {
+        List<NotificationMessageSecured> processed = new ArrayList<>();
+        NotificationHandoff notificationHandoff = new NotificationHandoff(processed::addAll, 10);
+
+        notificationHandoff.beginRollover();
+        notificationHandoff.submit(createMessage("sensor_id"));
+        notificationHandoff.submit(createMessage("sensor_id2"));
+
+        assertTrue(notificationHandoff.isRolloverOngoing());
+        assertEquals(0, processed.size());
+        assertEquals(2, notificationHandoff.size());
+
+        assertEquals(2, notificationHandoff.endRollover());
+        assertFalse(notificationHandoff.isRolloverOngoing());
+        assertEquals(2, processed.size());
+        assertEquals(0, notificationHandoff.size());
+    }
+
+    @Test
+    public void fullQueueTest() {
+        NotificationHandoff notificationHandoff = new NotificationHandoff(messages -> {}, 1);
+
+        notificationHandoff.beginRollover();
+        notificationHandoff.submit(createMessage("sensor_id"));
+
+        try {
+            notificationHandoff.submit(createMessage("sensor_id2"));
+            fail("The notification should have been requeued");
+        } catch (AmqpException e) {
+            assertEquals(1, notificationHandoff.size());
+        }
+    }
+
+    @Test
+    public void failedBatchIsRetriedTest() {
+        List<NotificationMessageSecured> processed = new ArrayList<>();
+        AtomicBoolean failing = new AtomicBoolean(true);
+        NotificationHandoff notificationHandoff = new NotificationHandoff(messages -> {
+            if (failing.get() && messages.size() > 1)
+                throw new IllegalStateException("The database is not reachable");
+            processed.addAll(messages);
+        }, 10);
+
+        notificationHandoff.beginRollover();
+        notificationHandoff.submit(createMessage("sensor_id"));
+        notificationHandoff.submit(createMessage("sensor_id2"));
+
+        // The failed batch is queued again
+        assertEquals(0, notificationHandoff.endRollover());
+        assertEquals(0, processed.size());
+        assertEquals(2, notificationHandoff.size());
+
+        // and it is retried after the next notification is processed
+        failing.set(false);
+        notificationHandoff.submit(createMessage("sensor_id3"));
+        assertEquals(3, processed.size());
+        assertEquals(0, notificationHandoff.size());
+    }
+
+    @Test
+    public void waitForRoomTest() throws Exception {
+        List<NotificationMessageSecured> processed = Collections.synchronizedList(new ArrayList<>());
+        NotificationHandoff notificationHandoff = new NotificationHandoff(processed::addAll, 1);
+
+        notificationHandoff.beginRollover();
+        notificationHandoff.submit(createMessage("sensor_id"));
+        assertFalse(notificationHandoff.submit(createMessage("sensor_id2"), 50));
+
+        // The waiting notification is processed once the rollover ends
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        Future<Boolean> waiting = executorService.submit(() ->
+                notificationHandoff.submit(createMessage("sensor_id3"), 5000));
+        Thread.sleep(100);
+        assertFalse(waiting.isDone());
+
+        notificationHandoff.endRollover();
+        assertTrue(waiting.get(5, TimeUnit.SECONDS));
+        executorService.shutdown();
+        assertEquals(2, processed.size());
+    }
+
+    @Test
+    public void noNotificationIsLostUnderContentionTest() throws Exception {
+        int noProducers = 16;
+        int messagesPerProducer = 5000;
+        Set<String> processedIds = ConcurrentHashMap.newKeySet();
+        AtomicInteger processedMessages = new AtomicInteger(0);
+        AtomicInteger processedDuringRollover = new AtomicInteger(0);
+        AtomicBoolean insideRollover = new AtomicBoolean(false);
+
+        NotificationHandoff notificationHandoff = new NotificationHandoff(messages -> {
+            if (insideRollover.get())
+                processedDuringRollover.incrementAndGet();
+
+            for (NotificationMessageSecured message : messages) {
+                processedIds.add(message.getBody().getSuccessfulAttempts().get(0).getSymbIoTeId());
+                processedMessages.incrementAndGet();
+            }
+        }, noProducers * messagesPerProducer);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(noProducers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> producers = new ArrayList<>();
+
+        for (int i = 0; i < noProducers; i++) {
+            int producer = i;
+            producers.add(executorService.submit(() -> {
+                start.await();
+                for (int j = 0; j < messagesPerProducer; j++)
+                    notificationHandoff.submit(createMessage(producer + "_" + j));
+                return null;
+            }));
+        }
+
+        start.countDown();
+
+        // Keep rolling over while the producers are running
+        while (producers.stream().anyMatch(producer -> !producer.isDone())) {
+            notificationHandoff.beginRollover();
+            insideRollover.set(true);
+            TimeUnit.MICROSECONDS.sleep(200);
+            insideRollover.set(false);
+            notificationHandoff.endRollover();
+        }
+
+        for (Future<?> producer : producers)
+            producer.get();
+        executorService.shutdown();
+        notificationHandoff.drain();
+
+        assertEquals(noProducers * messagesPerProducer, processedMessages.get());
+        assertEquals(noProducers * messagesPerProducer, processedIds.size());
+        assertEquals(0, processedDuringRollover.get());
+        assertEquals(0, notificationHandoff.size());
+    }
+
+    private NotificationMessageSecured createMessage(String resourceId) {
+        SuccessfulAccessMessageInfo successfulAttempts = new SuccessfulAccessMessageInfo();
+        successfulAttempts.setSymbIoTeId(resourceId);
+        successfulAttempts.setTimestamps(Collections.emptyList());
+
+        NotificationMessage notificationMessage = new NotificationMessage();
+        notificationMessage.addSuccessfulAttempt(successfulAttempts);
+
+        NotificationMessageSecured notificationMessageSecured = new NotificationMessageSecured();
+        notificationMessageSecured.setBody(notificationMessage);
+        return notificationMessageSecured;
+    }
+}
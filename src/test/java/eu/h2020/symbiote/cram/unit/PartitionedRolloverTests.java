@@ -0,0 +1,267 @@
+package eu.h2020.symbiote.cram.unit;
+
+import eu.h2020.symbiote.cram.model.CramResource;
+import eu.h2020.symbiote.cram.model.SubIntervalViews;
+import eu.h2020.symbiote.cram.repository.ResourceRepository;
+import eu.h2020.symbiote.cram.util.PartitionedRollover;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * This file tests the PartitionedRollover
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class PartitionedRolloverTests {
+
+    private static final int NO_RESOURCES = 1000;
+
+    private ResourceRepository resourceRepository;
+    private GaugeService gaugeService;
+    private PartitionedRollover partitionedRollover;
+    private Map<String, CramResource> savedResources;
+
+    @Before
+    public void setup() {
+        resourceRepository = Mockito.mock(ResourceRepository.class);
+        gaugeService = Mockito.mock(GaugeService.class);
+        partitionedRollover = new PartitionedRollover(resourceRepository, 2L, 1000L, 4, 50, gaugeService);
+        savedResources = new ConcurrentHashMap<>();
+
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            Consumer<List<CramResource>> consumer = (Consumer<List<CramResource>>) invocation.getArguments()[1];
+            List<CramResource> batch = new ArrayList<>();
+
+            for (int i = 0; i < NO_RESOURCES; i++) {
+                batch.add(createCramResource("sensor_id" + i));
+                if (batch.size() == 50) {
+                    consumer.accept(batch);
+                    batch = new ArrayList<>();
+                }
+            }
+            return NO_RESOURCES;
+        }).when(resourceRepository).forEachBatch(anyInt(), any(), Mockito.<String>anyVararg());
+
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            Collection<CramResource> cramResources = (Collection<CramResource>) invocation.getArguments()[0];
+            for (CramResource cramResource : cramResources) {
+                if (savedResources.put(cramResource.getId(), cramResource) != null)
+                    fail("The resource " + cramResource.getId() + " was saved twice");
+            }
+            return cramResources.size();
+        }).when(resourceRepository).saveViews(any());
+
+        doAnswer(invocation -> resourceRepository.saveViews((Collection<CramResource>) invocation.getArguments()[0]))
+                .when(resourceRepository).saveViews(any(), any());
+    }
+
+    @After
+    public void tearDown() {
+        partitionedRollover.shutdown();
+    }
+
+    @Test
+    public void rolloverTest() {
+        long[] durations = partitionedRollover.rollover();
+
+        assertEquals(4, durations.length);
+        assertEquals(NO_RESOURCES, savedResources.size());
+        for (CramResource cramResource : savedResources.values()) {
+            assertEquals(2, cramResource.getViewsInSubIntervals().size());
+            assertEquals(new Date(2000), cramResource.getViewsInSubIntervals().get(1).getStartOfInterval());
+            assertEquals(0, (int) cramResource.getViewsInDefinedInterval());
+        }
+        verify(gaugeService, times(4)).submit(startsWith("timer.cram.rollover.partition."), Mockito.anyDouble());
+    }
+
+    @Test
+    public void failedPartitionTest() {
+        doThrow(new RuntimeException("Mongo is down")).when(resourceRepository).saveViews(any());
+
+        try {
+            partitionedRollover.rollover();
+            fail("The failure of the partitions should be propagated");
+        } catch (RuntimeException e) {
+            assertEquals("Mongo is down", e.getMessage());
+        }
+    }
+
+    @Test
+    public void failedBatchCheckTest() {
+        AtomicInteger checkedBatches = new AtomicInteger();
+
+        try {
+            partitionedRollover.rollover(null, () -> {
+                if (checkedBatches.incrementAndGet() > 3)
+                    throw new IllegalStateException("The leadership with fencing token 1 was lost");
+            });
+            fail("The failure of the batch check should be propagated");
+        } catch (IllegalStateException e) {
+            assertEquals("The leadership with fencing token 1 was lost", e.getMessage());
+        }
+
+        // Only the batches which passed the check were written
+        assertEquals(3 * 50, savedResources.size());
+    }
+
+    @Test
+    public void resumedRolloverTest() {
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            Consumer<List<CramResource>> consumer = (Consumer<List<CramResource>>) invocation.getArguments()[2];
+            List<CramResource> batch = new ArrayList<>();
+
+            // The first half of the resources was rolled over before the rollover was interrupted
+            for (int i = 0; i < NO_RESOURCES; i++) {
+                CramResource cramResource = createCramResource("sensor_id" + i);
+                if (i < NO_RESOURCES / 2)
+                    cramResource.setRolloverEpoch(5L);
+                batch.add(cramResource);
+            }
+            consumer.accept(batch);
+            return NO_RESOURCES;
+        }).when(resourceRepository).forEachBatchNotRolledOver(eq(5L), anyInt(), any(), Mockito.<String>anyVararg());
+
+        partitionedRollover.rollover(5L, () -> {});
+
+        assertEquals(NO_RESOURCES / 2, savedResources.size());
+        for (CramResource cramResource : savedResources.values()) {
+            assertEquals(5, (long) cramResource.getRolloverEpoch());
+            assertEquals(new Date(2000), cramResource.getViewsInSubIntervals().get(1).getStartOfInterval());
+        }
+    }
+
+    @Test
+    public void recordedBatchesTest() {
+        AtomicInteger recordedResources = new AtomicInteger();
+        Map<String, Integer> recordedBatches = new ConcurrentHashMap<>();
+
+        partitionedRollover.rollover(null, () -> {}, (lastId, rolledOver) -> {
+            recordedResources.addAndGet(rolledOver);
+            recordedBatches.put(lastId, rolledOver);
+        });
+
+        assertEquals(NO_RESOURCES, recordedResources.get());
+        for (String lastId : recordedBatches.keySet())
+            assertTrue(savedResources.containsKey(lastId));
+    }
+
+    @Test
+    public void concurrentViewsTest() {
+        // Another replica adds 2 views to sensor_id0 after it was read by the rollover, but before it was saved
+        CramResource storedResource = createCramResource("sensor_id0");
+        storedResource.getViewsInSubIntervals().get(1).setViews(2);
+        storedResource.setViewsInDefinedInterval(5);
+
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            Collection<CramResource> cramResources = (Collection<CramResource>) invocation.getArguments()[0];
+            @SuppressWarnings("unchecked")
+            Map<String, Integer> readViews = (Map<String, Integer>) invocation.getArguments()[1];
+
+            int matched = 0;
+            for (CramResource cramResource : cramResources) {
+                int storedViews = cramResource.getId().equals("sensor_id0") ?
+                        storedResource.getViewsInDefinedInterval() : 3;
+                if (readViews.get(cramResource.getId()) == storedViews) {
+                    savedResources.put(cramResource.getId(), cramResource);
+                    matched++;
+                }
+            }
+            return matched;
+        }).when(resourceRepository).saveViews(any(), any());
+
+        doAnswer(invocation -> {
+            // The batch is read again, but only the resource which changed has not been rolled over
+            assertEquals(3, ((Collection<?>) invocation.getArguments()[0]).size());
+            CramResource rereadResource = createCramResource("sensor_id0");
+            rereadResource.setViewsInSubIntervals(storedResource.getViewsInSubIntervals());
+            rereadResource.setViewsInDefinedInterval(storedResource.getViewsInDefinedInterval());
+
+            List<CramResource> rereadResources = new ArrayList<>(Collections.singletonList(rereadResource));
+            for (int i = 1; i < 3; i++) {
+                CramResource rolledOverResource = createCramResource("sensor_id" + i);
+                rolledOverResource.setRolloverEpoch(5L);
+                rereadResources.add(rolledOverResource);
+            }
+            return rereadResources;
+        }).when(resourceRepository).findAllWithFields(any(), Mockito.<String>anyVararg());
+
+        List<CramResource> batch = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            batch.add(createCramResource("sensor_id" + i));
+
+        assertEquals(3, partitionedRollover.rolloverBatch(batch, 5L));
+        assertEquals(3, savedResources.size());
+
+        // The 2 views which were added concurrently are kept, while the 3 views of the first subInterval roll off
+        CramResource rolledOver = savedResources.get("sensor_id0");
+        assertEquals(2, (int) rolledOver.getViewsInDefinedInterval());
+        assertEquals(2, (int) rolledOver.getViewsInSubIntervals().get(0).getViews());
+        assertEquals(5, (long) rolledOver.getRolloverEpoch());
+        assertEquals(0, (int) savedResources.get("sensor_id1").getViewsInDefinedInterval());
+    }
+
+    @Test
+    public void viewsKeepChangingTest() {
+        doReturn(0).when(resourceRepository).saveViews(any(), any());
+        doAnswer(invocation -> Collections.singletonList(createCramResource("sensor_id0")))
+                .when(resourceRepository).findAllWithFields(any(), Mockito.<String>anyVararg());
+
+        try {
+            partitionedRollover.rolloverBatch(new ArrayList<>(Collections.singletonList(
+                    createCramResource("sensor_id0"))), 5L);
+            fail("The rollover should give up on a resource whose views keep changing");
+        } catch (IllegalStateException e) {
+            assertEquals("The views of 1 resources kept changing during the rollover to epoch 5", e.getMessage());
+        }
+        verify(resourceRepository, times(5)).saveViews(any(), any());
+    }
+
+    @Test
+    public void disabledTest() {
+        assertFalse(new PartitionedRollover(resourceRepository, 2L, 1000L, 1, 50, gaugeService).isEnabled());
+    }
+
+    private CramResource createCramResource(String id) {
+        List<SubIntervalViews> subIntervals = new ArrayList<>();
+        subIntervals.add(new SubIntervalViews(new Date(0), new Date(1000), 3));
+        subIntervals.add(new SubIntervalViews(new Date(1000), new Date(2000), 0));
+
+        CramResource cramResource = new CramResource();
+        cramResource.setId(id);
+        cramResource.setViewsInSubIntervals(subIntervals);
+        cramResource.setViewsInDefinedInterval(3);
+        return cramResource;
+    }
+}
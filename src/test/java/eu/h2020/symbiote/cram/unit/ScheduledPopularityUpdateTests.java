@@ -0,0 +1,325 @@
+package eu.h2020.symbiote.cram.unit;
+
+import eu.h2020.symbiote.core.internal.popularity.PopularityUpdate;
+import eu.h2020.symbiote.core.internal.popularity.PopularityUpdatesMessage;
+import eu.h2020.symbiote.cram.model.CramResource;
+import eu.h2020.symbiote.cram.model.ResourcePopularity;
+import eu.h2020.symbiote.cram.model.SubIntervalViews;
+import eu.h2020.symbiote.cram.repository.ResourceRepository;
+import eu.h2020.symbiote.cram.util.AdaptiveInformSearchInterval;
+import eu.h2020.symbiote.cram.util.ConfirmingPublisher;
+import eu.h2020.symbiote.cram.util.LeaderElection;
+import eu.h2020.symbiote.cram.util.ScheduledPopularityUpdate;
+import eu.h2020.symbiote.cram.util.SubIntervalClock;
+import eu.h2020.symbiote.cram.util.TopKTracker;
+import eu.h2020.symbiote.cram.util.ViewsAccumulator;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.boot.actuate.metrics.CounterService;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * This file tests the ScheduledPopularityUpdate
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class ScheduledPopularityUpdateTests {
+
+    private RabbitTemplate rabbitTemplate;
+    private ResourceRepository resourceRepository;
+    private ViewsAccumulator viewsAccumulator;
+    private SubIntervalClock subIntervalClock;
+    private LeaderElection leaderElection;
+    private TopKTracker topKTracker;
+    private AdaptiveInformSearchInterval adaptiveInformSearchInterval;
+    private Map<String, CramResource> storedResources;
+
+    @Before
+    public void setup() {
+        rabbitTemplate = Mockito.mock(RabbitTemplate.class);
+        resourceRepository = Mockito.mock(ResourceRepository.class);
+        viewsAccumulator = Mockito.mock(ViewsAccumulator.class);
+        subIntervalClock = Mockito.mock(SubIntervalClock.class);
+        leaderElection = Mockito.mock(LeaderElection.class);
+        topKTracker = Mockito.mock(TopKTracker.class);
+        adaptiveInformSearchInterval = Mockito.mock(AdaptiveInformSearchInterval.class);
+        storedResources = new HashMap<>();
+
+        doReturn(false).when(subIntervalClock).isAligned();
+        doReturn(false).when(subIntervalClock).isLazyRollover();
+        doReturn(0L).when(viewsAccumulator).getPendingViews(anyString());
+        doReturn(1L).when(leaderElection).getFencingToken();
+        doReturn(false).when(topKTracker).isEnabled();
+        doReturn(false).when(adaptiveInformSearchInterval).isEnabled();
+
+        for (int i = 0; i < 3; i++)
+            storeResource("sensor_id" + i, i);
+
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            Consumer<List<CramResource>> consumer = (Consumer<List<CramResource>>) invocation.getArguments()[1];
+            List<CramResource> batch = storedResources.values().stream().map(CramResource::new)
+                    .collect(Collectors.toList());
+            consumer.accept(batch);
+            return batch.size();
+        }).when(resourceRepository).forEachBatch(anyInt(), any(), Mockito.<String>anyVararg());
+
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            Consumer<List<ResourcePopularity>> consumer =
+                    (Consumer<List<ResourcePopularity>>) invocation.getArguments()[1];
+            List<ResourcePopularity> batch = storedResources.values().stream()
+                    .map(cramResource -> new ResourcePopularity(cramResource.getId(),
+                            cramResource.getViewsInDefinedInterval(), cramResource.getPublishedViews()))
+                    .collect(Collectors.toList());
+            consumer.accept(batch);
+            return batch.size();
+        }).when(resourceRepository).forEachPopularityBatch(anyInt(), any());
+
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            Map<String, Integer> publishedViews = (Map<String, Integer>) invocation.getArguments()[0];
+            publishedViews.forEach((id, views) -> storedResources.get(id).setPublishedViews(views));
+            return publishedViews.size();
+        }).when(resourceRepository).savePublishedViews(any());
+    }
+
+    @Test
+    public void fullUpdatesTest() {
+        ScheduledPopularityUpdate scheduledPopularityUpdate = createScheduledPopularityUpdate(false, 3600000L);
+
+        scheduledPopularityUpdate.run();
+        scheduledPopularityUpdate.run();
+
+        List<PopularityUpdatesMessage> messages = captureMessages(2);
+        assertEquals(3, messages.get(0).getPopularityUpdateList().size());
+        assertEquals(3, messages.get(1).getPopularityUpdateList().size());
+        verify(resourceRepository, never()).savePublishedViews(any());
+    }
+
+    @Test
+    public void projectedViewsTest() {
+        ScheduledPopularityUpdate scheduledPopularityUpdate = createScheduledPopularityUpdate(false, 3600000L);
+        doReturn(5L).when(viewsAccumulator).getPendingViews("sensor_id2");
+
+        scheduledPopularityUpdate.run();
+
+        // Only the popularity fields are read, when the subIntervals are not aligned
+        verify(resourceRepository, never()).forEachBatch(anyInt(), any(), Mockito.<String>anyVararg());
+        Map<String, Integer> views = captureMessages(1).get(0).getPopularityUpdateList().stream()
+                .collect(Collectors.toMap(PopularityUpdate::getId, PopularityUpdate::getViewsInDefinedInterval));
+        assertEquals(1, (int) views.get("sensor_id1"));
+        assertEquals(7, (int) views.get("sensor_id2"));
+    }
+
+    @Test
+    public void alignedViewsTest() {
+        ScheduledPopularityUpdate scheduledPopularityUpdate = createScheduledPopularityUpdate(false, 3600000L);
+        Date startOfWindow = new Date(3600000);
+        doReturn(true).when(subIntervalClock).isAligned();
+        doReturn(startOfWindow).when(subIntervalClock).getStartOfWindow();
+        doReturn(new Date(3 * 3600000)).when(subIntervalClock).getEndOfWindow();
+
+        // The views of the expired subInterval are not counted, although the stored ones still contain them
+        storedResources.get("sensor_id1").setViewsInSubIntervals(new ArrayList<>(Arrays.asList(
+                new SubIntervalViews(new Date(0), startOfWindow, 4),
+                new SubIntervalViews(startOfWindow, new Date(2 * 3600000), 3))));
+        storedResources.get("sensor_id1").setViewsInDefinedInterval(7);
+
+        scheduledPopularityUpdate.run();
+
+        verify(resourceRepository, never()).forEachPopularityBatch(anyInt(), any());
+        Map<String, Integer> views = captureMessages(1).get(0).getPopularityUpdateList().stream()
+                .collect(Collectors.toMap(PopularityUpdate::getId, PopularityUpdate::getViewsInDefinedInterval));
+        assertEquals(3, (int) views.get("sensor_id1"));
+        assertEquals(0, (int) views.get("sensor_id2"));
+    }
+
+    @Test
+    public void topKTest() {
+        ScheduledPopularityUpdate scheduledPopularityUpdate = createScheduledPopularityUpdate(true, 3600000L);
+        doReturn(true).when(topKTracker).isEnabled();
+        doReturn(1).when(topKTracker).getK();
+
+        scheduledPopularityUpdate.run();
+
+        // The top k are ranked from the stored views, whatever this replica has consumed
+        ArgumentCaptor<PopularityUpdatesMessage> captor = ArgumentCaptor.forClass(PopularityUpdatesMessage.class);
+        verify(rabbitTemplate).convertAndSend(eq("exchange"), eq("topRoutingKey"), captor.capture());
+        List<PopularityUpdate> topK = captor.getValue().getPopularityUpdateList();
+        assertEquals(1, topK.size());
+        assertEquals("sensor_id2", topK.get(0).getId());
+        assertEquals(2, (int) topK.get(0).getViewsInDefinedInterval());
+        verify(topKTracker, never()).getTopK();
+        assertEquals(3, captureMessages(1).get(0).getPopularityUpdateList().size());
+
+        // The unchanged resources are not published again, but they are still ranked
+        scheduledPopularityUpdate.run();
+        verify(rabbitTemplate, times(2)).convertAndSend(eq("exchange"), eq("topRoutingKey"), captor.capture());
+        assertEquals("sensor_id2", captor.getValue().getPopularityUpdateList().get(0).getId());
+    }
+
+    @Test
+    public void adaptiveIntervalTest() {
+        ScheduledPopularityUpdate scheduledPopularityUpdate = createScheduledPopularityUpdate(true, 3600000L);
+        doReturn(true).when(adaptiveInformSearchInterval).isEnabled();
+        doReturn(true).when(topKTracker).isEnabled();
+        doReturn(2).when(topKTracker).getK();
+
+        // An update which is skipped is not reported
+        doReturn(null).when(leaderElection).getFencingToken();
+        scheduledPopularityUpdate.run();
+        verify(adaptiveInformSearchInterval, never()).onPublished(anyLong(), anyInt(), any());
+
+        // The changed resources are counted from the stored views, whatever this replica has consumed
+        doReturn(1L).when(leaderElection).getFencingToken();
+        scheduledPopularityUpdate.run();
+        verify(adaptiveInformSearchInterval).onPublished(anyLong(), eq(3),
+                eq(Arrays.asList("sensor_id2", "sensor_id1")));
+
+        storedResources.get("sensor_id0").setViewsInDefinedInterval(7);
+        scheduledPopularityUpdate.run();
+        verify(adaptiveInformSearchInterval).onPublished(anyLong(), eq(1),
+                eq(Arrays.asList("sensor_id0", "sensor_id2")));
+    }
+
+    @Test
+    public void failedAdaptiveIntervalTest() {
+        ScheduledPopularityUpdate scheduledPopularityUpdate = createScheduledPopularityUpdate(true, 3600000L);
+        doReturn(true).when(adaptiveInformSearchInterval).isEnabled();
+        doThrow(new RuntimeException("Rabbit is down")).when(rabbitTemplate)
+                .convertAndSend(anyString(), anyString(), any(Object.class), any(MessagePostProcessor.class));
+
+        try {
+            scheduledPopularityUpdate.run();
+            fail("The failure of the sending should be propagated");
+        } catch (RuntimeException e) {
+            assertEquals("Rabbit is down", e.getMessage());
+        }
+
+        // The failed update does not start a new interval
+        verify(adaptiveInformSearchInterval, never()).onPublished(anyLong(), anyInt(), any());
+    }
+
+    @Test
+    public void failedTopKTest() {
+        ScheduledPopularityUpdate scheduledPopularityUpdate = createScheduledPopularityUpdate(true, 3600000L);
+        doReturn(true).when(adaptiveInformSearchInterval).isEnabled();
+        doReturn(true).when(topKTracker).isEnabled();
+        doReturn(1).when(topKTracker).getK();
+        doThrow(new AmqpException("Rabbit is down")).when(rabbitTemplate)
+                .convertAndSend(eq("exchange"), eq("topRoutingKey"), any(Object.class));
+
+        // The popularity updates were sent, so the update is reported even though the top k were not
+        scheduledPopularityUpdate.run();
+        assertEquals(3, captureMessages(1).get(0).getPopularityUpdateList().size());
+        verify(adaptiveInformSearchInterval).onPublished(anyLong(), eq(3), eq(Collections.singletonList("sensor_id2")));
+    }
+
+    @Test
+    public void deltaUpdatesTest() {
+        ScheduledPopularityUpdate scheduledPopularityUpdate = createScheduledPopularityUpdate(true, 3600000L);
+
+        // The first update is a full resync
+        scheduledPopularityUpdate.run();
+        assertEquals(3, captureMessages(1).get(0).getPopularityUpdateList().size());
+
+        // Nothing has changed, so nothing is sent
+        scheduledPopularityUpdate.run();
+        verify(rabbitTemplate, times(1)).convertAndSend(anyString(), anyString(), any(Object.class),
+                any(MessagePostProcessor.class));
+
+        storedResources.get("sensor_id1").setViewsInDefinedInterval(7);
+        scheduledPopularityUpdate.run();
+
+        List<PopularityUpdate> delta = captureMessages(2).get(1).getPopularityUpdateList();
+        assertEquals(1, delta.size());
+        assertEquals("sensor_id1", delta.get(0).getId());
+        assertEquals(7, (int) delta.get(0).getViewsInDefinedInterval());
+    }
+
+    @Test
+    public void periodicFullResyncTest() throws InterruptedException {
+        ScheduledPopularityUpdate scheduledPopularityUpdate = createScheduledPopularityUpdate(true, 50L);
+
+        scheduledPopularityUpdate.run();
+        Thread.sleep(100);
+        scheduledPopularityUpdate.run();
+
+        List<PopularityUpdatesMessage> messages = captureMessages(2);
+        assertEquals(3, messages.get(1).getPopularityUpdateList().size());
+    }
+
+    @Test
+    public void failedSendTest() {
+        ScheduledPopularityUpdate scheduledPopularityUpdate = createScheduledPopularityUpdate(true, 3600000L);
+        scheduledPopularityUpdate.run();
+        storedResources.get("sensor_id2").setViewsInDefinedInterval(9);
+
+        doThrow(new RuntimeException("Rabbit is down")).when(rabbitTemplate)
+                .convertAndSend(anyString(), anyString(), any(Object.class), any(MessagePostProcessor.class));
+        try {
+            scheduledPopularityUpdate.run();
+            fail("The failure of the sending should be propagated");
+        } catch (RuntimeException e) {
+            assertEquals("Rabbit is down", e.getMessage());
+        }
+
+        // The views which were not sent are not recorded as published
+        assertEquals(2, (int) storedResources.get("sensor_id2").getPublishedViews());
+    }
+
+    private ScheduledPopularityUpdate createScheduledPopularityUpdate(boolean deltaUpdates, long fullResyncInterval) {
+        ConfirmingPublisher confirmingPublisher = new ConfirmingPublisher(rabbitTemplate, false, 16, 3, 500L, 30000L,
+                Mockito.mock(CounterService.class), Mockito.mock(GaugeService.class));
+        return new ScheduledPopularityUpdate(confirmingPublisher, resourceRepository, "exchange", "routingKey",
+                viewsAccumulator, subIntervalClock, 100, leaderElection, deltaUpdates, fullResyncInterval, 1000, 262144,
+                topKTracker, "topRoutingKey", adaptiveInformSearchInterval);
+    }
+
+    private List<PopularityUpdatesMessage> captureMessages(int noMessages) {
+        ArgumentCaptor<PopularityUpdatesMessage> captor = ArgumentCaptor.forClass(PopularityUpdatesMessage.class);
+        verify(rabbitTemplate, times(noMessages)).convertAndSend(eq("exchange"), eq("routingKey"), captor.capture(),
+                any(MessagePostProcessor.class));
+        return new ArrayList<>(captor.getAllValues());
+    }
+
+    private void storeResource(String id, int views) {
+        CramResource cramResource = new CramResource();
+        cramResource.setId(id);
+        cramResource.setViewsInDefinedInterval(views);
+        cramResource.setDescription(new ArrayList<>());
+        cramResource.setViewsInSubIntervals(new ArrayList<>());
+        storedResources.put(id, cramResource);
+    }
+}
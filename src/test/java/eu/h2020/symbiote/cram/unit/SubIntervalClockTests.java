@@ -0,0 +1,51 @@
+package eu.h2020.symbiote.cram.unit;
+
+import eu.h2020.symbiote.cram.util.SubIntervalClock;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+/**
+ * This file tests the SubIntervalClock
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class SubIntervalClockTests {
+
+    @Test
+    public void gridTest() {
+        SubIntervalClock subIntervalClock = new SubIntervalClock(true, false, 1000L, 3L);
+
+        assertEquals(2, subIntervalClock.epochOf(new Date(2999)));
+        assertEquals(3, subIntervalClock.epochOf(new Date(3000)));
+        assertEquals(new Date(3000), subIntervalClock.startOfEpoch(3));
+        assertEquals(new Date(2000), subIntervalClock.startOfSubInterval(new Date(2500)));
+    }
+
+    @Test
+    public void windowTest() {
+        SubIntervalClock subIntervalClock = new SubIntervalClock(true, false, 1000L, 3L);
+        long currentEpoch = subIntervalClock.getCurrentEpoch();
+
+        assertEquals(subIntervalClock.epochOf(new Date()), currentEpoch);
+        assertEquals(subIntervalClock.startOfEpoch(currentEpoch - 2), subIntervalClock.getStartOfWindow());
+        assertEquals(subIntervalClock.startOfEpoch(currentEpoch + 1), subIntervalClock.getEndOfWindow());
+
+        assertTrue(subIntervalClock.isCountable(subIntervalClock.getStartOfWindow()));
+        assertFalse(subIntervalClock.isCountable(new Date(subIntervalClock.getStartOfWindow().getTime() - 1)));
+        assertFalse(subIntervalClock.isCountable(new Date(System.currentTimeMillis() + 10000)));
+    }
+
+    @Test
+    public void advanceTest() {
+        SubIntervalClock subIntervalClock = new SubIntervalClock(true, false, 1000L, 3L);
+        long currentEpoch = subIntervalClock.getCurrentEpoch();
+
+        // The current epoch never goes backwards
+        assertTrue(subIntervalClock.advance() >= currentEpoch);
+        assertTrue(subIntervalClock.getNextRollover().after(new Date()));
+    }
+}
@@ -0,0 +1,134 @@
+package eu.h2020.symbiote.cram.unit;
+
+import eu.h2020.symbiote.core.internal.popularity.PopularityUpdate;
+import eu.h2020.symbiote.cram.util.SpaceSaving;
+import eu.h2020.symbiote.cram.util.TopKTracker;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This file tests the TopKTracker and its SpaceSaving summaries
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class TopKTrackerTests {
+
+    private static final long SUB_INTERVAL_DURATION = 3600000L;
+
+    @Test
+    public void spaceSavingTest() {
+        SpaceSaving spaceSaving = new SpaceSaving(10);
+        Random random = new Random(42);
+        Map<String, Long> actualCounts = new HashMap<>();
+
+        // A few heavy hitters in a long tail of rare ids
+        for (int i = 0; i < 10000; i++) {
+            String id = random.nextInt(4) == 0 ? "heavy" + random.nextInt(3) : "rare" + random.nextInt(5000);
+            long weight = 1 + random.nextInt(3);
+            spaceSaving.offer(id, weight);
+            actualCounts.merge(id, weight, Long::sum);
+        }
+
+        assertEquals(10, spaceSaving.size());
+        assertEquals(actualCounts.values().stream().mapToLong(Long::longValue).sum(), spaceSaving.getTotal());
+
+        Map<String, SpaceSaving.Counter> counters = spaceSaving.getCounters().stream()
+                .collect(Collectors.toMap(SpaceSaving.Counter::getId, counter -> counter));
+        for (int i = 0; i < 3; i++)
+            assertTrue(counters.containsKey("heavy" + i));
+
+        for (SpaceSaving.Counter counter : counters.values()) {
+            long actualCount = actualCounts.get(counter.getId());
+            assertTrue(counter.getCount() >= actualCount);
+            assertTrue(counter.getCount() - counter.getError() <= actualCount);
+            assertTrue(counter.getError() <= spaceSaving.getMinCount());
+            assertTrue(counter.getError() <= spaceSaving.getTotal() / spaceSaving.getCapacity());
+        }
+    }
+
+    @Test
+    public void topKTest() {
+        TopKTracker topKTracker = new TopKTracker(true, 2, 5, SUB_INTERVAL_DURATION, 24L);
+        long now = System.currentTimeMillis();
+
+        addViews(topKTracker, "sensor_id1", new Date(now), 5);
+        addViews(topKTracker, "sensor_id2", new Date(now), 2);
+        addViews(topKTracker, "sensor_id3", new Date(now - 2 * SUB_INTERVAL_DURATION), 4);
+        addViews(topKTracker, "sensor_id2", new Date(now - 3 * SUB_INTERVAL_DURATION), 4);
+
+        List<PopularityUpdate> topK = topKTracker.getTopK();
+        assertEquals(2, topK.size());
+        assertEquals("sensor_id2", topK.get(0).getId());
+        assertEquals(6, (int) topK.get(0).getViewsInDefinedInterval());
+        assertEquals("sensor_id1", topK.get(1).getId());
+        assertEquals(5, (int) topK.get(1).getViewsInDefinedInterval());
+
+        assertEquals(1, topKTracker.getTopK(1).size());
+        assertEquals(0, topKTracker.getMaxError());
+    }
+
+    @Test
+    public void windowTest() {
+        TopKTracker topKTracker = new TopKTracker(true, 10, 10, SUB_INTERVAL_DURATION, 3L);
+        long now = System.currentTimeMillis();
+
+        // The views older than the window or in the future are ignored
+        addViews(topKTracker, "sensor_id1", new Date(now - 3 * SUB_INTERVAL_DURATION), 10);
+        addViews(topKTracker, "sensor_id2", new Date(now + 2 * SUB_INTERVAL_DURATION), 10);
+        addViews(topKTracker, "sensor_id3", new Date(now - 2 * SUB_INTERVAL_DURATION), 1);
+
+        List<PopularityUpdate> topK = topKTracker.getTopK();
+        assertEquals(1, topK.size());
+        assertEquals("sensor_id3", topK.get(0).getId());
+    }
+
+    @Test
+    public void evictionTest() {
+        TopKTracker topKTracker = new TopKTracker(true, 1, 2, SUB_INTERVAL_DURATION, 24L);
+        Date now = new Date();
+
+        addViews(topKTracker, "sensor_id1", now, 50);
+        for (int i = 0; i < 20; i++)
+            addViews(topKTracker, "rare" + i, now, 1);
+
+        // Every rare resource takes over the counter of the previous one
+        List<PopularityUpdate> topK = topKTracker.getTopK();
+        assertEquals("sensor_id1", topK.get(0).getId());
+        assertEquals(50, (int) topK.get(0).getViewsInDefinedInterval());
+        assertEquals(20, topKTracker.getMaxError());
+    }
+
+    @Test
+    public void rankingTest() {
+        TopKTracker.Ranking ranking = new TopKTracker.Ranking(3);
+
+        for (int i = 0; i < 100; i++)
+            ranking.offer("sensor_id" + i, i % 50);
+        ranking.offer("unviewed", 0);
+
+        // Only k resources are kept and the ties are broken by the id
+        List<PopularityUpdate> topK = ranking.getTopK();
+        assertEquals(3, topK.size());
+        assertEquals("sensor_id49", topK.get(0).getId());
+        assertEquals(49, (int) topK.get(0).getViewsInDefinedInterval());
+        assertEquals("sensor_id99", topK.get(1).getId());
+        assertEquals("sensor_id48", topK.get(2).getId());
+
+        assertEquals(0, new TopKTracker.Ranking(3).getTopK().size());
+    }
+
+    private void addViews(TopKTracker topKTracker, String resourceId, Date timestamp, int views) {
+        topKTracker.addViews(Collections.singletonMap(resourceId, Collections.singletonMap(timestamp, views)));
+    }
+}
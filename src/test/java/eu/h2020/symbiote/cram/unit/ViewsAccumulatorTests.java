@@ -0,0 +1,146 @@
+package eu.h2020.symbiote.cram.unit;
+
+import eu.h2020.symbiote.cram.repository.ResourceRepository;
+import eu.h2020.symbiote.cram.util.ViewsAccumulator;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+
+/**
+ * This file tests the ViewsAccumulator
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+public class ViewsAccumulatorTests {
+
+    private ResourceRepository resourceRepository;
+    private ViewsAccumulator viewsAccumulator;
+    private AtomicLong flushedViews;
+
+    @Before
+    public void setup() {
+        resourceRepository = Mockito.mock(ResourceRepository.class);
+        viewsAccumulator = new ViewsAccumulator(resourceRepository, false, 1000L, 3600000L);
+        flushedViews = new AtomicLong(0);
+
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            Map<String, Map<Date, Integer>> views = (Map<String, Map<Date, Integer>>) invocation.getArguments()[0];
+            views.values().forEach(subIntervals -> subIntervals.values().forEach(flushedViews::addAndGet));
+            return views.size();
+        }).when(resourceRepository).incrementViewsInSubIntervals(any(), any());
+    }
+
+    @Test
+    public void pendingViewsTest() {
+        Date now = new Date();
+        viewsAccumulator.addViews(createViews("sensor_id", now, 3));
+        viewsAccumulator.addViews(createViews("sensor_id", new Date(now.getTime() - 1000), 2));
+        viewsAccumulator.addViews(createViews("sensor_id2", now, 1));
+
+        assertEquals(5, viewsAccumulator.getPendingViews("sensor_id"));
+        assertEquals(1, viewsAccumulator.getPendingViews("sensor_id2"));
+        assertEquals(0, viewsAccumulator.getPendingViews("sensor_id3"));
+
+        assertEquals(2, viewsAccumulator.flush());
+        assertEquals(6, flushedViews.get());
+        assertEquals(0, viewsAccumulator.getPendingViews("sensor_id"));
+    }
+
+    @Test
+    public void suspendFlushingTest() {
+        viewsAccumulator.suspendFlushing();
+        viewsAccumulator.addViews(createViews("sensor_id", new Date(), 3));
+
+        assertEquals(0, viewsAccumulator.flush());
+        assertEquals(3, viewsAccumulator.getPendingViews("sensor_id"));
+
+        viewsAccumulator.resumeFlushing();
+        viewsAccumulator.flush();
+        assertEquals(3, flushedViews.get());
+    }
+
+    @Test
+    public void failedFlushTest() {
+        viewsAccumulator.addViews(createViews("sensor_id", new Date(), 3));
+        doThrow(new RuntimeException("Mongo is down")).when(resourceRepository)
+                .incrementViewsInSubIntervals(any(), any());
+
+        assertEquals(0, viewsAccumulator.flush());
+        assertEquals(3, viewsAccumulator.getPendingViews("sensor_id"));
+    }
+
+    @Test
+    public void partiallyAppliedFlushTest() {
+        Date now = new Date();
+        Date rolledOff = new Date(now.getTime() - 2 * 3600000L);
+        viewsAccumulator.addViews(createViews("sensor_id", now, 3));
+        viewsAccumulator.addViews(createViews("sensor_id2", now, 2));
+        viewsAccumulator.addViews(createViews("sensor_id3", rolledOff, 4));
+
+        // Only the update of sensor_id is applied
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            Map<String, Map<Date, Integer>> notAppliedViews =
+                    (Map<String, Map<Date, Integer>>) invocation.getArguments()[1];
+            notAppliedViews.put("sensor_id2", new HashMap<>(Collections.singletonMap(now, 2)));
+            notAppliedViews.put("sensor_id3", new HashMap<>(Collections.singletonMap(rolledOff, 4)));
+            return 1;
+        }).when(resourceRepository).incrementViewsInSubIntervals(any(), any());
+
+        assertEquals(1, viewsAccumulator.flush());
+        assertEquals(0, viewsAccumulator.getPendingViews("sensor_id"));
+        assertEquals(2, viewsAccumulator.getPendingViews("sensor_id2"));
+        assertEquals(0, viewsAccumulator.getPendingViews("sensor_id3"));
+    }
+
+    @Test
+    public void concurrentViewsAreNotLostTest() throws Exception {
+        int noProducers = 8;
+        int viewsPerProducer = 20000;
+        Date subIntervalStart = new Date();
+        ExecutorService executorService = Executors.newFixedThreadPool(noProducers);
+        List<Future<?>> producers = new ArrayList<>();
+
+        for (int i = 0; i < noProducers; i++) {
+            String resourceId = "sensor_id" + (i % 2);
+            producers.add(executorService.submit(() -> {
+                for (int j = 0; j < viewsPerProducer; j++)
+                    viewsAccumulator.addViews(createViews(resourceId, subIntervalStart, 1));
+            }));
+        }
+
+        while (producers.stream().anyMatch(producer -> !producer.isDone()))
+            viewsAccumulator.flush();
+
+        for (Future<?> producer : producers)
+            producer.get();
+        executorService.shutdown();
+        viewsAccumulator.flush();
+
+        assertEquals(noProducers * viewsPerProducer, flushedViews.get());
+    }
+
+    private Map<String, Map<Date, Integer>> createViews(String resourceId, Date subIntervalStart, int views) {
+        Map<String, Map<Date, Integer>> viewsPerResource = new HashMap<>();
+        viewsPerResource.put(resourceId, new HashMap<>(Collections.singletonMap(subIntervalStart, views)));
+        return viewsPerResource;
+    }
+}